@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.flaky.EmbeddedDatabase;
+import jetbrains.buildServer.serverSide.flaky.data.AnalysisStatistics;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResult;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Runs the whole {@link TestsAnalyser#analyseTestsInProject} against an embedded in-memory HSQLDB
+ * filled with a synthetic history, and reports the time of each phase for every fetch mode
+ * (see {@link EmbeddedAnalyser}).
+ * <p>
+ * The DB has the columns of {@code test_info}, {@code build_state}, {@code history} and {@code running}
+ * used by the analyser. Each test belongs to one build type and runs in every build of it.
+ * The tests are mostly stable, the rest are flaky, broken by changes for a while,
+ * failing on one agent only, or always failing. The history is generated from a fixed seed,
+ * so the runs are reproducible.
+ * <p>
+ * The summary mode fills the {@link TestRunsSummary summary table} first, the time of it is reported separately.
+ * <p>
+ * Run with: {@code ant benchmark.end-to-end}, the history is configured by the system properties
+ * (the defaults are in parentheses):
+ * {@code tests} (5000), {@code builds} (1000), {@code agents} (50), {@code buildTypes} (10),
+ * {@code modes} (per_test,batched,streaming,aggregated,summary), e.g.
+ * {@code ant benchmark.end-to-end -Dtests=50000 -Dbuilds=5000 -Dagents=200}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisEndToEndBenchmark {
+  private static final int INSERT_BATCH_SIZE = 10000;
+
+  private final int myTests;
+  private final int myBuilds;
+  private final int myAgents;
+  private final int myBuildTypes;
+
+  private final int[] myFailures;
+  private final int[] mySuccesses;
+
+  private final EmbeddedDatabase myDatabase;
+
+  public static void main(String[] args) throws Exception {
+    String modes = System.getProperty("modes", "per_test,batched,streaming,aggregated,summary");
+    AnalysisEndToEndBenchmark benchmark = new AnalysisEndToEndBenchmark(Integer.getInteger("tests", 5000),
+                                                                        Integer.getInteger("builds", 1000),
+                                                                        Integer.getInteger("agents", 50),
+                                                                        Integer.getInteger("buildTypes", 10));
+    try {
+      benchmark.generate();
+      for (String mode : modes.split(",")) {
+        benchmark.analyse(mode.trim());
+      }
+    } finally {
+      benchmark.close();
+    }
+  }
+
+  public AnalysisEndToEndBenchmark(int tests, int builds, int agents, int buildTypes) throws SQLException {
+    myDatabase = new EmbeddedDatabase("flakyTestsBenchmark");
+    myTests = tests;
+    myBuilds = builds;
+    myAgents = agents;
+    myBuildTypes = buildTypes;
+    myFailures = new int[tests];
+    mySuccesses = new int[tests];
+  }
+
+  private void generate() throws SQLException {
+    long start = System.nanoTime();
+    Connection connection = myDatabase.getConnection();
+    connection.setAutoCommit(false);
+    PreparedStatement history = connection.prepareStatement("insert into history values (?, ?, ?, ?)");
+    PreparedStatement buildState = connection.prepareStatement("insert into build_state values (?, ?, ?, ?)");
+    PreparedStatement testInfo = connection.prepareStatement("insert into test_info values (?, ?, ?, ?)");
+
+    Random random = new Random(2013);
+    int[] kinds = new int[myTests];
+    double[] flakiness = new double[myTests];
+    for (int test = 0; test < myTests; test++) {
+      int dice = random.nextInt(100);
+      kinds[test] = dice < 70 ? 0 : dice < 85 ? 1 : dice < 95 ? 2 : dice < 98 ? 3 : 4;
+      flakiness[test] = 0.05 + random.nextDouble() * 0.25;
+    }
+
+    boolean[] broken = new boolean[myBuildTypes];
+    long modificationId = 1;
+    long time = System.currentTimeMillis() - myBuilds * 60000L;
+    int rows = 0;
+    for (int build = 1; build <= myBuilds; build++) {
+      // A new change in 2 of 3 builds, the rest are re-runs on the same change.
+      if (random.nextInt(3) != 0) {
+        ++modificationId;
+      }
+      int buildType = random.nextInt(myBuildTypes);
+      if (random.nextInt(40) == 0) {
+        broken[buildType] = !broken[buildType];
+      }
+      int agent = random.nextInt(myAgents);
+      time += 60000;
+
+      history.setLong(1, build);
+      history.setString(2, "bt" + buildType);
+      history.setString(3, "agent-" + agent);
+      history.setLong(4, time);
+      history.addBatch();
+      buildState.setLong(1, build);
+      buildState.setLong(2, build);
+      buildState.setString(3, "bt" + buildType);
+      buildState.setLong(4, modificationId);
+      buildState.addBatch();
+
+      for (int test = buildType; test < myTests; test += myBuildTypes) {
+        boolean failure;
+        switch (kinds[test]) {
+          case 1:  failure = random.nextDouble() < flakiness[test]; break;
+          case 2:  failure = broken[buildType]; break;
+          case 3:  failure = agent == 0; break;
+          case 4:  failure = true; break;
+          default: failure = false;
+        }
+        if (failure) {
+          ++myFailures[test];
+        } else {
+          ++mySuccesses[test];
+        }
+
+        testInfo.setLong(1, build);
+        testInfo.setInt(2, test);
+        testInfo.setLong(3, test);
+        testInfo.setInt(4, failure ? Status.FAILURE.getPriority() : Status.NORMAL.getPriority());
+        testInfo.addBatch();
+        if (++rows % INSERT_BATCH_SIZE == 0) {
+          testInfo.executeBatch();
+        }
+      }
+    }
+    testInfo.executeBatch();
+    history.executeBatch();
+    buildState.executeBatch();
+    connection.commit();
+    connection.setAutoCommit(true);
+    history.close();
+    buildState.close();
+    testInfo.close();
+
+    // After the inserts: faster to fill.
+    myDatabase.execute("create index test_info_test_name_id on test_info (test_name_id)");
+    myDatabase.execute("create index build_state_build_id on build_state (build_id)");
+
+    System.out.println("Tests: " + myTests + ", builds: " + myBuilds + ", agents: " + myAgents +
+                       ", build types: " + myBuildTypes);
+    System.out.println("Test runs: " + rows + ", failing tests: " + getFailingTestsNumber() +
+                       ", generated in " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  private void analyse(@NotNull String mode) throws IOException {
+    System.setProperty("teamcity.flakyTests.fetchMode", mode);
+    EmbeddedAnalyser analyser = new EmbeddedAnalyser(myDatabase, getBuildTypeIds());
+    try {
+      if (mode.equalsIgnoreCase("summary")) {
+        long start = System.nanoTime();
+        analyser.getRunsSummary().initialize();
+        System.out.println();
+        System.out.println("Summary filled in " + (System.nanoTime() - start) / 1000000 + " ms");
+      }
+
+      long start = System.nanoTime();
+      TestAnalysisResult result = analyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS);
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      print(mode, elapsed, result);
+    } finally {
+      analyser.close();
+    }
+  }
+
+  private static void print(@NotNull String mode, long elapsedMillis, @NotNull TestAnalysisResult result) {
+    System.out.println();
+    System.out.println("Fetch mode: " + mode);
+    System.out.println(String.format("  %-32s %8d ms", "Total", elapsedMillis));
+    AnalysisStatistics statistics = result.getStatistics();
+    if (statistics != null) {
+      System.out.println(String.format("  %-32s %8d ms", "Failing tests", statistics.getFailingTestsMillis()));
+      System.out.println(String.format("  %-32s %8d ms  (%d queries, %d tests, %d rows, %.3f ms per test)",
+                                       "DB", statistics.getDbMillis(), statistics.getQueries(),
+                                       statistics.getTestsFetched(), statistics.getRowsFetched(),
+                                       statistics.getDbMillisPerTest()));
+      for (AnalysisStatistics.AlgorithmStatistics algorithm : statistics.getAlgorithms()) {
+        System.out.println(String.format("  %-32s %8d ms  (%d classified)",
+                                         algorithm.getName(), algorithm.getMillis(), algorithm.getClassified()));
+      }
+      System.out.println(String.format("  %-32s %8d ms", "Test data", statistics.getBuildTestDataMillis()));
+    }
+    System.out.println("  Flaky: " + result.getFlakyTests().size() +
+                       ", suspicious: " + result.getSuspiciousTests().size() +
+                       ", always failing: " + result.getAlwaysFailingTests().size() +
+                       " of " + result.getTotalTests());
+  }
+
+  /**
+   * Returns the number of the tests failed in at least 1% of their runs, as selected by the analyser.
+   */
+  private int getFailingTestsNumber() {
+    int result = 0;
+    for (int test = 0; test < myTests; test++) {
+      int failures = myFailures[test];
+      int runs = failures + mySuccesses[test];
+      if (failures > 0 && failures >= 0.01 * runs && runs > 1) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  private void close() throws SQLException {
+    myDatabase.close();
+  }
+
+  @NotNull
+  private List<String> getBuildTypeIds() {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < myBuildTypes; i++) {
+      result.add("bt" + i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.STest;
+import jetbrains.buildServer.serverSide.flaky.Stubs;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput and the allocation rate of each {@link CheckAlgorithm}
+ * on synthetic test histories.
+ * <p>
+ * The histories vary in length (10 to 100 000 runs), in the number of build types and agents,
+ * and in the failure pattern:
+ * <ul>
+ *   <li>stable: the test never fails</li>
+ *   <li>flaky: random failures, 5% of the runs</li>
+ *   <li>broken: long series of failures caused by the changes</li>
+ *   <li>agent: fails on one agent only</li>
+ * </ul>
+ * The histories are generated up front, each algorithm is warmed up and then run
+ * for a fixed time on the same histories. The output is one line per scenario and algorithm:
+ * tests and runs analysed per second, bytes allocated per test and per run.
+ * <p>
+ * Run with: {@code ant benchmark.algorithms}, the lengths can be restricted by
+ * {@code -Dlengths=10,1000}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class CheckAlgorithmBenchmark {
+  private static final int[] LENGTHS = {10, 100, 1000, 10000, 100000};
+  private static final int[][] CARDINALITIES = {{2, 5}, {50, 500}};    // build types, agents
+  private static final String[] PATTERNS = {"stable", "flaky", "broken", "agent"};
+
+  // The histories of a scenario hold about this number of runs (at least 2 histories).
+  private static final int RUNS_PER_SCENARIO = 200000;
+  private static final long WARM_UP_MILLIS = 300;
+  private static final long MEASURE_MILLIS = 1000;
+
+  private final STest myTest = Stubs.create(STest.class, null);
+  private final List<CheckAlgorithm> myAlgorithms = new ArrayList<CheckAlgorithm>();
+  private final com.sun.management.ThreadMXBean myThreadBean =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private long myResults;
+
+  public static void main(String[] args) {
+    new CheckAlgorithmBenchmark().run(parseLengths(System.getProperty("lengths")));
+  }
+
+  public CheckAlgorithmBenchmark() {
+    myAlgorithms.add(new SimpleStatusAlgorithm());
+    myAlgorithms.add(new ModificationBasedAlgorithm(new BuildChangesOracle(Stubs.createBuildServer())));
+    myAlgorithms.add(new StatisticAnalysisAlgorithm(TestAnalysisSettings.DEFAULT_SETTINGS));
+  }
+
+  private void run(@NotNull int[] lengths) {
+    System.out.println(String.format("%-8s %-8s %-8s %-28s %14s %14s %12s %10s",
+                                     "runs", "types", "pattern", "algorithm",
+                                     "tests/s", "runs/s", "bytes/test", "bytes/run"));
+    for (int length : lengths) {
+      for (int[] cardinality : CARDINALITIES) {
+        for (String pattern : PATTERNS) {
+          List<RunBuffer> histories = generate(length, cardinality[0], cardinality[1], pattern);
+          for (CheckAlgorithm algorithm : myAlgorithms) {
+            measure(length, cardinality[0] + "/" + cardinality[1], pattern, algorithm, histories);
+          }
+        }
+      }
+    }
+    System.out.println("(results: " + myResults + ")");
+  }
+
+  private void measure(int length,
+                       @NotNull String cardinality,
+                       @NotNull String pattern,
+                       @NotNull CheckAlgorithm algorithm,
+                       @NotNull List<RunBuffer> histories) {
+    runFor(WARM_UP_MILLIS, algorithm, histories);
+
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = myThreadBean.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    long tests = runFor(MEASURE_MILLIS, algorithm, histories);
+    long elapsed = System.nanoTime() - start;
+    long allocated = myThreadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+    long runs = tests * length;
+    System.out.println(String.format("%-8d %-8s %-8s %-28s %14.1f %14.0f %12.1f %10.3f",
+                                     length, cardinality, pattern, algorithm.getClass().getSimpleName(),
+                                     tests * 1e9 / elapsed, runs * 1e9 / elapsed,
+                                     (double) allocated / tests, (double) allocated / runs));
+  }
+
+  /**
+   * Runs the algorithm over the histories until the time is out, returns the number of tests analysed.
+   */
+  private long runFor(long millis, @NotNull CheckAlgorithm algorithm, @NotNull List<RunBuffer> histories) {
+    long deadline = System.nanoTime() + millis * 1000000;
+    long tests = 0;
+    do {
+      for (RunBuffer history : histories) {
+        if (algorithm.checkTest(myTest, history) != null) {
+          ++myResults;
+        }
+      }
+      tests += histories.size();
+    } while (System.nanoTime() < deadline);
+    return tests;
+  }
+
+  @NotNull
+  private static List<RunBuffer> generate(int length, int buildTypes, int agents, @NotNull String pattern) {
+    Random random = new Random(length * 31 + buildTypes * 7 + pattern.hashCode());
+    NameDictionary buildTypeNames = new NameDictionary();
+    NameDictionary agentNames = new NameDictionary();
+    String[] buildTypeIds = new String[buildTypes];
+    for (int i = 0; i < buildTypes; i++) {
+      buildTypeIds[i] = "bt" + i;
+    }
+    String[] agentIds = new String[agents];
+    for (int i = 0; i < agents; i++) {
+      agentIds[i] = "agent-" + i;
+    }
+
+    List<RunBuffer> histories = new ArrayList<RunBuffer>();
+    int count = Math.max(2, RUNS_PER_SCENARIO / length);
+    for (int test = 0; test < count; test++) {
+      RunBuffer history = new RunBuffer(buildTypeNames, agentNames);
+      history.reset(test);
+      long buildId = test * 1000000L;
+      long modificationId = random.nextInt(1000);
+      boolean broken = false;
+      for (int i = 0; i < length; i++) {
+        if (random.nextInt(3) == 0) {
+          modificationId += 1 + random.nextInt(5);
+          if (random.nextInt(50) == 0) {
+            broken = !broken;
+          }
+        }
+        buildId += 1 + random.nextInt(3);
+        int agent = random.nextInt(agents);
+
+        boolean failure;
+        if (pattern.equals("flaky")) {
+          failure = random.nextInt(20) == 0;
+        } else if (pattern.equals("broken")) {
+          failure = broken;
+        } else if (pattern.equals("agent")) {
+          failure = agent == 0;
+        } else {
+          failure = false;
+        }
+        int status = failure ? Status.FAILURE.getPriority() : Status.NORMAL.getPriority();
+        history.add(buildId, status, buildTypeIds[random.nextInt(buildTypes)], modificationId,
+                    agentIds[agent], buildId * 1000);
+      }
+      history.sortByModification();
+      histories.add(history);
+    }
+    return histories;
+  }
+
+  @NotNull
+  private static int[] parseLengths(@Nullable String property) {
+    if (property == null || property.trim().length() == 0) {
+      return LENGTHS;
+    }
+    String[] parts = property.split(",");
+    int[] lengths = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      lengths[i] = Integer.parseInt(parts[i].trim());
+    }
+    return lengths;
+  }
+}
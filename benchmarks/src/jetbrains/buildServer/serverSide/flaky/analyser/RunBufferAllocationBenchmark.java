@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.STest;
+import jetbrains.buildServer.serverSide.flaky.Stubs;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures the heap allocated per test run when the runs are put into a {@link RunBuffer},
+ * sorted by modification and analysed by all the algorithms.
+ * <p>
+ * The rows are generated up front (the strings returned by JDBC are out of scope here),
+ * in the build order, so the modifications come slightly out of order as they do in the DB.
+ * After the warm-up the expected allocation is close to 0 bytes per run: only the results
+ * and the lookups of the builds in the changes oracle allocate.
+ * <p>
+ * Run with: {@code ant benchmark.allocation}
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class RunBufferAllocationBenchmark {
+  private static final int TESTS = 2000;
+  private static final int RUNS_PER_TEST = 500;
+  private static final int BUILD_TYPES = 20;
+  private static final int AGENTS = 50;
+  private static final int ITERATIONS = 10;
+
+  private final String[] myBuildTypeIds = new String[BUILD_TYPES];
+  private final String[] myAgentNames = new String[AGENTS];
+  private final int[] myBuildTypes = new int[RUNS_PER_TEST];
+  private final int[] myAgents = new int[RUNS_PER_TEST];
+  private final int[] myStatuses = new int[RUNS_PER_TEST];
+  private final long[] myModificationIds = new long[RUNS_PER_TEST];
+
+  private final RunBuffer myBuffer = new RunBuffer(new NameDictionary(), new NameDictionary());
+  private final CheckAlgorithm[] myAlgorithms = {
+    new SimpleStatusAlgorithm(),
+    new ModificationBasedAlgorithm(new BuildChangesOracle(Stubs.createBuildServer())),
+    new StatisticAnalysisAlgorithm(TestAnalysisSettings.DEFAULT_SETTINGS)
+  };
+  // The algorithms under the benchmark don't look at the test.
+  private final STest myTest = Stubs.create(STest.class, null);
+
+  private int myResults;
+
+  public static void main(String[] args) {
+    new RunBufferAllocationBenchmark().run();
+  }
+
+  public RunBufferAllocationBenchmark() {
+    Random random = new Random(42);
+    for (int i = 0; i < BUILD_TYPES; i++) {
+      myBuildTypeIds[i] = "bt" + i;
+    }
+    for (int i = 0; i < AGENTS; i++) {
+      myAgentNames[i] = "agent-" + i;
+    }
+    for (int i = 0; i < RUNS_PER_TEST; i++) {
+      myBuildTypes[i] = random.nextInt(BUILD_TYPES);
+      myAgents[i] = random.nextInt(AGENTS);
+      myStatuses[i] = random.nextInt(10) == 0 ? Status.FAILURE.getPriority() : Status.NORMAL.getPriority();
+      // A build may start on the sources a bit older than the ones of the previous builds.
+      myModificationIds[i] = Math.max(0, i / 4 - random.nextInt(4));
+    }
+  }
+
+  private void run() {
+    com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    // Warm-up: the buffer grows to its final capacity, the dictionaries are filled, the code is compiled.
+    for (int i = 0; i < ITERATIONS; i++) {
+      analyseAll();
+    }
+
+    long runs = 0;
+    long start = System.nanoTime();
+    long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      runs += analyseAll();
+    }
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println("Runs analysed:   " + runs);
+    System.out.println("Bytes allocated: " + allocated);
+    System.out.println("Bytes per run:   " + (double) allocated / runs);
+    System.out.println("Runs per second: " + (long) (runs * 1e9 / elapsed));
+    System.out.println("(results: " + myResults + ")");
+  }
+
+  private long analyseAll() {
+    long runs = 0;
+    long buildId = 0;
+    for (int test = 0; test < TESTS; test++) {
+      myBuffer.reset(test);
+      for (int i = 0; i < RUNS_PER_TEST; i++) {
+        myBuffer.add(++buildId, myStatuses[(i + test) % RUNS_PER_TEST], myBuildTypeIds[myBuildTypes[i]],
+                     myModificationIds[i], myAgentNames[myAgents[i]], buildId * 1000);
+      }
+      myBuffer.sortByModification();
+
+      for (CheckAlgorithm algorithm : myAlgorithms) {
+        if (algorithm.checkTest(myTest, myBuffer) != null) {
+          ++myResults;
+        }
+      }
+      runs += myBuffer.size();
+    }
+    return runs;
+  }
+}
@@ -9,6 +9,7 @@ BS.Flaky = {
       analyseTimePeriodDays: $j("#analyseTimePeriodDays").val(),
       analyseFullHistory: $j("#analyseFullHistory").is(":checked"),
       speedUpAlwaysFailing: $j("#speedUpAlwaysFailing").is(":checked"),
+      analysePeriodically: $j("#analysePeriodically").is(":checked"),
       minSeriesNumber: $j("#minSeriesNumber").val(),
       averageSeriesLength: $j("#averageSeriesLength").val()
     };
@@ -24,10 +25,19 @@ BS.Flaky = {
     return false;
   },
 
-  scheduleReload: function() {
-    setTimeout(function() {
-      $("flaky").refresh();
-    }, 2000);
+  cancel: function(projectId) {
+    if (!confirm("Cancel the tests analysis? The published results will be kept, the full history analysis continues from where it stopped next time.")) {
+      return false;
+    }
+
+    BS.ajaxRequest("analyzeTests.html", {
+      method: "POST",
+      parameters: {
+        projectId: projectId,
+        action: "cancel"
+      }
+    });
+    return false;
   },
 
   scrollAndExpandIfNeeded: function() {
@@ -42,6 +52,304 @@ BS.Flaky = {
   }
 };
 
+BS.Flaky.Progress = {
+  _errors: 0,
+
+  /**
+   * Long-polls the progress snapshot and updates the progress line in place.
+   * The whole tab is refreshed only once, when the analysis is finished.
+   */
+  watch: function(projectId, version) {
+    var that = this;
+    $j.ajax({
+      url: window['base_uri'] + "/flakyProgress.html",
+      data: {projectId: projectId, version: version},
+      dataType: "json",
+      cache: false,
+      success: function(snapshot) {
+        that._errors = 0;
+        if (!snapshot.inProgress) {
+          $("flaky").refresh();
+          return;
+        }
+        that._render(snapshot);
+        that.watch(projectId, snapshot.version);
+      },
+      error: function() {
+        // Back off, but keep watching.
+        that._errors++;
+        setTimeout(function() {
+          that.watch(projectId, version);
+        }, Math.min(30000, 2000 * that._errors));
+      }
+    });
+  },
+
+  _render: function(snapshot) {
+    var container = $j("#analysisProgress");
+    container.find(".step").text(snapshot.step || "");
+    if (snapshot.total > 0) {
+      container.find(".counts").show();
+      container.find(".percent").text(Math.round(snapshot.done / snapshot.total * 100) + "%");
+      container.find(".done").text(snapshot.done);
+      container.find(".total").text(snapshot.total);
+    }
+
+    var speed = [];
+    if (snapshot.testsPerSecond > 0) {
+      speed.push(snapshot.testsPerSecond.toFixed(1) + " tests/sec");
+    }
+    if (snapshot.etaSeconds >= 0) {
+      speed.push("about " + this._formatDuration(snapshot.etaSeconds) + " left");
+    }
+    if (snapshot.dbTimeShare > 0) {
+      speed.push(Math.round(snapshot.dbTimeShare * 100) + "% of time in DB");
+    }
+    container.find(".speed").text(speed.length ? "\u2014 " + speed.join(", ") : "");
+  },
+
+  _formatDuration: function(seconds) {
+    if (seconds < 60) return seconds + " sec";
+    if (seconds < 3600) return Math.round(seconds / 60) + " min";
+    return (seconds / 3600).toFixed(1) + " h";
+  }
+};
+
+BS.Flaky.Tests = {
+  _filter: {},
+
+  showMore: function(type) {
+    var pager = $j("#testsPager-" + type);
+    this._load(pager, parseInt(pager.attr("data-offset")));
+    return false;
+  },
+
+  applyFilter: function() {
+    this._filter = {
+      buildTypeId: $j("#filterBuildTypeId").val(),
+      agent: $j.trim($j("#filterAgent").val()),
+      order: $j("#filterOrder").val()
+    };
+
+    var that = this;
+    $j(".testsPager").each(function() {
+      var pager = $j(this);
+      $j("#firstPage-" + pager.attr("data-type")).hide();
+      pager.find("table.moreTests").empty();
+      that._load(pager, 0);
+    });
+    return false;
+  },
+
+  toggleDetails: function(link, testId) {
+    var row = $j(link).closest("tr");
+    var detailsRow = row.next("tr.testDetailsRow");
+    if (detailsRow.length) {
+      detailsRow.toggle();
+      return false;
+    }
+
+    detailsRow = $j("<tr class='testDetailsRow'><td></td></tr>").insertAfter(row);
+    var container = detailsRow.find("td").attr("colspan", row.children("td").length);
+    BS.Flaky.Details.load(container, testId);
+    return false;
+  },
+
+  _load: function(pager, offset) {
+    var actions = pager.find(".pagerActions");
+    var progress = actions.find(".progressRingInline");
+    var parameters = $j.extend({
+      projectId: BS.projectId,
+      type: pager.attr("data-type"),
+      offset: offset
+    }, this._filter);
+
+    var that = this;
+    progress.show();
+    $j.getJSON(window['base_uri'] + "/flakyTests.html", parameters, function(page) {
+      progress.hide();
+      var table = pager.find("table.moreTests");
+      $j.each(page.tests, function(i, test) {
+        table.append(that._renderTest(test));
+      });
+
+      var shown = page.offset + page.tests.length;
+      pager.attr("data-offset", shown);
+      actions.find(".shownNumber").text(shown);
+      actions.find(".totalNumber").text(page.total);
+      actions.toggle(page.hasMore);
+    });
+  },
+
+  _renderTest: function(test) {
+    var row = $j("<tr class='moreTest'><td class='name'></td><td class='env'></td><td class='rate'></td></tr>");
+    var testUrl = window['base_uri'] + "/project.html?tab=testDetails&testNameId=" + test.id +
+                  "&projectId=" + encodeURIComponent(test.projectExternalId);
+    $j("<a href='#'></a>").text(test.name).click(function() {
+      return BS.Flaky.Tests.toggleDetails(this, test.id);
+    }).appendTo(row.find(".name"));
+    $j("<a class='testDetailsLink' title='View test details'>&raquo;</a>").attr("href", testUrl)
+      .appendTo(row.find(".name"));
+
+    var env = [];
+    if (test.onlyInSingleBuildType) {
+      env.push("in " + test.failedInBuildTypes[0].name);
+    }
+    if (test.onlyOnSingleAgent) {
+      env.push("on " + test.failedOnAgents[0]);
+    }
+    if (env.length) {
+      row.find(".env").text("fails only " + env.join(" "));
+    }
+
+    row.find(".rate").text((test.failureRate * 100).toFixed(1) + "% (" + test.failures + " of " + test.runs + ")");
+    return row;
+  }
+};
+
+BS.Flaky.Details = {
+  _pending: {},
+  _timer: null,
+
+  // The details requested at about the same time (e.g. several clicks in a row) are fetched by one request.
+  load: function(container, testId) {
+    var containers = this._pending[testId] || (this._pending[testId] = []);
+    containers.push(container);
+    if (!this._timer) {
+      var that = this;
+      this._timer = setTimeout(function() {
+        that._fetch();
+      }, 50);
+    }
+  },
+
+  _fetch: function() {
+    var pending = this._pending;
+    this._pending = {};
+    this._timer = null;
+
+    var testIds = [];
+    for (var testId in pending) {
+      if (pending.hasOwnProperty(testId)) {
+        testIds.push(testId);
+      }
+    }
+
+    var that = this;
+    $j.getJSON(window['base_uri'] + "/flakyTestsDetails.html", {
+      projectId: BS.projectId,
+      testIds: testIds.join(",")
+    }, function(tests) {
+      $j.each(tests, function(i, test) {
+        $j.each(pending[test.id] || [], function(j, container) {
+          container.empty().append(that._render(test));
+        });
+        delete pending[test.id];
+      });
+      $j.each(pending, function(testId, containers) {
+        $j.each(containers, function(j, container) {
+          container.html("<div class='test-details'><i>No data about the test</i></div>");
+        });
+      });
+    });
+  },
+
+  _render: function(test) {
+    var details = $j("<div class='test-details'></div>");
+    if (test.reason) {
+      details.append(this._renderReason(test.reason));
+    }
+
+    $j("<div class='stats'></div>").append(
+      "Total test runs: ", $j("<b></b>").text(test.runs),
+      ", total failures: ", $j("<b></b>").text(test.failures),
+      ", failure rate: ", $j("<b></b>").text(this._formatRate(test.failures, test.runs))
+    ).appendTo(details);
+
+    var blocks = $j("<table><tr><td class='block'></td><td class='block'></td><td></td></tr></table>").appendTo(details);
+    var cells = blocks.find("td.block");
+    var that = this;
+    this._renderBlock("Failure statistics by all build configurations", test.buildTypes, function(buildType) {
+      return that._buildTypeLink(buildType.externalId, buildType.name);
+    }).appendTo(cells.eq(0));
+    this._renderBlock("Failure statistics by all agents", test.agents, function(agent) {
+      return $j("<a></a>").attr("href", window['base_uri'] + "/agentDetails.html?id=" + agent.id).text(agent.name);
+    }).appendTo(cells.eq(1));
+
+    var testUrl = window['base_uri'] + "/project.html?tab=testDetails&testNameId=" + test.id +
+                  "&projectId=" + encodeURIComponent(test.projectExternalId);
+    $j("<a title='View test details'>Complete test details &raquo;</a>").attr("href", testUrl).appendTo(details);
+    return details;
+  },
+
+  _renderReason: function(reason) {
+    var div = $j("<div class='reason'></div>");
+    if (reason.kind == "buildWithoutChanges") {
+      $j("<div>Diagnosis: test failed in a build without changes: </div>").append(
+        reason.build ? this._buildLink(reason.build, reason.build.buildTypeName + " #" + reason.build.number)
+                     : "<i>build does not exist anymore</i>"
+      ).appendTo(div);
+    } else if (reason.kind == "buildsOnSameModification") {
+      div.append("<div>Diagnosis: test run differently in builds with same sources:</div>");
+      var table = $j("<table class='modificationBuilds'></table>").appendTo(div);
+      table.append(this._renderBuildRow("fail", "Failed in:", reason.failedInBuild));
+      table.append(this._renderBuildRow("success", "Successful in:", reason.successfulInBuild));
+    } else if (reason.kind == "suspiciousStatistics") {
+      $j("<div></div>").append(
+        "Diagnosis: test had ", $j("<b></b>").text(reason.seriesNumber),
+        " series of consecutive failures with average length of ",
+        $j("<b></b>").text((reason.seriesTotalLength / reason.seriesNumber).toFixed(1)), " builds"
+      ).appendTo(div);
+    }
+    return div;
+  },
+
+  _renderBuildRow: function(className, title, build) {
+    var row = $j("<tr class='buildTypeProblem'><td></td></tr>");
+    row.find("td").addClass(className).text(title);
+    if (build) {
+      $j("<td class='bt'></td>").append(this._buildTypeLink(build.buildTypeExternalId, build.buildTypeName)).appendTo(row);
+      $j("<td class='build'></td>").append(this._buildLink(build, "#" + build.number)).appendTo(row);
+    } else {
+      row.append("<td colspan='2'><i>build no longer exists (please restart the analyzer)</i></td>");
+    }
+    return row;
+  },
+
+  _renderBlock: function(title, items, renderName) {
+    var block = $j("<div class='block'><div class='title'></div><div class='content'><table></table></div></div>");
+    block.find(".title").text(title);
+    var table = block.find("table");
+    var that = this;
+    $j.each(items, function(i, item) {
+      var row = $j("<tr><td></td><td class='rate'></td><td class='procent'></td></tr>").appendTo(table);
+      row.toggleClass("zero", item.failures == 0);
+      row.children("td").eq(0).append(renderName(item));
+      row.find(".rate")
+        .attr("title", item.failures + " failure" + (item.failures != 1 ? "s" : "") + " out of " + item.runs)
+        .append($j("<span class='fail'></span>").text(item.failures), " / " + item.runs);
+      row.find(".procent")
+        .attr("title", "Failure rate in this environment")
+        .text(that._formatRate(item.failures, item.runs));
+    });
+    return block;
+  },
+
+  _buildTypeLink: function(externalId, name) {
+    if (!externalId) return $j("<span></span>").text(name);
+    return $j("<a></a>").attr("href", window['base_uri'] + "/viewType.html?buildTypeId=" + encodeURIComponent(externalId))
+                        .text(name);
+  },
+
+  _buildLink: function(build, text) {
+    return $j("<a></a>").attr("href", window['base_uri'] + "/viewLog.html?buildId=" + build.id).text(text);
+  },
+
+  _formatRate: function(failures, runs) {
+    return (runs > 0 ? failures / runs * 100 : 0).toFixed(1) + "%";
+  }
+};
+
 BS.Flaky.Dialog = OO.extend(BS.AbstractModalDialog, {
   show: function() {
     this.showCentered();
@@ -169,14 +477,8 @@ BS.Flaky.Dialog = OO.extend(BS.AbstractModalDialog, {
   }
 });
 
-BS.TestDetails._toggleDetails = BS.TestDetails.toggleDetails;
 BS.TestDetails.toggleDetails = function(link, url) {
-  var idx = url.indexOf("?");
-  url = "/flakyTestDetails.html" + url.substr(idx);
-
-  // Should be compatible with 7.1.x and 8.0.
-  idx = url.indexOf("projectId=");
-  url = url.substr(0, idx) + "projectId=" + BS.projectId;
-
-  return this._toggleDetails(link, url);
+  var match = /[?&]testNameId=(-?\d+)/.exec(url);
+  if (!match) return false;
+  return BS.Flaky.Tests.toggleDetails(link, match[1]);
 };
@@ -5,17 +5,25 @@
 %><jsp:useBean id="bean" type="jetbrains.buildServer.serverSide.flaky.web.TestsAnalysisBean" scope="request"
 
 /><bs:refreshable containerId="flaky" pageUrl="${pageUrl}">
+  <c:if test="${bean.inProgress}">
+    <c:set var="snapshot" value="${bean.progressSnapshot}"/>
+    <div id="analysisProgress">
+      <forms:progressRing className="progressRingInline"/> <span class="step"><c:out value="${snapshot.currentStep}"/></span>
+      <span class="counts" <c:if test="${snapshot.totalSize == 0}">style="display: none;"</c:if>>
+        <b class="percent"><fmt:formatNumber value="${snapshot.totalSize > 0 ? (snapshot.doneSize / snapshot.totalSize) * 100 : 0}"
+                                             maxFractionDigits="0" />%</b> done
+        (<span class="done">${snapshot.doneSize}</span> of <span class="total">${snapshot.totalSize}</span>)
+      </span>
+      <span class="speed"></span>
+      <a href="#" class="cancel" onclick="return BS.Flaky.cancel('${bean.project.projectId}');">Cancel</a>
+    </div>
+    <script type="text/javascript">
+      BS.Flaky.Progress.watch("${bean.project.projectId}", ${snapshot.version});
+    </script>
+  </c:if>
+
   <c:choose>
-    <c:when test="${bean.inProgress}">
-      <forms:progressRing className="progressRingInline"/> ${bean.progress.currentStep}
-      <c:if test="${bean.progress.totalSize > 0}">
-        <b><fmt:formatNumber value="${(bean.progress.doneSize / bean.progress.totalSize) * 100}"
-                             maxFractionDigits="0" />%</b> done
-        (${bean.progress.doneSize} of ${bean.progress.totalSize})
-      </c:if>
-      <script type="text/javascript">
-        BS.Flaky.scheduleReload();
-      </script>
+    <c:when test="${bean.inProgress and not (bean.partialResult and bean.hasData)}">
     </c:when>
 
     <c:when test="${not bean.hasData}">
@@ -32,11 +40,12 @@
 
     <c:when test="${bean.hasData}">
       <jsp:include page="printResultShort.jsp"/>
+      <jsp:include page="testsFilter.jsp"/>
 
       <c:if test="${bean.hasFlaky}">
         <c:set var="title">Environment-dependent tests: ${bean.flakyTestsSize}</c:set>
         <bs:_collapsibleBlock title="${title}" id="flakyTestsBlock">
-          <bs:trimWhitespace
+          <div class="firstPage" id="firstPage-flaky"><bs:trimWhitespace
             ><tt:testGroupWithActions groupedTestsBean="${bean.flakyTests}"
                                       defaultOption="package"
                                       groupSelector="true"
@@ -51,13 +60,19 @@
                 </bs:changeRequest>
               </jsp:attribute>
              </tt:testGroupWithActions
-          ></bs:trimWhitespace>
+          ></bs:trimWhitespace></div>
+          <bs:changeRequest key="testsPage" value="${bean.flakyPage}">
+            <bs:changeRequest key="pageType" value="flaky">
+              <jsp:include page="testsPager.jsp"/>
+            </bs:changeRequest>
+          </bs:changeRequest>
         </bs:_collapsibleBlock>
       </c:if>
 
       <c:if test="${bean.hasSuspicious}">
         <c:set var="title">Suspicious tests: ${bean.suspiciousTestsSize}</c:set>
         <bs:_collapsibleBlock title="${title}" id="suspiciousTestsBlock">
+          <div class="firstPage" id="firstPage-suspicious">
           <tt:testGroupWithActions groupedTestsBean="${bean.suspiciousTests}"
                                    defaultOption="package"
                                    groupSelector="true"
@@ -72,17 +87,30 @@
               </bs:changeRequest>
             </jsp:attribute>
           </tt:testGroupWithActions>
+          </div>
+          <bs:changeRequest key="testsPage" value="${bean.suspiciousPage}">
+            <bs:changeRequest key="pageType" value="suspicious">
+              <jsp:include page="testsPager.jsp"/>
+            </bs:changeRequest>
+          </bs:changeRequest>
         </bs:_collapsibleBlock>
       </c:if>
 
       <c:if test="${bean.hasAlwaysFailing}">
         <c:set var="title">Tests that always fail: ${bean.alwaysFailingTestsSize}</c:set>
         <bs:_collapsibleBlock title="${title}" id="alwaysFailingTestsBlock" collapsedByDefault="true">
+          <div class="firstPage" id="firstPage-always">
           <tt:testGroupWithActions groupedTestsBean="${bean.alwaysFailingTests}"
                                          defaultOption="package"
                                          groupSelector="true"
                                          id="always">
           </tt:testGroupWithActions>
+          </div>
+          <bs:changeRequest key="testsPage" value="${bean.alwaysFailingPage}">
+            <bs:changeRequest key="pageType" value="always">
+              <jsp:include page="testsPager.jsp"/>
+            </bs:changeRequest>
+          </bs:changeRequest>
         </bs:_collapsibleBlock>
       </c:if>
 
@@ -51,6 +51,13 @@
         </table>
         <div class="grayNote">Only builds started in a specified time slot will be processed</div>
       </div>
+
+      <div style="margin-top: 1em;">
+        <forms:checkbox name="analysePeriodically" checked="${settings.analysePeriodically}"/>
+        <label for="analysePeriodically">Re-run the analysis periodically with these settings</label>
+
+        <div class="grayNote">The analysis is re-run in background when there are new builds, preferably when the server load is low</div>
+      </div>
     </div>
 
     <div id="tab-2-content" style="display: none;">
@@ -2,8 +2,29 @@
 %><jsp:useBean id="bean" type="jetbrains.buildServer.serverSide.flaky.web.TestsAnalysisBean" scope="request"
 /><c:set var="testAnalysisResult" value="${bean.testAnalysisResult}" />
 <div>
-  Last test analysis performed <bs:elapsedTime time="${testAnalysisResult.finishDate}"/> (completed in ${bean.testAnalysisDuration}).
-  Total tests analysed: <b>${testAnalysisResult.totalTests}</b>.
+  <c:choose>
+    <c:when test="${bean.partialResult}">
+      Partial result of the test analysis started <bs:elapsedTime time="${testAnalysisResult.startDate}"/>.
+      Tests analysed so far: <b>${testAnalysisResult.totalTests}</b>.
+      <c:if test="${not bean.inProgress}">The analysis has been interrupted, start it again with the same settings to continue.</c:if>
+    </c:when>
+    <c:otherwise>
+      Last test analysis performed <bs:elapsedTime time="${testAnalysisResult.finishDate}"/> (completed in ${bean.testAnalysisDuration}).
+      Total tests analysed: <b>${testAnalysisResult.totalTests}</b>.
+      <c:set var="statistics" value="${testAnalysisResult.statistics}"/>
+      <c:if test="${not empty statistics}">
+        <div class="analysisStatistics">
+          Time spent: failure statistics <b>${statistics.failingTestsMillis} ms</b>,
+          DB <b>${statistics.dbMillis} ms</b> (${statistics.queries} queries, ${statistics.testsFetched} tests,
+          ${statistics.rowsFetched} rows, <fmt:formatNumber value="${statistics.dbMillisPerTest}" maxFractionDigits="2"/> ms per test),
+          <c:forEach items="${statistics.algorithms}" var="algorithm">
+            <c:out value="${algorithm.name}"/> <b>${algorithm.millis} ms</b> (${algorithm.classified} tests classified),
+          </c:forEach>
+          building the test data <b>${statistics.buildTestDataMillis} ms</b>.
+        </div>
+      </c:if>
+    </c:otherwise>
+  </c:choose>
 </div>
 <div>
   <c:set var="settings" value="${testAnalysisResult.settings}"/>
@@ -23,7 +44,9 @@
   minimum series number <b>${settings.minSeriesNumber}</b>, maximum average series length <b>${settings.averageSeriesLength}</b>.
 </div>
 
-<jsp:include page="startButton.jsp"/>
+<c:if test="${not bean.inProgress}">
+  <jsp:include page="startButton.jsp"/>
+</c:if>
 
 <script type="text/javascript">
   BS.projectId = "${bean.project.projectId}";
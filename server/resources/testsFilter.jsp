@@ -0,0 +1,19 @@
+<%@ include file="/include.jsp"
+%><jsp:useBean id="bean" type="jetbrains.buildServer.serverSide.flaky.web.TestsAnalysisBean" scope="request"
+/><div class="testsFilter">
+  Show tests failed in
+  <select id="filterBuildTypeId">
+    <option value="">any build configuration</option>
+    <c:forEach items="${bean.buildTypes}" var="bt">
+      <option value="${bt.buildTypeId}"><c:out value="${bt.fullName}"/></option>
+    </c:forEach>
+  </select>
+  on agent
+  <input type="text" id="filterAgent" class="textField" size="20" placeholder="any agent"/>
+  sorted by failure rate
+  <select id="filterOrder">
+    <option value="desc">highest first</option>
+    <option value="asc">lowest first</option>
+  </select>
+  <input type="button" class="btn btn_mini" value="Apply" onclick="return BS.Flaky.Tests.applyFilter();"/>
+</div>
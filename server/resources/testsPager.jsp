@@ -0,0 +1,13 @@
+<%@ include file="/include.jsp"
+%><jsp:useBean id="testsPage" type="jetbrains.buildServer.serverSide.flaky.web.TestsPage" scope="request"
+/><%--@elvariable id="pageType" type="java.lang.String"--%>
+<div class="testsPager" id="testsPager-${pageType}" data-type="${pageType}"
+     data-offset="${testsPage.offset + fn:length(testsPage.tests)}" data-total="${testsPage.total}">
+  <table class="moreTests"></table>
+  <div class="pagerActions" <c:if test="${not testsPage.hasMore}">style="display: none;"</c:if>>
+    <span class="shown">Shown <span class="shownNumber">${testsPage.offset + fn:length(testsPage.tests)}</span>
+      of <span class="totalNumber">${testsPage.total}</span> tests.</span>
+    <a href="#" onclick="return BS.Flaky.Tests.showMore('${pageType}');">Show more &raquo;</a>
+    <forms:progressRing className="progressRingInline" style="display: none;"/>
+  </div>
+</div>
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+/**
+ * Controls the number of tests fetched from the DB in one query.
+ * <p>
+ * The size grows while the queries are fast and shrinks as soon as the query
+ * takes longer than the target latency, so that one batch never blocks the DB for long.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class AdaptiveBatchSize {
+  private final int myMinSize;
+  private final int myMaxSize;
+  private final long myTargetMillis;
+
+  private int mySize;
+
+  public AdaptiveBatchSize(int minSize, int maxSize, int initialSize, long targetMillis) {
+    myMinSize = minSize;
+    myMaxSize = maxSize;
+    myTargetMillis = targetMillis;
+    mySize = clamp(initialSize);
+  }
+
+  public int getSize() {
+    return mySize;
+  }
+
+  /**
+   * Adjusts the batch size according to the measured query time.
+   *
+   * @param batchSize the number of tests actually fetched
+   * @param elapsedMillis the time spent on the query
+   */
+  public void update(int batchSize, long elapsedMillis) {
+    if (batchSize < mySize) {
+      // The last (incomplete) batch says nothing about the current size.
+      return;
+    }
+
+    if (elapsedMillis <= 0) {
+      mySize = clamp(mySize * 2);
+    } else if (elapsedMillis < myTargetMillis) {
+      // Grow smoothly, but not more than twice at once.
+      long proposed = mySize * myTargetMillis / elapsedMillis;
+      mySize = clamp((int) Math.min(proposed, 2L * mySize));
+    } else if (elapsedMillis > myTargetMillis) {
+      mySize = clamp((int) (mySize * myTargetMillis / elapsedMillis));
+    }
+  }
+
+  private int clamp(int size) {
+    return Math.max(myMinSize, Math.min(myMaxSize, size));
+  }
+}
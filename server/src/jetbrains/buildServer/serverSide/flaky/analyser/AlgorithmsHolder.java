@@ -24,11 +24,20 @@ public class AlgorithmsHolder {
     myBuildServer = buildServer;
   }
 
+  /**
+   * Returns a new oracle for one analysis, to be shared by all its algorithms.
+   */
   @NotNull
-  public List<CheckAlgorithm> getAlgorithms(@NotNull TestAnalysisSettings settings) {
+  public BuildChangesOracle createChangesOracle() {
+    return new BuildChangesOracle(myBuildServer);
+  }
+
+  @NotNull
+  public List<CheckAlgorithm> getAlgorithms(@NotNull TestAnalysisSettings settings,
+                                            @NotNull BuildChangesOracle changesOracle) {
     List<CheckAlgorithm> algorithms = new ArrayList<CheckAlgorithm>();
     algorithms.add(new SimpleStatusAlgorithm());
-    algorithms.add(new ModificationBasedAlgorithm(myBuildServer));
+    algorithms.add(new ModificationBasedAlgorithm(changesOracle));
     algorithms.add(new StatisticAnalysisAlgorithm(settings));
     return algorithms;
   }
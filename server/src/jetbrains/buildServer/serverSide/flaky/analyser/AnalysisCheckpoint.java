@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import jetbrains.buildServer.serverSide.flaky.data.TestData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A serializable state of a full analysis which is still running (or has been interrupted):
+ * the ids of the processed tests and the data of the classified ones.
+ * <p>
+ * The analysis resumed from a checkpoint skips the processed tests.
+ * The streaming analysis also skips the rows of the tests up to the scan position
+ * (the rows come ordered by test id).
+ * <p>
+ * Updated by the analysis workers concurrently.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class AnalysisCheckpoint implements Serializable {
+  // The checkpoints are persisted: keeps the ones written before an upgrade readable.
+  private static final long serialVersionUID = 2981705358352529372L;
+
+  private final String mySettingsKey;
+  private final long myFromBuildId;
+  private final Date myStartDate;
+  private final TestAnalysisSettings mySettings;
+
+  private final Set<Long> myProcessedTests = new HashSet<Long>();
+  private final List<TestData> myTests = new ArrayList<TestData>();
+  private Long myScanPosition = null;
+
+  public AnalysisCheckpoint(@NotNull String settingsKey,
+                            long fromBuildId,
+                            @NotNull Date startDate,
+                            @NotNull TestAnalysisSettings settings) {
+    mySettingsKey = settingsKey;
+    myFromBuildId = fromBuildId;
+    myStartDate = startDate;
+    mySettings = settings;
+  }
+
+  /**
+   * Returns whether the analysis with the given settings can be resumed from this checkpoint.
+   */
+  public boolean isCompatible(@NotNull String settingsKey, long fromBuildId) {
+    return mySettingsKey.equals(settingsKey) && myFromBuildId == fromBuildId;
+  }
+
+  @NotNull
+  public Date getStartDate() {
+    return myStartDate;
+  }
+
+  @NotNull
+  public TestAnalysisSettings getSettings() {
+    return mySettings;
+  }
+
+  public synchronized boolean isProcessed(long testId) {
+    return myProcessedTests.contains(testId);
+  }
+
+  public synchronized int getProcessedSize() {
+    return myProcessedTests.size();
+  }
+
+  /**
+   * Records the test as processed, the data is null if the test isn't classified.
+   */
+  public synchronized void addProcessed(long testId, @Nullable TestData testData) {
+    if (myProcessedTests.add(testId) && testData != null) {
+      myTests.add(testData);
+    }
+  }
+
+  /**
+   * Returns the data of the classified tests, in the order they were processed.
+   */
+  @NotNull
+  public synchronized List<TestData> getTests() {
+    return new ArrayList<TestData>(myTests);
+  }
+
+  /**
+   * Returns the id of the last test whose rows have been completely read by the streaming analysis,
+   * or null if the scan hasn't started.
+   */
+  @Nullable
+  public synchronized Long getScanPosition() {
+    return myScanPosition;
+  }
+
+  public synchronized void setScanPosition(long testId) {
+    myScanPosition = testId;
+  }
+
+  private synchronized void writeObject(@NotNull ObjectOutputStream output) throws IOException {
+    output.defaultWriteObject();
+  }
+}
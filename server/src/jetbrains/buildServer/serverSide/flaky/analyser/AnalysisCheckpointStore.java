@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores the checkpoints of the running full analyses on disk, one file per project.
+ * A checkpoint is written to a temporary file first, so a crash while writing keeps the previous one.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisCheckpointStore {
+  private static final String EXTENSION = ".checkpoint";
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  private final File myDirectory;
+
+  public AnalysisCheckpointStore(@NotNull ServerPaths serverPaths) {
+    this(new File(serverPaths.getPluginDataDirectory(), "flaky/checkpoints"));
+  }
+
+  AnalysisCheckpointStore(@NotNull File directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * Returns the ids of the projects which have an unfinished analysis.
+   */
+  @NotNull
+  public Set<String> getProjectIds() {
+    Set<String> projectIds = new HashSet<String>();
+    File[] files = myDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(EXTENSION)) {
+          projectIds.add(name.substring(0, name.length() - EXTENSION.length()));
+        }
+      }
+    }
+    return projectIds;
+  }
+
+  /**
+   * Reads the checkpoint of the project, returns null if there is none or it can't be read.
+   */
+  @Nullable
+  AnalysisCheckpoint load(@NotNull String projectId) {
+    File file = getFile(projectId);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    ObjectInputStream input = null;
+    try {
+      input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file))) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+          // The checkpoint classes belong to the plugin.
+          return Class.forName(description.getName(), false, AnalysisCheckpointStore.class.getClassLoader());
+        }
+      };
+      return (AnalysisCheckpoint) input.readObject();
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to read the tests analysis checkpoint from " + file, e);
+      return null;
+    } catch (ClassNotFoundException e) {
+      Loggers.SERVER.warn("Failed to read the tests analysis checkpoint from " + file, e);
+      return null;
+    } catch (ClassCastException e) {
+      Loggers.SERVER.warn("Failed to read the tests analysis checkpoint from " + file, e);
+      return null;
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * Replaces the checkpoint of the project.
+   */
+  synchronized void save(@NotNull String projectId, @NotNull AnalysisCheckpoint checkpoint) {
+    File file = getFile(projectId);
+    File tempFile = new File(myDirectory, projectId + TEMP_EXTENSION);
+    ObjectOutputStream output = null;
+    try {
+      FileUtil.createDir(myDirectory);
+      output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      output.writeObject(checkpoint);
+      output.close();
+      output = null;
+
+      if (!tempFile.renameTo(file)) {
+        // Windows doesn't replace the existing file.
+        FileUtil.delete(file);
+        if (!tempFile.renameTo(file)) {
+          throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to store the tests analysis checkpoint of " + projectId + " in " + file, e);
+      FileUtil.delete(tempFile);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+
+  synchronized void delete(@NotNull String projectId) {
+    FileUtil.delete(getFile(projectId));
+  }
+
+  @NotNull
+  private File getFile(@NotNull String projectId) {
+    return new File(myDirectory, projectId + EXTENSION);
+  }
+}
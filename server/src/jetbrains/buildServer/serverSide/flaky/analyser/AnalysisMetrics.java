@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.flaky.data.AnalysisStatistics;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates the timings and counters of the analysis done by one worker.
+ * Not thread-safe: confined to the worker, the metrics of the parallel workers are merged at the end.
+ * <p>
+ * The algorithms are indexed in the order of {@link AnalysisWorker#getAlgorithms()},
+ * which is the same for all workers of an analysis.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class AnalysisMetrics {
+  private final String[] myAlgorithmNames;
+  private final long[] myAlgorithmNanos;
+  private final int[] myClassified;
+
+  private long myFailingTestsNanos;
+  private long myDbNanos;
+  private int myQueries;
+  private int myTestsFetched;
+  private long myRowsFetched;
+  private long myBuildTestDataNanos;
+
+  public AnalysisMetrics(@NotNull List<CheckAlgorithm> algorithms) {
+    myAlgorithmNames = new String[algorithms.size()];
+    for (int i = 0; i < myAlgorithmNames.length; i++) {
+      myAlgorithmNames[i] = algorithms.get(i).getClass().getSimpleName();
+    }
+    myAlgorithmNanos = new long[myAlgorithmNames.length];
+    myClassified = new int[myAlgorithmNames.length];
+  }
+
+  public void addFailingTestsTime(long nanos) {
+    myFailingTestsNanos += nanos;
+  }
+
+  /**
+   * Records a query fetching the runs of the given number of tests.
+   */
+  public void addQuery(long nanos, int tests) {
+    myDbNanos += nanos;
+    myQueries++;
+    myTestsFetched += tests;
+  }
+
+  public void addRow() {
+    myRowsFetched++;
+  }
+
+  public void addAlgorithmTime(int algorithm, long nanos, boolean classified) {
+    myAlgorithmNanos[algorithm] += nanos;
+    if (classified) {
+      myClassified[algorithm]++;
+    }
+  }
+
+  public void addBuildTestDataTime(long nanos) {
+    myBuildTestDataNanos += nanos;
+  }
+
+  public void add(@NotNull AnalysisMetrics metrics) {
+    myFailingTestsNanos += metrics.myFailingTestsNanos;
+    myDbNanos += metrics.myDbNanos;
+    myQueries += metrics.myQueries;
+    myTestsFetched += metrics.myTestsFetched;
+    myRowsFetched += metrics.myRowsFetched;
+    myBuildTestDataNanos += metrics.myBuildTestDataNanos;
+    for (int i = 0; i < myAlgorithmNanos.length; i++) {
+      myAlgorithmNanos[i] += metrics.myAlgorithmNanos[i];
+      myClassified[i] += metrics.myClassified[i];
+    }
+  }
+
+  @NotNull
+  public AnalysisStatistics toStatistics() {
+    List<AnalysisStatistics.AlgorithmStatistics> algorithms = new ArrayList<AnalysisStatistics.AlgorithmStatistics>();
+    for (int i = 0; i < myAlgorithmNames.length; i++) {
+      algorithms.add(new AnalysisStatistics.AlgorithmStatistics(myAlgorithmNames[i], myAlgorithmNanos[i], myClassified[i]));
+    }
+    return new AnalysisStatistics(myFailingTestsNanos, myDbNanos, myQueries, myTestsFetched, myRowsFetched,
+                                  myBuildTestDataNanos, algorithms);
+  }
+}
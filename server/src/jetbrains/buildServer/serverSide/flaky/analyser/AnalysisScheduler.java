@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisProgress;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisProgressManager;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the full analyses of the projects on a bounded pool of threads.
+ * <p>
+ * The requests are served in the FIFO order, one request per project at most:
+ * a project which is being analysed or waits in the queue can't be scheduled again.
+ * The queued and running analyses are cancelled through the progress of the project.
+ * <p>
+ * The analyses interrupted by the server shutdown are resumed on startup from their checkpoints.
+ * <p>
+ * The scheduler also owns the pool of the workers which analyse the chunks of the tests in parallel
+ * (see {@link TestsAnalyser#analyseTestsInProject}), shared by all the running analyses.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisScheduler extends BuildServerAdapter {
+  private static final String THREADS_PROPERTY = "teamcity.flakyTests.scheduler.threads";
+  private static final int DEFAULT_THREADS = 2;
+
+  // The workers of an analysis, see AnalysisWorkers: half of the cores are left to the rest of the server.
+  private static final String WORKERS_PROPERTY = "teamcity.flakyTests.analysis.threads";
+  private static final int DEFAULT_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+  private final TestsAnalyser myAnalyser;
+  private final TestAnalysisProgressManager myProgressManager;
+  private final ProjectManager myProjectManager;
+  private final AnalysisCheckpointStore myCheckpointStore;
+  private final ExecutorService myExecutor;
+  private final ExecutorService myWorkersExecutor;   // null if the analysis runs on its own thread only
+  private final int myWorkers;
+
+  // Guarded by itself.
+  private final LinkedList<Request> myQueue = new LinkedList<Request>();
+
+  public AnalysisScheduler(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                           @NotNull TestsAnalyser analyser,
+                           @NotNull TestAnalysisProgressManager progressManager,
+                           @NotNull ProjectManager projectManager,
+                           @NotNull AnalysisCheckpointStore checkpointStore) {
+    myAnalyser = analyser;
+    myProgressManager = progressManager;
+    myProjectManager = projectManager;
+    myCheckpointStore = checkpointStore;
+
+    int threads = Math.max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+    myExecutor = Executors.newFixedThreadPool(threads, createThreadFactory("Tests analyser "));
+    myWorkers = Math.max(1, TeamCityProperties.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS));
+    myWorkersExecutor = myWorkers > 1
+                        ? Executors.newFixedThreadPool(myWorkers, createThreadFactory("Tests analyser worker "))
+                        : null;
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * Puts the analysis of the project to the queue.
+   *
+   * @return false if the project is already analysed or queued
+   */
+  public boolean schedule(@NotNull SProject project, @NotNull TestAnalysisSettings settings) {
+    TestAnalysisProgress progress = myProgressManager.tryLock(project.getProjectId());
+    if (progress == null) {
+      return false;
+    }
+
+    progress.start("Waiting in the queue...");
+    synchronized (myQueue) {
+      myQueue.add(new Request(project, settings, progress));
+      updateQueuePositions();
+    }
+
+    // One task per request: a task takes the head of the queue, so the order is kept.
+    myExecutor.execute(new Runnable() {
+      public void run() {
+        runNext();
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Cancels the analysis of the project, either waiting in the queue or running.
+   *
+   * @return false if the project isn't analysed
+   */
+  public boolean cancel(@NotNull SProject project) {
+    TestAnalysisProgress progress = myProgressManager.findProgressFor(project.getProjectId());
+    if (progress == null || !progress.cancel()) {
+      return false;
+    }
+
+    boolean removed = false;
+    synchronized (myQueue) {
+      Iterator<Request> iterator = myQueue.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().myProgress == progress) {
+          iterator.remove();
+          removed = true;
+        }
+      }
+      updateQueuePositions();
+    }
+
+    if (removed) {
+      // Not started yet, the analyser won't release it.
+      progress.finish();
+      myProgressManager.clearProgressFor(project);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the 1-based position of the project in the queue, or 0 if it isn't waiting there.
+   */
+  public int getQueuePosition(@NotNull SProject project) {
+    synchronized (myQueue) {
+      int position = 1;
+      for (Request request : myQueue) {
+        if (request.myProject.getProjectId().equals(project.getProjectId())) {
+          return position;
+        }
+        ++position;
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the number of the analyses waiting in the queue.
+   */
+  public int getQueueSize() {
+    synchronized (myQueue) {
+      return myQueue.size();
+    }
+  }
+
+  /**
+   * Returns whether the project is being analysed or waits in the queue.
+   */
+  public boolean isScheduled(@NotNull SProject project) {
+    TestAnalysisProgress progress = myProgressManager.findProgressFor(project.getProjectId());
+    return progress != null && progress.getLock().get();
+  }
+
+  @Override
+  public void serverStartup() {
+    for (String projectId : myCheckpointStore.getProjectIds()) {
+      SProject project = myProjectManager.findProjectById(projectId);
+      AnalysisCheckpoint checkpoint = project != null ? myCheckpointStore.load(projectId) : null;
+      if (checkpoint == null) {
+        myCheckpointStore.delete(projectId);
+        continue;
+      }
+
+      Loggers.SERVER.info("Resuming the unfinished tests analysis in project " + projectId);
+      schedule(project, checkpoint.getSettings());
+    }
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+    if (myWorkersExecutor != null) {
+      myWorkersExecutor.shutdownNow();
+    }
+  }
+
+  private void runNext() {
+    Request request;
+    synchronized (myQueue) {
+      request = myQueue.poll();
+      updateQueuePositions();
+    }
+    if (request == null) {
+      return;   // the request of this task has been cancelled
+    }
+
+    try {
+      myAnalyser.analyseTestsInProject(request.myProject, request.mySettings, request.myProgress,
+                                       myWorkersExecutor, myWorkers);
+    } catch (Throwable e) {
+      Loggers.SERVER.warn("Tests analysis in project " + request.myProject.getProjectId() + " failed", e);
+    }
+  }
+
+  private void updateQueuePositions() {
+    int position = 1;
+    for (Request request : myQueue) {
+      request.myProgress.setCurrentStep("Waiting in the queue (position " + position + ")...");
+      ++position;
+    }
+  }
+
+  @NotNull
+  private static ThreadFactory createThreadFactory(@NotNull final String namePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      @NotNull
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static class Request {
+    private final SProject myProject;
+    private final TestAnalysisSettings mySettings;
+    private final TestAnalysisProgress myProgress;
+
+    private Request(@NotNull SProject project,
+                    @NotNull TestAnalysisSettings settings,
+                    @NotNull TestAnalysisProgress progress) {
+      myProject = project;
+      mySettings = settings;
+      myProgress = progress;
+    }
+  }
+}
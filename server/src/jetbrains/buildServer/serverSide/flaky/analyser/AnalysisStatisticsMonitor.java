@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.flaky.data.AnalysisStatistics;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sums up the statistics of the finished analyses and exposes them through JMX.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisStatisticsMonitor extends BuildServerAdapter implements AnalysisStatisticsMonitorMBean {
+  private static final String OBJECT_NAME = "jetbrains.buildServer.flakyTests:type=AnalysisStatistics";
+
+  private int myAnalysesCount;
+  private long myFailingTestsMillis;
+  private long myDbMillis;
+  private long myQueries;
+  private long myTestsFetched;
+  private long myRowsFetched;
+  private long myBuildTestDataMillis;
+  // algorithm name -> [millis, classified tests]
+  private final Map<String, long[]> myAlgorithms = new LinkedHashMap<String, long[]>();
+  private String myLastAnalysis = "";
+
+  public AnalysisStatisticsMonitor(@NotNull EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(this);
+    try {
+      getMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      Loggers.SERVER.warn("Failed to register the tests analysis MBean " + OBJECT_NAME, e);
+    }
+  }
+
+  public synchronized void analysisFinished(@NotNull String projectId, @NotNull AnalysisStatistics statistics) {
+    myAnalysesCount++;
+    myFailingTestsMillis += statistics.getFailingTestsMillis();
+    myDbMillis += statistics.getDbMillis();
+    myQueries += statistics.getQueries();
+    myTestsFetched += statistics.getTestsFetched();
+    myRowsFetched += statistics.getRowsFetched();
+    myBuildTestDataMillis += statistics.getBuildTestDataMillis();
+    for (AnalysisStatistics.AlgorithmStatistics algorithm : statistics.getAlgorithms()) {
+      long[] counters = myAlgorithms.get(algorithm.getName());
+      if (counters == null) {
+        counters = new long[2];
+        myAlgorithms.put(algorithm.getName(), counters);
+      }
+      counters[0] += algorithm.getMillis();
+      counters[1] += algorithm.getClassified();
+    }
+    myLastAnalysis = projectId + ": " + statistics;
+  }
+
+  public synchronized int getAnalysesCount() {
+    return myAnalysesCount;
+  }
+
+  public synchronized long getFailingTestsMillis() {
+    return myFailingTestsMillis;
+  }
+
+  public synchronized long getDbMillis() {
+    return myDbMillis;
+  }
+
+  public synchronized long getQueries() {
+    return myQueries;
+  }
+
+  public synchronized long getTestsFetched() {
+    return myTestsFetched;
+  }
+
+  public synchronized long getRowsFetched() {
+    return myRowsFetched;
+  }
+
+  public synchronized long getBuildTestDataMillis() {
+    return myBuildTestDataMillis;
+  }
+
+  public synchronized String[] getAlgorithms() {
+    String[] result = new String[myAlgorithms.size()];
+    int i = 0;
+    for (Map.Entry<String, long[]> entry : myAlgorithms.entrySet()) {
+      long[] counters = entry.getValue();
+      result[i++] = entry.getKey() + ": " + counters[0] + " ms, " + counters[1] + " classified";
+    }
+    return result;
+  }
+
+  public synchronized String getLastAnalysis() {
+    return myLastAnalysis;
+  }
+
+  public synchronized void reset() {
+    myAnalysesCount = 0;
+    myFailingTestsMillis = 0;
+    myDbMillis = 0;
+    myQueries = 0;
+    myTestsFetched = 0;
+    myRowsFetched = 0;
+    myBuildTestDataMillis = 0;
+    myAlgorithms.clear();
+    myLastAnalysis = "";
+  }
+
+  @Override
+  public void serverShutdown() {
+    try {
+      getMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      Loggers.SERVER.warn("Failed to unregister the tests analysis MBean " + OBJECT_NAME, e);
+    }
+  }
+
+  @NotNull
+  private static MBeanServer getMBeanServer() {
+    return ManagementFactory.getPlatformMBeanServer();
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+/**
+ * The JMX view of the tests analyses finished since the server start (or the last reset).
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public interface AnalysisStatisticsMonitorMBean {
+  int getAnalysesCount();
+
+  long getFailingTestsMillis();
+
+  long getDbMillis();
+
+  long getQueries();
+
+  long getTestsFetched();
+
+  long getRowsFetched();
+
+  long getBuildTestDataMillis();
+
+  /**
+   * Returns the time spent in each algorithm and the number of tests it has classified.
+   */
+  String[] getAlgorithms();
+
+  /**
+   * Returns the summary of the last finished analysis.
+   */
+  String getLastAnalysis();
+
+  void reset();
+}
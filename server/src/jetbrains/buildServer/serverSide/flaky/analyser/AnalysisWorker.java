@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Holds the mutable state needed to analyse tests: the algorithms, the buffers, the counters and the metrics.
+ * <p>
+ * Build type ids and agent names are mapped to dense ints by the dictionaries of the worker,
+ * the strings are decoded only when the test data is built.
+ * <p>
+ * The instance is confined to one thread at a time, several analysis threads
+ * must use separate workers.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class AnalysisWorker {
+  private final List<CheckAlgorithm> myAlgorithms;
+  private final AdaptiveBatchSize myBatchSize;
+  private final NameDictionary myBuildTypes = new NameDictionary();
+  private final NameDictionary myAgents = new NameDictionary();
+  private final RunBuffer myBuffer = new RunBuffer(myBuildTypes, myAgents);
+  private final Map<Long, RunBuffer> myBuffers = new HashMap<Long, RunBuffer>();
+  private final List<RunBuffer> mySpareBuffers = new ArrayList<RunBuffer>();
+  private final FailureCounters myBuildTypeCounters = new FailureCounters();
+  private final FailureCounters myAgentCounters = new FailureCounters();
+  private final Set<String> myAnalysedBuildTypeIds;
+  private final BitSet myAnalysedBuildTypes = new BitSet();
+  private final AnalysisMetrics myMetrics;
+
+  public AnalysisWorker(@NotNull List<CheckAlgorithm> algorithms,
+                        @NotNull AdaptiveBatchSize batchSize,
+                        @NotNull Set<String> buildTypeIds) {
+    myAlgorithms = algorithms;
+    myBatchSize = batchSize;
+    myMetrics = new AnalysisMetrics(algorithms);
+    myAnalysedBuildTypeIds = buildTypeIds;
+    for (String buildTypeId : buildTypeIds) {
+      myAnalysedBuildTypes.set(myBuildTypes.intern(buildTypeId));
+    }
+  }
+
+  @NotNull
+  public List<CheckAlgorithm> getAlgorithms() {
+    return myAlgorithms;
+  }
+
+  @NotNull
+  public AdaptiveBatchSize getBatchSize() {
+    return myBatchSize;
+  }
+
+  @NotNull
+  public AnalysisMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  @NotNull
+  public NameDictionary getBuildTypes() {
+    return myBuildTypes;
+  }
+
+  @NotNull
+  public NameDictionary getAgents() {
+    return myAgents;
+  }
+
+  @NotNull
+  public Set<String> getAnalysedBuildTypeIds() {
+    return myAnalysedBuildTypeIds;
+  }
+
+  /**
+   * Returns the int id of the build type if it is analysed, or {@link NameDictionary#NOT_FOUND}.
+   */
+  public int findAnalysedBuildType(@NotNull String buildTypeId) {
+    int buildType = myBuildTypes.find(buildTypeId);
+    return buildType != NameDictionary.NOT_FOUND && myAnalysedBuildTypes.get(buildType) ?
+           buildType :
+           NameDictionary.NOT_FOUND;
+  }
+
+  @NotNull
+  public FailureCounters getBuildTypeCounters() {
+    return myBuildTypeCounters;
+  }
+
+  @NotNull
+  public FailureCounters getAgentCounters() {
+    return myAgentCounters;
+  }
+
+  /**
+   * Returns the buffer for the data of a single test (reused for all tests).
+   */
+  @NotNull
+  public RunBuffer getBuffer() {
+    return myBuffer;
+  }
+
+  /**
+   * Returns the buffer for the given test within the current batch,
+   * the buffers of the previous batches are reused.
+   */
+  @NotNull
+  public RunBuffer getBuffer(long testId) {
+    RunBuffer buffer = myBuffers.get(testId);
+    if (buffer == null) {
+      buffer = mySpareBuffers.isEmpty() ?
+               new RunBuffer(myBuildTypes, myAgents) :
+               mySpareBuffers.remove(mySpareBuffers.size() - 1);
+      buffer.reset(testId);
+      myBuffers.put(testId, buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns the buffer filled for the given test within the current batch, if any.
+   */
+  public RunBuffer findBuffer(long testId) {
+    return myBuffers.get(testId);
+  }
+
+  /**
+   * Releases all the buffers of the current batch.
+   */
+  public void releaseBuffers() {
+    mySpareBuffers.addAll(myBuffers.values());
+    myBuffers.clear();
+  }
+}
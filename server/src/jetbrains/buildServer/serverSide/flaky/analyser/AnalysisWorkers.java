@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * The workers of one analysis and the pool of threads which runs their tasks.
+ * <p>
+ * A task runs on a worker taken from the free ones and returns it when done, so each worker is used
+ * by one thread at a time: the algorithms and the buffers are never shared (only the thread-safe
+ * changes oracle is). The pool is shared with the other analyses, it has as many threads as
+ * an analysis has workers, so the tasks of this analysis never wait for each other.
+ * <p>
+ * Without the pool there is one worker, and the tasks run on the analysis thread when submitted.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class AnalysisWorkers {
+  private final List<AnalysisWorker> myWorkers;
+  private final BlockingQueue<AnalysisWorker> myFreeWorkers;
+  private final ExecutorService myExecutor;
+  private final List<Future<?>> myTasks = new ArrayList<Future<?>>();
+
+  public AnalysisWorkers(@NotNull List<AnalysisWorker> workers, @Nullable ExecutorService executor) {
+    myWorkers = workers;
+    myFreeWorkers = new ArrayBlockingQueue<AnalysisWorker>(workers.size(), false, workers);
+    myExecutor = executor;
+  }
+
+  public int size() {
+    return myWorkers.size();
+  }
+
+  /**
+   * Returns whether the tasks run in parallel.
+   */
+  public boolean isParallel() {
+    return myExecutor != null && myWorkers.size() > 1;
+  }
+
+  /**
+   * Returns the worker whose metrics are reported, see {@link #mergeMetrics()}.
+   */
+  @NotNull
+  public AnalysisWorker getFirstWorker() {
+    return myWorkers.get(0);
+  }
+
+  /**
+   * Takes a free worker, waiting for a running task to return one.
+   * The worker must be passed to {@link #submit(AnalysisWorker, Task)}.
+   *
+   * @throws CancellationException if the thread is interrupted while waiting
+   */
+  @NotNull
+  public AnalysisWorker take() throws CancellationException {
+    try {
+      return myFreeWorkers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for a free worker");
+    }
+  }
+
+  /**
+   * Runs the task on a free worker.
+   */
+  @NotNull
+  public <T> Future<T> submit(@NotNull final Task<T> task) {
+    return submit(new Callable<T>() {
+      public T call() throws Exception {
+        return runAndRelease(take(), task);
+      }
+    });
+  }
+
+  /**
+   * Runs the task on the worker taken before, the worker is returned when the task is done.
+   */
+  @NotNull
+  public <T> Future<T> submit(@NotNull final AnalysisWorker worker, @NotNull final Task<T> task) {
+    return submit(new Callable<T>() {
+      public T call() throws Exception {
+        return runAndRelease(worker, task);
+      }
+    });
+  }
+
+  /**
+   * Adds the metrics of the other workers to the metrics of the first one.
+   * Must be called when all the tasks are done.
+   */
+  public void mergeMetrics() {
+    for (int i = 1; i < myWorkers.size(); i++) {
+      getFirstWorker().getMetrics().add(myWorkers.get(i).getMetrics());
+    }
+  }
+
+  /**
+   * Stops the tasks which haven't finished, if one of them has failed or the analysis is cancelled.
+   */
+  public void cancel() {
+    for (Future<?> task : myTasks) {
+      task.cancel(true);
+    }
+    myTasks.clear();
+  }
+
+  /**
+   * Waits for the task and returns its result, the exception of the task is rethrown.
+   */
+  public static <T> T getResult(@NotNull Future<T> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Tests analysis interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException("Tests analysis failed", cause);
+    }
+  }
+
+  @NotNull
+  private <T> Future<T> submit(@NotNull Callable<T> callable) {
+    Future<T> future;
+    if (myExecutor != null) {
+      future = myExecutor.submit(callable);
+    } else {
+      FutureTask<T> task = new FutureTask<T>(callable);
+      task.run();
+      future = task;
+    }
+    myTasks.add(future);
+    return future;
+  }
+
+  private <T> T runAndRelease(@NotNull AnalysisWorker worker, @NotNull Task<T> task) throws Exception {
+    try {
+      return task.run(worker);
+    } finally {
+      myFreeWorkers.add(worker);
+    }
+  }
+
+  /**
+   * A part of the analysis run by one worker.
+   */
+  interface Task<T> {
+    T run(@NotNull AnalysisWorker worker) throws Exception;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Answers whether a build has no changes since the previous build.
+ * <p>
+ * The answers are cached for the lifetime of the instance: one instance is shared
+ * by all the workers of one analysis, because the tests failing together
+ * ask about the same builds. Safe to use from several threads.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class BuildChangesOracle {
+  private final SBuildServer myBuildServer;
+  private final ConcurrentMap<Long, Boolean> myWithoutChanges = new ConcurrentHashMap<Long, Boolean>();
+
+  public BuildChangesOracle(@NotNull SBuildServer buildServer) {
+    myBuildServer = buildServer;
+  }
+
+  public boolean isBuildWithoutChanges(long buildId) {
+    Boolean withoutChanges = myWithoutChanges.get(buildId);
+    if (withoutChanges == null) {
+      // Two threads may load the same build at worst, the answer is the same.
+      SBuild build = myBuildServer.findBuildInstanceById(buildId);
+      withoutChanges = build != null && build.getChanges(SelectPrevBuildPolicy.SINCE_LAST_BUILD, false).isEmpty();
+      myWithoutChanges.put(buildId, withoutChanges);
+    }
+    return withoutChanges;
+  }
+
+  /**
+   * Returns the number of distinct builds looked up so far.
+   */
+  public int getBuildsNumber() {
+    return myWithoutChanges.size();
+  }
+}
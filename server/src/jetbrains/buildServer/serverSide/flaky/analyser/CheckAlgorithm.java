@@ -8,8 +8,6 @@ import jetbrains.buildServer.serverSide.STest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
-
 /**
  * Represents the analysis algorithm for classifying the test into one of categories.
  *
@@ -20,11 +18,12 @@ import java.util.List;
 public interface CheckAlgorithm {
   /**
    * Returns the check result of a single test based on raw data of its runs.
+   * The buffer is reused for other tests, so its contents must not be kept after the call.
    *
    * @param test the test to analyse
-   * @param rawDataList the raw data list
+   * @param runs the runs of the test, sorted by modification
    * @return check result
    */
   @Nullable
-  CheckResult checkTest(@NotNull STest test, @NotNull List<RawData> rawDataList);
+  CheckResult checkTest(@NotNull STest test, @NotNull RunBuffer runs);
 }
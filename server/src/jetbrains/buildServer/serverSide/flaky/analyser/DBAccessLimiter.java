@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of the analysis queries running concurrently on the whole server,
+ * whatever number of analyses and worker threads is active.
+ * The waiting threads are served in the FIFO order.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class DBAccessLimiter {
+  private static final String MAX_QUERIES_PROPERTY = "teamcity.flakyTests.db.maxConcurrentQueries";
+  private static final int DEFAULT_MAX_QUERIES = 4;
+
+  private final Semaphore mySemaphore;
+
+  public DBAccessLimiter() {
+    mySemaphore = new Semaphore(Math.max(1, TeamCityProperties.getInteger(MAX_QUERIES_PROPERTY, DEFAULT_MAX_QUERIES)), true);
+  }
+
+  /**
+   * Waits for a free slot, must be followed by {@link #release()}.
+   *
+   * @throws CancellationException if the thread is interrupted while waiting
+   */
+  public void acquire() throws CancellationException {
+    try {
+      mySemaphore.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for the DB");
+    }
+  }
+
+  public void release() {
+    mySemaphore.release();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Looks for the tables and the indexes of the plugin in the DB metadata.
+ * The names are stored in upper case by Oracle and HSQLDB, in lower case by the others,
+ * so both are tried.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class DBMetaData {
+  private DBMetaData() {
+  }
+
+  public static boolean tableExists(@NotNull DatabaseMetaData metaData, @NotNull String table) throws SQLException {
+    for (String name : new String[]{table.toLowerCase(), table.toUpperCase()}) {
+      ResultSet rs = metaData.getTables(null, null, name, null);
+      try {
+        if (rs.next()) {
+          return true;
+        }
+      } finally {
+        rs.close();
+      }
+    }
+    return false;
+  }
+
+  public static boolean indexExists(@NotNull DatabaseMetaData metaData,
+                                    @NotNull String table,
+                                    @NotNull String index) throws SQLException {
+    for (String name : new String[]{table.toLowerCase(), table.toUpperCase()}) {
+      ResultSet rs = metaData.getIndexInfo(null, null, name, false, true);
+      try {
+        while (rs.next()) {
+          if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+            return true;
+          }
+        }
+      } finally {
+        rs.close();
+      }
+    }
+    return false;
+  }
+}
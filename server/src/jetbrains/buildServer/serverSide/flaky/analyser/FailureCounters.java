@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.flaky.data.FailureRate;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the runs and the failures of one test per int id of a {@link NameDictionary}
+ * (build type or agent). The counters are reused for all tests.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class FailureCounters {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] myRuns = new int[INITIAL_CAPACITY];
+  private int[] myFailures = new int[INITIAL_CAPACITY];
+  // The ids with non-zero counters, so that the reset doesn't depend on the dictionary size.
+  private int[] myUsedIds = new int[INITIAL_CAPACITY];
+  private int myUsedSize;
+
+  public void add(int id, boolean failure) {
+    add(id, failure, 1);
+  }
+
+  public void add(int id, boolean failure, int runs) {
+    if (id >= myRuns.length) {
+      int capacity = Math.max(id + 1, myRuns.length * 2);
+      myRuns = Arrays.copyOf(myRuns, capacity);
+      myFailures = Arrays.copyOf(myFailures, capacity);
+    }
+    if (myRuns[id] == 0) {
+      if (myUsedSize == myUsedIds.length) {
+        myUsedIds = Arrays.copyOf(myUsedIds, myUsedSize * 2);
+      }
+      myUsedIds[myUsedSize++] = id;
+    }
+    myRuns[id] += runs;
+    if (failure) {
+      myFailures[id] += runs;
+    }
+  }
+
+  /**
+   * Returns the failure rates by name and resets the counters.
+   */
+  @NotNull
+  public Map<String, FailureRate> decodeAndReset(@NotNull NameDictionary names) {
+    Map<String, FailureRate> failureRates = new HashMap<String, FailureRate>();
+    for (int i = 0; i < myUsedSize; i++) {
+      int id = myUsedIds[i];
+      failureRates.put(names.getName(id), new FailureRate(myRuns[id], myFailures[id]));
+      myRuns[id] = 0;
+      myFailures[id] = 0;
+    }
+    myUsedSize = 0;
+    return failureRates;
+  }
+}
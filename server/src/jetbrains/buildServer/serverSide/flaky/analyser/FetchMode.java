@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Defines how the raw test data is fetched from the DB:
+ * <ul>
+ *   <li>per test: one query for each test</li>
+ *   <li>batched: one query for several hundreds of tests</li>
+ *   <li>streaming: one sequential scan of the whole project history</li>
+ *   <li>aggregated: one scan of the whole project history grouped by the DB: the runs with the same
+ *   status, build type, modification and agent come as one row with the number of runs</li>
+ *   <li>summary: the same groups read from the summary table of the plugin, see {@link TestRunsSummary};
+ *   for the full history only</li>
+ *   <li>incremental: only the builds finished since the previous analysis, the older runs
+ *   are taken from the stored state</li>
+ * </ul>
+ * The per-test and batched modes are the fallbacks: they are never chosen by default,
+ * only by the internal property (e.g. if the scans are too heavy for the DB).
+ * <p>
+ * All the modes use the workers of the analysis (see {@link AnalysisWorkers}): the per-test and batched
+ * modes split the tests into chunks, the scans hand the read tests over to the workers,
+ * the incremental mode fetches the new tests and analyses all of them in chunks.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+enum FetchMode {
+  PER_TEST,
+  BATCHED,
+  STREAMING,
+  AGGREGATED,
+  SUMMARY,
+  INCREMENTAL;
+
+  private static final String FETCH_MODE_PROPERTY = "teamcity.flakyTests.fetchMode";
+
+  /**
+   * Returns the mode set by the internal property, or the default one:
+   * the full history is read from the summary if it's ready or scanned at once,
+   * the recent history is analysed incrementally.
+   * The summary can't be used for a time window or before it's filled, the aggregated scan is used instead.
+   */
+  @NotNull
+  public static FetchMode getFetchMode(@NotNull TestAnalysisSettings settings, boolean summaryReady) {
+    String property = TeamCityProperties.getProperty(FETCH_MODE_PROPERTY, "");
+    for (FetchMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(property)) {
+        return mode == SUMMARY && !(summaryReady && settings.isAnalyseFullHistory()) ? AGGREGATED : mode;
+      }
+    }
+    if (settings.isAnalyseFullHistory()) {
+      return summaryReady ? SUMMARY : STREAMING;
+    }
+    return INCREMENTAL;
+  }
+}
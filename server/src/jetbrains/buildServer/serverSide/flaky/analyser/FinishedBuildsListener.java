@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResultHolder;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the analysis results up to date: re-analyses the tests of the finished builds
+ * in all the analysed projects the builds belong to.
+ * <p>
+ * The listener only remembers the build, the analysis is done in a separate thread
+ * in order not to slow down build finishing. The builds finished while the thread is busy
+ * are coalesced: the next run takes all of them, and updates each project once.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class FinishedBuildsListener extends BuildServerAdapter {
+  private static final String ENABLED_PROPERTY = "teamcity.flakyTests.realTime.enabled";
+
+  private final SBuildServer myBuildServer;
+  private final TestsAnalyser myAnalyser;
+  private final TestAnalysisResultHolder myHolder;
+  private final ExecutorService myExecutor;
+
+  // Guarded by itself: the finished builds not taken by the analysis yet.
+  private final Set<Long> myPendingBuildIds = new LinkedHashSet<Long>();
+  private final AtomicBoolean myScheduled = new AtomicBoolean();
+
+  public FinishedBuildsListener(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                                @NotNull SBuildServer buildServer,
+                                @NotNull TestsAnalyser analyser,
+                                @NotNull TestAnalysisResultHolder holder) {
+    myBuildServer = buildServer;
+    myAnalyser = analyser;
+    myHolder = holder;
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @NotNull
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Tests analyser: finished builds");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildFinished(@NotNull SRunningBuild build) {
+    if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+      return;
+    }
+
+    synchronized (myPendingBuildIds) {
+      myPendingBuildIds.add(build.getBuildId());
+    }
+    // At most one task waits in the queue, it takes all the pending builds.
+    if (myScheduled.compareAndSet(false, true)) {
+      myExecutor.submit(new Runnable() {
+        public void run() {
+          myScheduled.set(false);
+          analysePendingBuilds();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void analysePendingBuilds() {
+    List<Long> buildIds;
+    synchronized (myPendingBuildIds) {
+      buildIds = new ArrayList<Long>(myPendingBuildIds);
+      myPendingBuildIds.clear();
+    }
+
+    // projectId -> the project and its finished builds.
+    Map<String, SProject> projects = new LinkedHashMap<String, SProject>();
+    Map<String, List<SBuild>> projectBuilds = new HashMap<String, List<SBuild>>();
+    for (Long buildId : buildIds) {
+      SBuild build = myBuildServer.findBuildInstanceById(buildId);
+      SBuildType buildType = build != null ? build.getBuildType() : null;
+      SProject project = buildType != null ? buildType.getProject() : null;
+      while (project != null) {
+        if (myHolder.hasTestAnalysisResult(project)) {
+          String projectId = project.getProjectId();
+          List<SBuild> builds = projectBuilds.get(projectId);
+          if (builds == null) {
+            builds = new ArrayList<SBuild>();
+            projects.put(projectId, project);
+            projectBuilds.put(projectId, builds);
+          }
+          builds.add(build);
+        }
+        project = project.getParentProject();
+      }
+    }
+
+    for (SProject project : projects.values()) {
+      try {
+        myAnalyser.analyseFinishedBuilds(project, projectBuilds.get(project.getProjectId()));
+      } catch (Throwable e) {
+        Loggers.SERVER.warn("Failed to update the tests analysis in project " + project.getProjectId(), e);
+      }
+    }
+  }
+}
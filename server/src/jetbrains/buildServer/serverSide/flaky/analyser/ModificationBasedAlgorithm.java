@@ -4,135 +4,93 @@
  */
 package jetbrains.buildServer.serverSide.flaky.analyser;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import jetbrains.buildServer.messages.Status;
-import jetbrains.buildServer.serverSide.SBuild;
-import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.STest;
 import jetbrains.buildServer.serverSide.flaky.data.Reason;
 import jetbrains.buildServer.serverSide.flaky.data.Type;
-import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * Finds the tests which have different results on the same sources.
+ * <p>
+ * The runs are indexed by the exact (build type, modification) pair, so each test
+ * is checked in linear time.
+ * <p>
+ * Works the same on the groups of runs: the first build of a group is the first run of it,
+ * the last build of a group counts for the maximum build id of the key.
+ *
  * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
  * @since 8.0
  */
 public class ModificationBasedAlgorithm implements CheckAlgorithm {
-  private final SBuildServer myBuildServer;
-  private final Map<Long, Integer> myStatusMap;
+  private static final int ANY_BUILD_TYPE = -1;
 
-  public ModificationBasedAlgorithm(@NotNull SBuildServer buildServer) {
-    myBuildServer = buildServer;
-    myStatusMap = new HashMap<Long, Integer>();
+  private final BuildChangesOracle myChangesOracle;
+  private final RunKeyIndex myIndex;
+
+  public ModificationBasedAlgorithm(@NotNull BuildChangesOracle changesOracle) {
+    myChangesOracle = changesOracle;
+    myIndex = new RunKeyIndex();
   }
 
   @Nullable
-  public CheckResult checkTest(@NotNull STest test, @NotNull List<RawData> rawDataList) {
-    CheckResult checkResult = tryToFindInOneBuildType(rawDataList);
+  public CheckResult checkTest(@NotNull STest test, @NotNull RunBuffer runs) {
+    CheckResult checkResult = tryToFindInOneBuildType(runs);
     if (checkResult == null) {
-      checkResult = tryToFindInSeveralBuildTypes(rawDataList);
+      checkResult = tryToFindInSeveralBuildTypes(runs);
     }
     return checkResult;
   }
 
   @Nullable
-  private CheckResult tryToFindInSeveralBuildTypes(@NotNull List<RawData> rawDataList) {
-    myStatusMap.clear();
-    for (RawData rawData : rawDataList) {
-      long modificationId = rawData.getModificationId();
-      int currentStatus = rawData.getStatus();
-      Integer status = myStatusMap.get(modificationId);
-      if (status != null && status != currentStatus) {
-        Reason reason = null;
-
-        RawData matched = findDataWith(modificationId, status, null, rawDataList);
-        if (matched != null) {
-          // The test has different results on same sources (in different build types).
-          reason = new BuildsOnSameModificationReason(status, matched.getBuildId(),
-                                                      currentStatus, rawData.getBuildId());
-        }
+  private CheckResult tryToFindInSeveralBuildTypes(@NotNull RunBuffer runs) {
+    myIndex.reset(runs.size());
+    for (int i = 0; i < runs.size(); i++) {
+      long modificationId = runs.getModificationId(i);
+      myIndex.add(ANY_BUILD_TYPE, modificationId, i, runs.getLastBuildId(i));
 
-        if (reason != null) {
-          return new CheckResult(Type.FLAKY, reason);
-        }
-      }
-      if (status == null) {
-        myStatusMap.put(modificationId, currentStatus);
+      int first = myIndex.getFirstRun(ANY_BUILD_TYPE, modificationId);
+      int status = runs.getStatus(first);
+      int currentStatus = runs.getStatus(i);
+      if (status != currentStatus) {
+        // The test has different results on same sources (in different build types).
+        Reason reason = new BuildsOnSameModificationReason(status, runs.getBuildId(first),
+                                                           currentStatus, runs.getBuildId(i));
+        return new CheckResult(Type.FLAKY, reason);
       }
     }
     return null;
   }
 
   @Nullable
-  private CheckResult tryToFindInOneBuildType(@NotNull List<RawData> rawDataList) {
-    myStatusMap.clear();
-    for (RawData rawData : rawDataList) {
-      long hash = getHash(rawData);
+  private CheckResult tryToFindInOneBuildType(@NotNull RunBuffer runs) {
+    // The first pass: the first run and the last build of each (build type, modification).
+    myIndex.reset(runs.size());
+    for (int i = 0; i < runs.size(); i++) {
+      myIndex.add(runs.getBuildType(i), runs.getModificationId(i), i, runs.getLastBuildId(i));
+    }
 
-      int currentStatus = rawData.getStatus();
-      Integer status = myStatusMap.get(hash);
-      if (status != null && status != currentStatus) {
-        Reason reason = null;
-        long buildId = getMaxBuildInListWithHash(rawDataList, hash);
+    for (int i = 0; i < runs.size(); i++) {
+      int buildType = runs.getBuildType(i);
+      long modificationId = runs.getModificationId(i);
 
-        if (Status.getStatus(currentStatus).isFailed() && isBuildWithoutChanges(buildId)) {
+      int first = myIndex.getFirstRun(buildType, modificationId);
+      int status = runs.getStatus(first);
+      int currentStatus = runs.getStatus(i);
+      if (status != currentStatus) {
+        Reason reason;
+        long buildId = myIndex.getMaxBuildId(buildType, modificationId);
+
+        if (Status.getStatus(currentStatus).isFailed() && myChangesOracle.isBuildWithoutChanges(buildId)) {
           // The test has different results in build without changes.
           reason = new BuildWithoutChangesReason(buildId);
         } else {
-          RawData matched = findDataWith(rawData.getModificationId(), status,
-                                         rawData.getBuildTypeId(), rawDataList);
-          if (matched != null) {
-            // The test has different results on same sources.
-            reason = new BuildsOnSameModificationReason(status, matched.getBuildId(),
-                                                        currentStatus, rawData.getBuildId());
-          }
-        }
-
-        if (reason != null) {
-          return new CheckResult(Type.FLAKY, reason);
+          // The test has different results on same sources.
+          reason = new BuildsOnSameModificationReason(status, runs.getBuildId(first),
+                                                      currentStatus, runs.getBuildId(i));
         }
-      }
-      if (status == null) {
-        myStatusMap.put(hash, currentStatus);
-      }
-    }
-    return null;
-  }
-
-  private static long getHash(@NotNull RawData rawData) {
-    long modificationId = rawData.getModificationId();
-    String buildTypeId = rawData.getBuildTypeId();
-    return buildTypeId.hashCode() * 17L + modificationId * 7L;
-  }
-
-  private static long getMaxBuildInListWithHash(@NotNull List<RawData> rawDataList, long hash) {
-    long maxBuildId = 0;
-    for (RawData rawData : rawDataList) {
-      long buildId = rawData.getBuildId();
-      if (buildId > maxBuildId && hash == getHash(rawData)) {
-        maxBuildId = buildId;
-      }
-    }
-    return maxBuildId;
-  }
-
-  private boolean isBuildWithoutChanges(long buildId) {
-    SBuild build = myBuildServer.findBuildInstanceById(buildId);
-    return build != null && build.getChanges(SelectPrevBuildPolicy.SINCE_LAST_BUILD, false).isEmpty();
-  }
-
-  @Nullable
-  private static RawData findDataWith(long modificationId, int status, @Nullable String buildTypeId,
-                                      @NotNull List<RawData> rawDataList) {
-    for (RawData rawData : rawDataList) {
-      if (rawData.getModificationId() == modificationId &&
-          rawData.getStatus() == status &&
-          (buildTypeId == null || rawData.getBuildTypeId().equals(buildTypeId))) {
-        return rawData;
+        return new CheckResult(Type.FLAKY, reason);
       }
     }
     return null;
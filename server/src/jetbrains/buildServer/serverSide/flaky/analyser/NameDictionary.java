@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the names (build type ids, agent names) to dense int ids and back.
+ * Looking up a known name doesn't allocate.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class NameDictionary {
+  public static final int NOT_FOUND = -1;
+
+  private final Map<String, Integer> myIndex = new HashMap<String, Integer>();
+  private final List<String> myNames = new ArrayList<String>();
+
+  public int intern(@Nullable String name) {
+    Integer index = myIndex.get(name);
+    if (index == null) {
+      index = myNames.size();
+      myNames.add(name);
+      myIndex.put(name, index);
+    }
+    return index;
+  }
+
+  public int find(@Nullable String name) {
+    Integer index = myIndex.get(name);
+    return index != null ? index : NOT_FOUND;
+  }
+
+  public String getName(int index) {
+    return myNames.get(index);
+  }
+
+  public int size() {
+    return myNames.size();
+  }
+
+  @NotNull
+  public List<String> getNames() {
+    return myNames;
+  }
+}
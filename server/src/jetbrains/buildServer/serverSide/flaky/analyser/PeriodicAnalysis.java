@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResultHolder;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResultInfo;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-analyses the projects which opted in ({@link TestAnalysisSettings#isAnalysePeriodically()})
+ * in background, with the settings of their last result.
+ * <p>
+ * The load is spread: each check starts at most one analysis, only when the scheduler queue is empty,
+ * and the due time of each project is shifted by a stable per-project offset. While the build queue
+ * is long or the DB responds slowly, the analyses are postponed (up to one more period).
+ * The projects without new builds since the last analysis are skipped,
+ * the interrupted analyses (with a partial result) are re-run anyway.
+ * <p>
+ * Only the settings and the dates of the results are read ({@link TestAnalysisResultInfo}), not the tests.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class PeriodicAnalysis extends BuildServerAdapter {
+  private static final String ENABLED_PROPERTY = "teamcity.flakyTests.periodic.enabled";
+  private static final String PERIOD_HOURS_PROPERTY = "teamcity.flakyTests.periodic.periodHours";
+  private static final String CHECK_INTERVAL_MINUTES_PROPERTY = "teamcity.flakyTests.periodic.checkIntervalMinutes";
+  private static final String MAX_BUILD_QUEUE_PROPERTY = "teamcity.flakyTests.periodic.maxBuildQueueSize";
+  private static final String MAX_DB_LATENCY_PROPERTY = "teamcity.flakyTests.periodic.maxDbLatencyMillis";
+
+  private static final int DEFAULT_PERIOD_HOURS = 24;
+  private static final int DEFAULT_CHECK_INTERVAL_MINUTES = 10;
+  private static final int DEFAULT_MAX_BUILD_QUEUE = 20;
+  private static final int DEFAULT_MAX_DB_LATENCY = 200;
+
+  private final SBuildServer myBuildServer;
+  private final ProjectManager myProjectManager;
+  private final TestAnalysisResultHolder myHolder;
+  private final TestsAnalyser myAnalyser;
+  private final AnalysisScheduler myScheduler;
+  private final ScheduledExecutorService myExecutor;
+
+  // projectId -> the time the project was found unchanged.
+  private final Map<String, Long> myUnchangedSince = new ConcurrentHashMap<String, Long>();
+
+  public PeriodicAnalysis(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull SBuildServer buildServer,
+                          @NotNull ProjectManager projectManager,
+                          @NotNull TestAnalysisResultHolder holder,
+                          @NotNull TestsAnalyser analyser,
+                          @NotNull AnalysisScheduler scheduler) {
+    myBuildServer = buildServer;
+    myProjectManager = projectManager;
+    myHolder = holder;
+    myAnalyser = analyser;
+    myScheduler = scheduler;
+
+    myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @NotNull
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Tests analyser: periodic");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long interval = Math.max(1, TeamCityProperties.getInteger(CHECK_INTERVAL_MINUTES_PROPERTY,
+                                                              DEFAULT_CHECK_INTERVAL_MINUTES));
+    myExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          check();
+        } catch (Throwable e) {
+          Loggers.SERVER.warn("Periodic tests analysis check failed", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MINUTES);
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void check() {
+    if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY) || myScheduler.getQueueSize() > 0) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    long period = TimeUnit.HOURS.toMillis(Math.max(1, TeamCityProperties.getInteger(PERIOD_HOURS_PROPERTY,
+                                                                                     DEFAULT_PERIOD_HOURS)));
+
+    // The most overdue project goes first.
+    SProject candidate = null;
+    TestAnalysisResultInfo candidateInfo = null;
+    long maxOverdue = -1;
+    for (String projectId : myHolder.getAnalysedProjectIds()) {
+      SProject project = myProjectManager.findProjectById(projectId);
+      if (project == null || myScheduler.isScheduled(project)) {
+        continue;
+      }
+
+      TestAnalysisResultInfo info = myHolder.getResultInfo(project);
+      if (info == null || !info.getSettings().isAnalysePeriodically()) {
+        continue;
+      }
+      // The partial result of an interrupted analysis has no finish date: due since its start.
+      Date lastDate = info.getFinishDate() != null ? info.getFinishDate() : info.getStartDate();
+      if (lastDate == null) {
+        continue;
+      }
+
+      long overdue = now - getDueTime(projectId, lastDate.getTime(), period);
+      if (overdue >= 0 && overdue > maxOverdue) {
+        candidate = project;
+        candidateInfo = info;
+        maxOverdue = overdue;
+      }
+    }
+
+    if (candidate != null && (maxOverdue > period || isLowLoad())) {
+      start(candidate, candidateInfo, now);
+    }
+  }
+
+  private long getDueTime(@NotNull String projectId, long lastFinish, long period) {
+    Long unchangedSince = myUnchangedSince.get(projectId);
+    long last = unchangedSince != null ? Math.max(unchangedSince, lastFinish) : lastFinish;
+
+    // Stable offset within a quarter of the period, so the projects analysed together drift apart.
+    long offset = (projectId.hashCode() & 0x7fffffffL) % Math.max(1, period / 4);
+    return last + period + offset;
+  }
+
+  private boolean isLowLoad() {
+    BuildQueue queue = myBuildServer.getQueue();
+    int maxQueueSize = TeamCityProperties.getInteger(MAX_BUILD_QUEUE_PROPERTY, DEFAULT_MAX_BUILD_QUEUE);
+    if (queue.getNumberOfItems() > maxQueueSize) {
+      return false;
+    }
+
+    long maxLatency = TeamCityProperties.getInteger(MAX_DB_LATENCY_PROPERTY, DEFAULT_MAX_DB_LATENCY);
+    return myAnalyser.measureDBLatency() <= maxLatency;
+  }
+
+  private void start(@NotNull SProject project, @NotNull TestAnalysisResultInfo lastResult, long now) {
+    TestAnalysisSettings settings = lastResult.getSettings();
+    Date startDate = lastResult.getStartDate();
+    boolean finished = lastResult.getFinishDate() != null;
+    if (finished && startDate != null && !myAnalyser.hasNewBuilds(project, settings, startDate)) {
+      myUnchangedSince.put(project.getProjectId(), now);
+      return;
+    }
+
+    myUnchangedSince.remove(project.getProjectId());
+    if (myScheduler.schedule(project, settings)) {
+      Loggers.SERVER.info("Periodic tests analysis scheduled in project " + project.getProjectId());
+    }
+  }
+}
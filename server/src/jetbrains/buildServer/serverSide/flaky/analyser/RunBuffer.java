@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Holds the runs of a single test, one array per column (struct of arrays).
+ * Build type ids and agent names are stored as ints of the dictionaries shared by
+ * all the buffers of one analysis worker.
+ * <p>
+ * An entry is either a single run or a group of runs with the same status, build type, modification
+ * and agent (see {@link FetchMode#AGGREGATED}). A group keeps its first and last build ids and the number
+ * of runs, which is 1 for a single run.
+ * <p>
+ * The buffer is reused for many tests: once the arrays have grown, adding and sorting the runs don't allocate.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class RunBuffer {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final NameDictionary myBuildTypes;
+  private final NameDictionary myAgents;
+
+  private long myTestId;
+  private int mySize;
+  private int myRunsNumber;
+  private long[] myBuildIds = new long[INITIAL_CAPACITY];
+  private long[] myLastBuildIds = new long[INITIAL_CAPACITY];
+  private int[] myRunCounts = new int[INITIAL_CAPACITY];
+  private int[] myStatuses = new int[INITIAL_CAPACITY];
+  private int[] myBuildTypeIds = new int[INITIAL_CAPACITY];
+  private long[] myModificationIds = new long[INITIAL_CAPACITY];
+  private int[] myAgentIds = new int[INITIAL_CAPACITY];
+  private long[] myBuildStartTimes = new long[INITIAL_CAPACITY];
+  // The permutation and the merge buffer of the sort.
+  private int[] myOrder = new int[INITIAL_CAPACITY];
+  private int[] myScratch = new int[INITIAL_CAPACITY];
+
+  RunBuffer(@NotNull NameDictionary buildTypes, @NotNull NameDictionary agents) {
+    myBuildTypes = buildTypes;
+    myAgents = agents;
+  }
+
+  public long getTestId() {
+    return myTestId;
+  }
+
+  /**
+   * Returns the number of entries (runs or groups of runs).
+   */
+  public int size() {
+    return mySize;
+  }
+
+  /**
+   * Returns the number of the test runs, counting each run of the groups.
+   */
+  public int getRunsNumber() {
+    return myRunsNumber;
+  }
+
+  /**
+   * Prepares the buffer for the runs of another test.
+   */
+  public void reset(long testId) {
+    myTestId = testId;
+    mySize = 0;
+    myRunsNumber = 0;
+  }
+
+  public void add(long buildId, int status, @NotNull String buildTypeId,
+                  long modificationId, String agentName, long buildStartTime) {
+    add(buildId, status, myBuildTypes.intern(buildTypeId),
+        modificationId, myAgents.intern(agentName), buildStartTime);
+  }
+
+  public void add(long buildId, int status, int buildType,
+                  long modificationId, int agent, long buildStartTime) {
+    addGroup(buildId, buildId, 1, status, buildType, modificationId, agent, buildStartTime);
+  }
+
+  /**
+   * Adds a group of runs, the start time is the one of the last build.
+   */
+  public void addGroup(long firstBuildId, long lastBuildId, int runs, int status, int buildType,
+                       long modificationId, int agent, long buildStartTime) {
+    if (mySize == myBuildIds.length) {
+      grow();
+    }
+    myBuildIds[mySize] = firstBuildId;
+    myLastBuildIds[mySize] = lastBuildId;
+    myRunCounts[mySize] = runs;
+    myStatuses[mySize] = status;
+    myBuildTypeIds[mySize] = buildType;
+    myModificationIds[mySize] = modificationId;
+    myAgentIds[mySize] = agent;
+    myBuildStartTimes[mySize] = buildStartTime;
+    ++mySize;
+    myRunsNumber += runs;
+  }
+
+  /**
+   * Returns the build id of the run, or the first one of the group.
+   */
+  public long getBuildId(int index) {
+    return myBuildIds[index];
+  }
+
+  /**
+   * Returns the build id of the run, or the last one of the group.
+   */
+  public long getLastBuildId(int index) {
+    return myLastBuildIds[index];
+  }
+
+  public int getRunCount(int index) {
+    return myRunCounts[index];
+  }
+
+  public int getStatus(int index) {
+    return myStatuses[index];
+  }
+
+  public boolean isFailed(int index) {
+    return Status.getStatus(myStatuses[index]).isFailed();
+  }
+
+  /**
+   * Returns the int id of the build type, see {@link #getBuildTypeDictionary()}.
+   */
+  public int getBuildType(int index) {
+    return myBuildTypeIds[index];
+  }
+
+  @NotNull
+  public String getBuildTypeId(int index) {
+    return myBuildTypes.getName(myBuildTypeIds[index]);
+  }
+
+  public long getModificationId(int index) {
+    return myModificationIds[index];
+  }
+
+  /**
+   * Returns the int id of the agent, see {@link #getAgentDictionary()}.
+   */
+  public int getAgent(int index) {
+    return myAgentIds[index];
+  }
+
+  public String getAgentName(int index) {
+    return myAgents.getName(myAgentIds[index]);
+  }
+
+  public long getBuildStartTime(int index) {
+    return myBuildStartTimes[index];
+  }
+
+  @NotNull
+  NameDictionary getBuildTypeDictionary() {
+    return myBuildTypes;
+  }
+
+  @NotNull
+  NameDictionary getAgentDictionary() {
+    return myAgents;
+  }
+
+  /**
+   * Sorts the runs by modification id, keeping the order of the runs on the same modification.
+   */
+  public void sortByModification() {
+    boolean sorted = true;
+    for (int i = 1; i < mySize && sorted; i++) {
+      sorted = myModificationIds[i - 1] <= myModificationIds[i];
+    }
+    if (sorted) {
+      return;
+    }
+
+    int[] order = myOrder;
+    for (int i = 0; i < mySize; i++) {
+      order[i] = i;
+    }
+    mergeSort(order, myScratch, 0, mySize);
+
+    // Applying the permutation in place, one cycle at a time: order[i] is the entry which goes to i,
+    // the placed entries are marked with order[i] == i.
+    for (int start = 0; start < mySize; start++) {
+      if (order[start] == start) {
+        continue;
+      }
+
+      long buildId = myBuildIds[start];
+      long lastBuildId = myLastBuildIds[start];
+      int runCount = myRunCounts[start];
+      int status = myStatuses[start];
+      int buildTypeId = myBuildTypeIds[start];
+      long modificationId = myModificationIds[start];
+      int agentId = myAgentIds[start];
+      long buildStartTime = myBuildStartTimes[start];
+
+      int to = start;
+      int from = order[to];
+      while (from != start) {
+        move(from, to);
+        order[to] = to;
+        to = from;
+        from = order[to];
+      }
+      myBuildIds[to] = buildId;
+      myLastBuildIds[to] = lastBuildId;
+      myRunCounts[to] = runCount;
+      myStatuses[to] = status;
+      myBuildTypeIds[to] = buildTypeId;
+      myModificationIds[to] = modificationId;
+      myAgentIds[to] = agentId;
+      myBuildStartTimes[to] = buildStartTime;
+      order[to] = to;
+    }
+  }
+
+  private void move(int from, int to) {
+    myBuildIds[to] = myBuildIds[from];
+    myLastBuildIds[to] = myLastBuildIds[from];
+    myRunCounts[to] = myRunCounts[from];
+    myStatuses[to] = myStatuses[from];
+    myBuildTypeIds[to] = myBuildTypeIds[from];
+    myModificationIds[to] = myModificationIds[from];
+    myAgentIds[to] = myAgentIds[from];
+    myBuildStartTimes[to] = myBuildStartTimes[from];
+  }
+
+  private void mergeSort(@NotNull int[] order, @NotNull int[] temp, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    mergeSort(order, temp, from, middle);
+    mergeSort(order, temp, middle, to);
+
+    int i = from;
+    int j = middle;
+    int k = from;
+    while (i < middle && j < to) {
+      // "<=" keeps the sort stable.
+      temp[k++] = myModificationIds[order[i]] <= myModificationIds[order[j]] ? order[i++] : order[j++];
+    }
+    while (i < middle) {
+      temp[k++] = order[i++];
+    }
+    while (j < to) {
+      temp[k++] = order[j++];
+    }
+    System.arraycopy(temp, from, order, from, to - from);
+  }
+
+  private void grow() {
+    int capacity = myBuildIds.length * 2;
+    myBuildIds = Arrays.copyOf(myBuildIds, capacity);
+    myLastBuildIds = Arrays.copyOf(myLastBuildIds, capacity);
+    myRunCounts = Arrays.copyOf(myRunCounts, capacity);
+    myStatuses = Arrays.copyOf(myStatuses, capacity);
+    myBuildTypeIds = Arrays.copyOf(myBuildTypeIds, capacity);
+    myModificationIds = Arrays.copyOf(myModificationIds, capacity);
+    myAgentIds = Arrays.copyOf(myAgentIds, capacity);
+    myBuildStartTimes = Arrays.copyOf(myBuildStartTimes, capacity);
+    myOrder = new int[capacity];
+    myScratch = new int[capacity];
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash index of test runs by the exact (build type, modification) pair.
+ * For each pair holds the first run (index in the {@link RunBuffer}) and the maximum build id.
+ * <p>
+ * The arrays are reused for all tests, {@link #reset(int)} must be called before each test.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class RunKeyIndex {
+  private static final int MIN_CAPACITY = 16;
+  private static final int NO_RUN = -1;
+
+  private int[] myBuildTypes = new int[MIN_CAPACITY];
+  private long[] myModificationIds = new long[MIN_CAPACITY];
+  private int[] myFirstRuns = new int[MIN_CAPACITY];
+  private long[] myMaxBuildIds = new long[MIN_CAPACITY];
+  private int myMask = MIN_CAPACITY - 1;
+
+  /**
+   * Clears the index and prepares it for the given number of runs (the load factor is at most 0.5).
+   */
+  public void reset(int runs) {
+    int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, runs)) << 2);
+    if (capacity > myFirstRuns.length) {
+      myBuildTypes = new int[capacity];
+      myModificationIds = new long[capacity];
+      myFirstRuns = new int[capacity];
+      myMaxBuildIds = new long[capacity];
+    }
+    Arrays.fill(myFirstRuns, 0, capacity, NO_RUN);
+    myMask = capacity - 1;
+  }
+
+  /**
+   * Adds the run to the index.
+   */
+  public void add(int buildType, long modificationId, int run, long buildId) {
+    int slot = findSlot(buildType, modificationId);
+    if (myFirstRuns[slot] == NO_RUN) {
+      myBuildTypes[slot] = buildType;
+      myModificationIds[slot] = modificationId;
+      myFirstRuns[slot] = run;
+      myMaxBuildIds[slot] = buildId;
+    } else if (buildId > myMaxBuildIds[slot]) {
+      myMaxBuildIds[slot] = buildId;
+    }
+  }
+
+  /**
+   * Returns the first added run with the given key. The key must be in the index.
+   */
+  public int getFirstRun(int buildType, long modificationId) {
+    return myFirstRuns[findSlot(buildType, modificationId)];
+  }
+
+  /**
+   * Returns the maximum build id among the runs with the given key. The key must be in the index.
+   */
+  public long getMaxBuildId(int buildType, long modificationId) {
+    return myMaxBuildIds[findSlot(buildType, modificationId)];
+  }
+
+  private int findSlot(int buildType, long modificationId) {
+    int slot = hash(buildType, modificationId) & myMask;
+    while (myFirstRuns[slot] != NO_RUN &&
+           (myBuildTypes[slot] != buildType || myModificationIds[slot] != modificationId)) {
+      slot = (slot + 1) & myMask;
+    }
+    return slot;
+  }
+
+  private static int hash(int buildType, long modificationId) {
+    long hash = modificationId * 0x9E3779B97F4A7C15L + buildType;
+    hash ^= hash >>> 29;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
@@ -4,7 +4,6 @@
  */
 package jetbrains.buildServer.serverSide.flaky.analyser;
 
-import java.util.List;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.STest;
 import org.jetbrains.annotations.NotNull;
@@ -16,10 +15,10 @@ import org.jetbrains.annotations.Nullable;
  */
 public class SimpleStatusAlgorithm implements CheckAlgorithm {
   @Nullable
-  public CheckResult checkTest(@NotNull STest test, @NotNull List<RawData> rawDataList) {
-    int status = rawDataList.get(0).getStatus();
-    for (RawData rawData : rawDataList) {
-      int currentStatus = rawData.getStatus();
+  public CheckResult checkTest(@NotNull STest test, @NotNull RunBuffer runs) {
+    int status = runs.getStatus(0);
+    for (int i = 1; i < runs.size(); i++) {
+      int currentStatus = runs.getStatus(i);
       if (currentStatus != status) {
         return null;
       }
@@ -4,7 +4,6 @@
  */
 package jetbrains.buildServer.serverSide.flaky.analyser;
 
-import java.util.List;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.STest;
 import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
@@ -29,19 +28,19 @@ public class StatisticAnalysisAlgorithm implements CheckAlgorithm {
   }
 
   @Nullable
-  public CheckResult checkTest(@NotNull STest test, @NotNull List<RawData> rawDataList) {
+  public CheckResult checkTest(@NotNull STest test, @NotNull RunBuffer runs) {
     int number = 0;
     int totalLength = 0;
     boolean inSeries = false;
     long previousModificationId = -1;
 
-    for (RawData rawData : rawDataList) {
-      long modificationId = rawData.getModificationId();
+    for (int i = 0; i < runs.size(); i++) {
+      long modificationId = runs.getModificationId(i);
       if (modificationId == previousModificationId) {
         continue;
       }
 
-      int status = rawData.getStatus();
+      int status = runs.getStatus(i);
       boolean failure = Status.getStatus(status).isFailed();
       if (inSeries) {
         if (failure) {
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.STest;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A test selected for the analysis, with the numbers of its failures and successes
+ * in the analysed builds of the time window.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestCandidate {
+  private final STest myTest;
+  private final int myFailureCount;
+  private final int mySuccessCount;
+
+  public TestCandidate(@NotNull STest test, int failureCount, int successCount) {
+    myTest = test;
+    myFailureCount = failureCount;
+    mySuccessCount = successCount;
+  }
+
+  @NotNull
+  public STest getTest() {
+    return myTest;
+  }
+
+  public int getFailureCount() {
+    return myFailureCount;
+  }
+
+  public int getSuccessCount() {
+    return mySuccessCount;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Holds the runs of one test in a compact form: one array per column.
+ * Build type ids and agent names are stored as indices in the {@link TestHistoryState} names.
+ * <p>
+ * The runs are kept in the order of the analysis: by modification, then by build,
+ * so a copy doesn't need sorting. The new runs usually go to the end.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestHistory implements Serializable {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int mySize;
+  private long[] myBuildIds = new long[INITIAL_CAPACITY];
+  private int[] myStatuses = new int[INITIAL_CAPACITY];
+  private int[] myBuildTypes = new int[INITIAL_CAPACITY];
+  private long[] myModificationIds = new long[INITIAL_CAPACITY];
+  private int[] myAgents = new int[INITIAL_CAPACITY];
+  private long[] myBuildStartTimes = new long[INITIAL_CAPACITY];
+
+  // True for a new history; false for a deserialized one (the initializer doesn't run) until it's modified.
+  private transient boolean myChanged = true;
+
+  public int size() {
+    return mySize;
+  }
+
+  /**
+   * Inserts the run keeping the order by modification and build.
+   */
+  public void add(long buildId, int status, int buildType,
+                  long modificationId, int agent, long buildStartTime) {
+    if (mySize == myBuildIds.length) {
+      int capacity = mySize * 2;
+      myBuildIds = Arrays.copyOf(myBuildIds, capacity);
+      myStatuses = Arrays.copyOf(myStatuses, capacity);
+      myBuildTypes = Arrays.copyOf(myBuildTypes, capacity);
+      myModificationIds = Arrays.copyOf(myModificationIds, capacity);
+      myAgents = Arrays.copyOf(myAgents, capacity);
+      myBuildStartTimes = Arrays.copyOf(myBuildStartTimes, capacity);
+    }
+
+    int index = mySize;
+    while (index > 0 && (myModificationIds[index - 1] > modificationId ||
+                         myModificationIds[index - 1] == modificationId && myBuildIds[index - 1] > buildId)) {
+      --index;
+    }
+    if (index < mySize) {
+      int length = mySize - index;
+      System.arraycopy(myBuildIds, index, myBuildIds, index + 1, length);
+      System.arraycopy(myStatuses, index, myStatuses, index + 1, length);
+      System.arraycopy(myBuildTypes, index, myBuildTypes, index + 1, length);
+      System.arraycopy(myModificationIds, index, myModificationIds, index + 1, length);
+      System.arraycopy(myAgents, index, myAgents, index + 1, length);
+      System.arraycopy(myBuildStartTimes, index, myBuildStartTimes, index + 1, length);
+    }
+
+    myBuildIds[index] = buildId;
+    myStatuses[index] = status;
+    myBuildTypes[index] = buildType;
+    myModificationIds[index] = modificationId;
+    myAgents[index] = agent;
+    myBuildStartTimes[index] = buildStartTime;
+    ++mySize;
+    myChanged = true;
+  }
+
+  /**
+   * Keeps only the runs in the builds within the given range (inclusive).
+   */
+  public void retainBuilds(long fromBuildId, long toBuildId) {
+    int size = 0;
+    for (int i = 0; i < mySize; i++) {
+      long buildId = myBuildIds[i];
+      if (buildId >= fromBuildId && buildId <= toBuildId) {
+        myBuildIds[size] = buildId;
+        myStatuses[size] = myStatuses[i];
+        myBuildTypes[size] = myBuildTypes[i];
+        myModificationIds[size] = myModificationIds[i];
+        myAgents[size] = myAgents[i];
+        myBuildStartTimes[size] = myBuildStartTimes[i];
+        ++size;
+      }
+    }
+    if (mySize != size) {
+      mySize = size;
+      myChanged = true;
+    }
+  }
+
+  /**
+   * Returns whether the history has changed since it was loaded, see {@link TestHistoryStateHolder}.
+   */
+  public boolean isChanged() {
+    return myChanged;
+  }
+
+  public void setStored() {
+    myChanged = false;
+  }
+
+  /**
+   * Adds all the runs to the buffer, translating build types and agents to the buffer dictionaries.
+   */
+  public void copyTo(@NotNull TestHistoryState state, @NotNull RunBuffer buffer) {
+    for (int i = 0; i < mySize; i++) {
+      buffer.add(myBuildIds[i], myStatuses[i], state.getName(myBuildTypes[i]),
+                 myModificationIds[i], state.getName(myAgents[i]), myBuildStartTimes[i]);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A serializable state of the incremental analysis in one project:
+ * the histories of the analysed tests and the last build processed (the watermark).
+ * <p>
+ * All the runs in the builds up to the watermark are known, the runs in the later builds
+ * may be incomplete and are fetched again by the next analysis.
+ * <p>
+ * Only the ids of the tests are serialized with the state, the histories are stored separately
+ * (see {@link TestHistoryStateHolder}) and loaded on demand, so an update of a few tests
+ * reads and writes just their histories.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestHistoryState implements Serializable {
+  private final String mySettingsKey;
+  private long myFromBuildId;
+  private long myWatermark;
+
+  private final Set<Long> myTestIds = new HashSet<Long>();
+  private final List<String> myNames = new ArrayList<String>();
+  private transient Map<String, Integer> myNameIndex;
+
+  // True for a new state; false for a deserialized one (the initializer doesn't run) until it's modified.
+  private transient boolean myChanged = true;
+  private transient HistoryLoader myLoader;
+  private transient Map<Long, TestHistory> myHistories = new HashMap<Long, TestHistory>();
+  private transient Set<Long> myRemovedTestIds = new HashSet<Long>();
+
+  public TestHistoryState(@NotNull String settingsKey, long fromBuildId) {
+    mySettingsKey = settingsKey;
+    myFromBuildId = fromBuildId;
+    myWatermark = fromBuildId - 1;
+  }
+
+  /**
+   * Returns whether the state can be reused for analysis with the given settings:
+   * the same build types must be analysed, and the state must cover the whole time window.
+   */
+  public boolean isCompatible(@NotNull String settingsKey, long fromBuildId) {
+    return mySettingsKey.equals(settingsKey) && fromBuildId >= myFromBuildId;
+  }
+
+  @NotNull
+  public String getSettingsKey() {
+    return mySettingsKey;
+  }
+
+  public long getFromBuildId() {
+    return myFromBuildId;
+  }
+
+  public long getWatermark() {
+    return myWatermark;
+  }
+
+  public void setWatermark(long watermark) {
+    if (myWatermark != watermark) {
+      myWatermark = watermark;
+      myChanged = true;
+    }
+  }
+
+  /**
+   * Drops the runs of the builds which are out of the time window,
+   * as well as the runs after the watermark (these builds are going to be fetched again).
+   * Loads all the histories.
+   */
+  public void retainBuilds(long fromBuildId) {
+    if (myFromBuildId != fromBuildId) {
+      myFromBuildId = fromBuildId;
+      myChanged = true;
+    }
+    for (Long testId : new ArrayList<Long>(myTestIds)) {
+      TestHistory history = getHistory(testId);
+      if (history != null) {
+        history.retainBuilds(fromBuildId, myWatermark);
+      }
+    }
+  }
+
+  /**
+   * Drops the tests which aren't analysed anymore.
+   */
+  public void retainTests(@NotNull Collection<Long> testIds) {
+    Iterator<Long> iterator = myTestIds.iterator();
+    while (iterator.hasNext()) {
+      Long testId = iterator.next();
+      if (!testIds.contains(testId)) {
+        iterator.remove();
+        getHistories().remove(testId);
+        getRemovedTestIds().add(testId);
+        myChanged = true;
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return myTestIds.isEmpty();
+  }
+
+  public int getTestsNumber() {
+    return myTestIds.size();
+  }
+
+  @NotNull
+  public Set<Long> getTestIds() {
+    return Collections.unmodifiableSet(myTestIds);
+  }
+
+  @Nullable
+  public TestHistory getHistory(long testId) {
+    if (!myTestIds.contains(testId)) {
+      return null;
+    }
+
+    TestHistory history = getHistories().get(testId);
+    if (history == null) {
+      history = myLoader != null ? myLoader.load(testId) : null;
+      if (history == null) {
+        // Lost: the test is going to be fetched again as a new one.
+        myTestIds.remove(testId);
+        myChanged = true;
+        return null;
+      }
+      getHistories().put(testId, history);
+    }
+    return history;
+  }
+
+  @NotNull
+  public TestHistory getOrCreateHistory(long testId) {
+    TestHistory history = getHistory(testId);
+    if (history == null) {
+      history = new TestHistory();
+      myTestIds.add(testId);
+      getHistories().put(testId, history);
+      getRemovedTestIds().remove(testId);
+      myChanged = true;
+    }
+    return history;
+  }
+
+  public int intern(@NotNull String name) {
+    if (myNameIndex == null) {
+      myNameIndex = new HashMap<String, Integer>();
+      for (int i = 0; i < myNames.size(); i++) {
+        myNameIndex.put(myNames.get(i), i);
+      }
+    }
+
+    Integer index = myNameIndex.get(name);
+    if (index == null) {
+      index = myNames.size();
+      myNames.add(name);
+      myNameIndex.put(name, index);
+      myChanged = true;
+    }
+    return index;
+  }
+
+  @NotNull
+  public String getName(int index) {
+    return myNames.get(index);
+  }
+
+  /**
+   * Sets the loader of the stored histories, forgetting the histories loaded before.
+   */
+  void attach(@Nullable HistoryLoader loader) {
+    myLoader = loader;
+    myHistories = new HashMap<Long, TestHistory>();
+    myRemovedTestIds = new HashSet<Long>();
+  }
+
+  /**
+   * Returns whether the state itself (not the histories) has changed since it was loaded.
+   */
+  boolean isChanged() {
+    return myChanged;
+  }
+
+  /**
+   * Returns the histories loaded or created since the state was loaded.
+   */
+  @NotNull
+  Map<Long, TestHistory> getLoadedHistories() {
+    return getHistories();
+  }
+
+  /**
+   * Returns the tests dropped since the state was loaded.
+   */
+  @NotNull
+  Set<Long> getRemovedTestIds() {
+    if (myRemovedTestIds == null) {
+      myRemovedTestIds = new HashSet<Long>();
+    }
+    return myRemovedTestIds;
+  }
+
+  /**
+   * Marks the state and the histories as stored, the loaded histories are released.
+   */
+  void stored() {
+    myChanged = false;
+    attach(myLoader);
+  }
+
+  @NotNull
+  private Map<Long, TestHistory> getHistories() {
+    if (myHistories == null) {
+      myHistories = new HashMap<Long, TestHistory>();
+    }
+    return myHistories;
+  }
+
+  /**
+   * Loads the stored history of a test.
+   */
+  interface HistoryLoader {
+    @Nullable
+    TestHistory load(long testId);
+  }
+}
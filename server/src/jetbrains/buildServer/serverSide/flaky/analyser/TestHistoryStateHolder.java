@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.cache.EhCacheUtil;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * Holds the incremental analysis state for all projects.
+ * <p>
+ * The state of a project and the history of each of its tests are separate elements of the cache:
+ * an update reads and writes only the histories of the tests it touches.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestHistoryStateHolder {
+  // Only the recently used histories are kept in memory, the rest are on the disk.
+  private static final int MAX_ELEMENTS_IN_MEMORY = 1000;
+
+  // A persistent cache: string (projectId) -> TestHistoryState,
+  // string (projectId:testId) -> TestHistory.
+  private final Cache myCache;
+
+  public TestHistoryStateHolder(@NotNull EhCacheUtil cacheUtil) {
+    this(createCache(cacheUtil));
+  }
+
+  /**
+   * Creates the holder on the given cache (e.g. an in-memory one, outside the server).
+   */
+  TestHistoryStateHolder(@NotNull Cache cache) {
+    myCache = cache;
+  }
+
+  @NotNull
+  private static Cache createCache(@NotNull EhCacheUtil cacheUtil) {
+    Cache cache = cacheUtil.createCache("tests-analysis-history");
+    cache.getCacheConfiguration().setEternal(true);
+    cache.getCacheConfiguration().setMaxElementsInMemory(MAX_ELEMENTS_IN_MEMORY);
+    return cache;
+  }
+
+  /**
+   * Returns the state of the project, its histories are loaded on demand.
+   */
+  @Nullable
+  TestHistoryState getState(@NotNull SProject project) {
+    final String projectId = project.getProjectId();
+    TestHistoryState state = (TestHistoryState) getValue(projectId);
+    if (state != null) {
+      state.attach(new TestHistoryState.HistoryLoader() {
+        @Nullable
+        public TestHistory load(long testId) {
+          return (TestHistory) getValue(getHistoryKey(projectId, testId));
+        }
+      });
+    }
+    return state;
+  }
+
+  /**
+   * Stores the changes of the state: the state itself, the changed histories, and removes the dropped ones.
+   */
+  void putState(@NotNull SProject project, @NotNull TestHistoryState state) {
+    String projectId = project.getProjectId();
+    for (Long testId : state.getRemovedTestIds()) {
+      myCache.remove(getHistoryKey(projectId, testId));
+    }
+    for (Map.Entry<Long, TestHistory> entry : state.getLoadedHistories().entrySet()) {
+      TestHistory history = entry.getValue();
+      if (history.isChanged()) {
+        myCache.put(new Element(getHistoryKey(projectId, entry.getKey()), history));
+        history.setStored();
+      }
+    }
+    if (state.isChanged()) {
+      myCache.put(new Element(projectId, state));
+    }
+    state.stored();
+  }
+
+  public void clearState(@NotNull SProject project) {
+    String projectId = project.getProjectId();
+    TestHistoryState state = (TestHistoryState) getValue(projectId);
+    if (state != null) {
+      for (Long testId : state.getTestIds()) {
+        myCache.remove(getHistoryKey(projectId, testId));
+      }
+    }
+    myCache.remove(projectId);
+  }
+
+  @Nullable
+  private Object getValue(@NotNull String key) {
+    // See TestAnalysisResultHolder: EhCache uses the context class loader to deserialize.
+    ClassLoader currentLoader = Thread.currentThread().getContextClassLoader();
+    Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+
+    try {
+      Element element = myCache.getQuiet(key);
+      return element != null ? element.getValue() : null;
+    } finally {
+      Thread.currentThread().setContextClassLoader(currentLoader);
+    }
+  }
+
+  @NotNull
+  private static String getHistoryKey(@NotNull String projectId, long testId) {
+    return projectId + ":" + testId;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQLRunner;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.db.DBAction;
+import jetbrains.buildServer.serverSide.db.DBException;
+import jetbrains.buildServer.serverSide.db.DBFunctions;
+import jetbrains.buildServer.serverSide.db.DatabaseType;
+import jetbrains.buildServer.serverSide.db.SQLRunnerEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the index of the plugin on {@code test_info(test_name_id, build_id, status)}:
+ * it covers the test runs query (see {@link TestRunsQuery}), so the runs of a test are read
+ * from the index in the order of the query.
+ * <p>
+ * The index is created on the server startup, in the background, and only if the internal property
+ * {@code teamcity.flakyTests.db.coveringIndex} is set: building it on a large {@code test_info}
+ * takes a while and, except PostgreSQL, blocks the writes into the table.
+ * Once the property is unset, the index is dropped on the next startup.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestInfoIndex extends BuildServerAdapter {
+  private static final String ENABLED_PROPERTY = "teamcity.flakyTests.db.coveringIndex";
+  private static final String INDEX_NAME = "flaky_test_info_runs";
+  private static final String TABLE_NAME = "test_info";
+
+  private final SQLRunner mySQLRunner;
+  private final ExecutorService myExecutor;
+
+  public TestInfoIndex(@NotNull EventDispatcher<BuildServerListener> dispatcher, @NotNull SQLRunner sqlRunner) {
+    mySQLRunner = sqlRunner;
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @NotNull
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Tests analyser index");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void serverStartup() {
+    final boolean enabled = TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+    myExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          update(enabled);
+        } catch (Throwable e) {
+          Loggers.SERVER.warn("Failed to " + (enabled ? "create" : "drop") + " the tests analysis index " + INDEX_NAME, e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void update(final boolean enabled) {
+    ((SQLRunnerEx) mySQLRunner).withDB(new DBAction<Object>() {
+      public Object run(DBFunctions dbf) throws DBException {
+        try {
+          Connection connection = dbf.getConnection();
+          if (DBMetaData.indexExists(connection.getMetaData(), TABLE_NAME, INDEX_NAME) == enabled) {
+            return null;
+          }
+
+          String sql = enabled ? getCreateSql(dbf.getDatabaseType()) : getDropSql(dbf.getDatabaseType());
+          Loggers.SERVER.info((enabled ? "Creating" : "Dropping") + " the tests analysis index " + INDEX_NAME +
+                              " on " + TABLE_NAME + ": " + sql);
+          long start = System.currentTimeMillis();
+          // "create index concurrently" can't run in a transaction.
+          boolean autoCommit = connection.getAutoCommit();
+          connection.setAutoCommit(true);
+          try {
+            Statement statement = connection.createStatement();
+            try {
+              statement.execute(sql);
+            } finally {
+              statement.close();
+            }
+          } finally {
+            connection.setAutoCommit(autoCommit);
+          }
+          Loggers.SERVER.info("The tests analysis index " + INDEX_NAME + " is " + (enabled ? "created" : "dropped") +
+                              " in " + (System.currentTimeMillis() - start) + " ms");
+          return null;
+        } catch (SQLException e) {
+          throw new DBException("Failed to " + (enabled ? "create" : "drop") + " the index " + INDEX_NAME, e);
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private static String getCreateSql(@NotNull DatabaseType databaseType) {
+    // PostgreSQL builds it without locking the writes.
+    String create = databaseType == DatabaseType.POSTGRESQL ? "create index concurrently " : "create index ";
+    return create + INDEX_NAME + " on " + TABLE_NAME + " (test_name_id, build_id, status)";
+  }
+
+  @NotNull
+  private static String getDropSql(@NotNull DatabaseType databaseType) {
+    switch (databaseType) {
+      case MYSQL:
+      case MSSQL:
+        return "drop index " + INDEX_NAME + " on " + TABLE_NAME;
+      default:
+        return "drop index " + INDEX_NAME;
+    }
+  }
+}
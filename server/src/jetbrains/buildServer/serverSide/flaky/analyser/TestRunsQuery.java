@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Builds the query fetching the test runs, together with its parameters.
+ * <p>
+ * The time window and the analysed build types are filtered by the DB, so the runs of the other
+ * projects and of the excluded build types don't cross the wire. If there are too many build types
+ * for an "in" list, the candidates are counted by several queries, while the runs are filtered in Java only
+ * (see {@link TestsAnalyser}).
+ * The runs of one or several tests come ordered by test, modification and build, so they need no sort in Java.
+ * The runs of all tests come ordered by test and build, which is the order of the
+ * {@link TestInfoIndex covering index}: the DB doesn't sort the whole history,
+ * the runs of each test are sorted by modification in Java.
+ * <p>
+ * The grouped query returns the same columns, the runs with the same status, build type, modification
+ * and agent come in one row with the first build id, the start time of the last build, and two more columns:
+ * the last build id and the number of runs. The groups are ordered by test, modification and first build,
+ * which is the order of their first runs. The summary query returns the same groups from the
+ * {@link TestRunsSummary summary table} of the plugin, for the whole history.
+ * <p>
+ * The candidates query counts the failures and the runs of each test over the same runs,
+ * so the tests which can't be classified are dropped before their runs are fetched.
+ * <p>
+ * The range of builds is repeated for each joined table: not all the DBs derive it from the join condition
+ * (e.g. PostgreSQL doesn't), and without it the whole {@code build_state} and {@code history} are joined.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestRunsQuery {
+  // Keeps "in (...)" below the Oracle limit of 1000.
+  static final int MAX_BUILD_TYPES_IN_QUERY = 900;
+
+  // The last build of the range of the runs queries if all the later builds are fetched too.
+  static final long NO_UPPER_BOUND = Long.MAX_VALUE;
+
+  private static final int FAILURE_STATUS = Status.FAILURE.getPriority();
+
+  private final String myBuildTypeColumn;
+  private final StringBuilder mySql = new StringBuilder();
+  private final List<Object> myParams = new ArrayList<Object>();
+  private boolean myFilteredByBuildType;
+
+  /**
+   * Creates the query of the runs of one test.
+   */
+  @NotNull
+  public static TestRunsQuery forTest(@NotNull Collection<String> buildTypeIds,
+                                      long buildId,
+                                      long testId) {
+    TestRunsQuery query = createRunsQuery(buildId, NO_UPPER_BOUND);
+    query.mySql.append("      and ti.test_name_id = ?\n");
+    query.myParams.add(testId);
+    return query.finishRuns(buildTypeIds, "ti.test_name_id, bs.modification_id, ti.build_id");
+  }
+
+  /**
+   * Creates the query of the runs of several tests in the builds from buildId to toBuildId.
+   */
+  @NotNull
+  public static TestRunsQuery forTests(@NotNull Collection<String> buildTypeIds,
+                                       long buildId,
+                                       long toBuildId,
+                                       @NotNull Collection<Long> testIds) {
+    TestRunsQuery query = createRunsQuery(buildId, toBuildId);
+    query.mySql.append("      and ti.test_name_id in (").append(getPlaceholders(testIds.size())).append(")\n");
+    query.myParams.addAll(testIds);
+    return query.finishRuns(buildTypeIds, "ti.test_name_id, bs.modification_id, ti.build_id");
+  }
+
+  /**
+   * Creates the query of the runs of all tests, or of the tests after the given one,
+   * in the builds from buildId to toBuildId.
+   */
+  @NotNull
+  public static TestRunsQuery forProject(@NotNull Collection<String> buildTypeIds,
+                                         long buildId,
+                                         long toBuildId,
+                                         @Nullable Long afterTestId) {
+    TestRunsQuery query = createRunsQuery(buildId, toBuildId);
+    query.appendAfterTest("ti", afterTestId);
+    return query.finishRuns(buildTypeIds, "ti.test_name_id, ti.build_id");
+  }
+
+  /**
+   * Creates the query of the groups of runs of all tests, or of the tests after the given one.
+   */
+  @NotNull
+  public static TestRunsQuery forProjectGroups(@NotNull Collection<String> buildTypeIds,
+                                               long buildId,
+                                               @Nullable Long afterTestId) {
+    TestRunsQuery query = new TestRunsQuery("bs.build_type_id");
+    query.mySql.append("select min(ti.build_id), ti.test_name_id, ti.status,\n");
+    query.mySql.append("       bs.build_type_id, bs.modification_id,\n");
+    query.mySql.append("       h.agent_name, max(h.build_start_time_server),\n");
+    query.mySql.append("       max(ti.build_id), count(*)\n");
+    query.appendTestInfo(buildId, NO_UPPER_BOUND);
+    query.appendAfterTest("ti", afterTestId);
+    return query.finishGroups(buildTypeIds, "ti.test_name_id, bs.build_type_id, bs.modification_id, h.agent_name, ti.status");
+  }
+
+  /**
+   * Creates the query of the groups of runs of all tests, or of the tests after the given one,
+   * from the summary table. The summary has no time window.
+   */
+  @NotNull
+  public static TestRunsQuery forSummary(@NotNull Collection<String> buildTypeIds, @Nullable Long afterTestId) {
+    TestRunsQuery query = new TestRunsQuery("s.build_type_id");
+    query.mySql.append("select min(s.first_build_id), s.test_name_id, s.status,\n");
+    query.mySql.append("       s.build_type_id, s.modification_id,\n");
+    query.mySql.append("       s.agent_name, max(s.last_start_time),\n");
+    query.mySql.append("       max(s.last_build_id), sum(s.runs)\n");
+    query.appendSummary();
+    query.appendAfterTest("s", afterTestId);
+    return query.finishGroups(buildTypeIds, "s.test_name_id, s.build_type_id, s.modification_id, s.agent_name, s.status");
+  }
+
+  /**
+   * Creates the queries of the candidates for the analysis: the test, the number of its failures
+   * and the number of its runs, ordered by test. There is one query per {@link #MAX_BUILD_TYPES_IN_QUERY}
+   * build types. With one query, only the tests which have failed and have more than one run are returned,
+   * with several queries all the tests are: the numbers of a test are summed up in Java.
+   */
+  @NotNull
+  public static List<TestRunsQuery> forCandidates(@NotNull Collection<String> buildTypeIds, long buildId) {
+    List<List<String>> chunks = splitBuildTypes(buildTypeIds);
+    List<TestRunsQuery> queries = new ArrayList<TestRunsQuery>();
+    for (List<String> chunk : chunks) {
+      TestRunsQuery query = new TestRunsQuery("bs.build_type_id");
+      String failures = "sum(case when ti.status >= " + FAILURE_STATUS + " then 1 else 0 end)";
+      query.mySql.append("select ti.test_name_id, ").append(failures).append(", count(*)\n");
+      query.appendTestInfo(buildId, NO_UPPER_BOUND);
+      queries.add(query.finishCandidates(chunk, "ti.test_name_id",
+                                         chunks.size() == 1 ? failures + " > 0 and count(*) > 1" : null));
+    }
+    return queries;
+  }
+
+  /**
+   * Creates the queries of the candidates for the analysis from the summary table, for the whole history,
+   * see {@link #forCandidates}.
+   */
+  @NotNull
+  public static List<TestRunsQuery> forSummaryCandidates(@NotNull Collection<String> buildTypeIds) {
+    List<List<String>> chunks = splitBuildTypes(buildTypeIds);
+    List<TestRunsQuery> queries = new ArrayList<TestRunsQuery>();
+    for (List<String> chunk : chunks) {
+      TestRunsQuery query = new TestRunsQuery("s.build_type_id");
+      String failures = "sum(case when s.status >= " + FAILURE_STATUS + " then s.runs else 0 end)";
+      query.mySql.append("select s.test_name_id, ").append(failures).append(", sum(s.runs)\n");
+      query.appendSummary();
+      queries.add(query.finishCandidates(chunk, "s.test_name_id",
+                                         chunks.size() == 1 ? failures + " > 0 and sum(s.runs) > 1" : null));
+    }
+    return queries;
+  }
+
+  @NotNull
+  private static TestRunsQuery createRunsQuery(long buildId, long toBuildId) {
+    TestRunsQuery query = new TestRunsQuery("bs.build_type_id");
+    query.mySql.append("select ti.build_id, ti.test_name_id, ti.status,\n");
+    query.mySql.append("       bs.build_type_id, bs.modification_id,\n");
+    query.mySql.append("       h.agent_name, h.build_start_time_server\n");
+    query.appendTestInfo(buildId, toBuildId);
+    return query;
+  }
+
+  private TestRunsQuery(@NotNull String buildTypeColumn) {
+    myBuildTypeColumn = buildTypeColumn;
+  }
+
+  private void appendTestInfo(long buildId, long toBuildId) {
+    mySql.append("    from test_info ti\n");
+    mySql.append("    join build_state bs on bs.build_id = ti.build_id");
+    appendRange("bs", buildId, toBuildId);
+    mySql.append("\n");
+    mySql.append("    join history h on h.build_id = ti.build_id");
+    appendRange("h", buildId, toBuildId);
+    mySql.append("\n");
+    mySql.append("    where ti.status != 0");
+    appendRange("ti", buildId, toBuildId);
+    mySql.append("\n");
+  }
+
+  private void appendRange(@NotNull String alias, long buildId, long toBuildId) {
+    mySql.append(" and ").append(alias).append(".build_id >= ?");
+    myParams.add(buildId);
+    if (toBuildId != NO_UPPER_BOUND) {
+      mySql.append(" and ").append(alias).append(".build_id <= ?");
+      myParams.add(toBuildId);
+    }
+  }
+
+  private void appendSummary() {
+    mySql.append("    from ").append(TestRunsSummary.TABLE_NAME).append(" s\n");
+    mySql.append("    where s.runs > 0\n");
+  }
+
+  private void appendAfterTest(@NotNull String alias, @Nullable Long afterTestId) {
+    if (afterTestId != null) {
+      mySql.append("      and ").append(alias).append(".test_name_id > ?\n");
+      myParams.add(afterTestId);
+    }
+  }
+
+  private void appendBuildTypeFilter(@NotNull Collection<String> buildTypeIds) {
+    if (canFilterByBuildType(buildTypeIds)) {
+      mySql.append("      and ").append(myBuildTypeColumn).append(" in (").append(getPlaceholders(buildTypeIds.size())).append(")\n");
+      myParams.addAll(buildTypeIds);
+      myFilteredByBuildType = true;
+    }
+  }
+
+  @NotNull
+  private TestRunsQuery finishRuns(@NotNull Collection<String> buildTypeIds, @NotNull String orderBy) {
+    appendBuildTypeFilter(buildTypeIds);
+    mySql.append("    order by ").append(orderBy).append("\n");
+    return this;
+  }
+
+  @NotNull
+  private TestRunsQuery finishGroups(@NotNull Collection<String> buildTypeIds, @NotNull String groupBy) {
+    appendBuildTypeFilter(buildTypeIds);
+    mySql.append("    group by ").append(groupBy).append("\n");
+    // By position: not all DBs accept an aggregate in "order by".
+    mySql.append("    order by 2, 5, 1\n");
+    return this;
+  }
+
+  @NotNull
+  private TestRunsQuery finishCandidates(@NotNull Collection<String> buildTypeIds,
+                                         @NotNull String groupBy,
+                                         @Nullable String having) {
+    appendBuildTypeFilter(buildTypeIds);
+    mySql.append("    group by ").append(groupBy).append("\n");
+    if (having != null) {
+      mySql.append("    having ").append(having).append("\n");
+    }
+    mySql.append("    order by 1\n");
+    return this;
+  }
+
+  @NotNull
+  public String getSql() {
+    return mySql.toString();
+  }
+
+  @NotNull
+  public Object[] getParams() {
+    return myParams.toArray();
+  }
+
+  /**
+   * Returns whether the build types are filtered by the DB, otherwise they must be filtered in Java.
+   */
+  public boolean isFilteredByBuildType() {
+    return myFilteredByBuildType;
+  }
+
+  private static boolean canFilterByBuildType(@NotNull Collection<String> buildTypeIds) {
+    return !buildTypeIds.isEmpty() && buildTypeIds.size() <= MAX_BUILD_TYPES_IN_QUERY;
+  }
+
+  @NotNull
+  private static List<List<String>> splitBuildTypes(@NotNull Collection<String> buildTypeIds) {
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    List<String> chunk = null;
+    for (String buildTypeId : buildTypeIds) {
+      if (chunk == null || chunk.size() == MAX_BUILD_TYPES_IN_QUERY) {
+        chunk = new ArrayList<String>();
+        chunks.add(chunk);
+      }
+      chunk.add(buildTypeId);
+    }
+    return chunks;
+  }
+
+  @NotNull
+  private static String getPlaceholders(int number) {
+    StringBuilder placeholders = new StringBuilder();
+    for (int i = 0; i < number; i++) {
+      placeholders.append(i == 0 ? "?" : ", ?");
+    }
+    return placeholders.toString();
+  }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQLRunner;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.db.DBAction;
+import jetbrains.buildServer.serverSide.db.DBException;
+import jetbrains.buildServer.serverSide.db.DBFunctions;
+import jetbrains.buildServer.serverSide.db.DatabaseType;
+import jetbrains.buildServer.serverSide.db.SQLRunnerEx;
+import jetbrains.buildServer.serverSide.db.queries.GenericQuery;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maintains the summary of the test runs in the table of the plugin: one row per
+ * (test, build type, modification, agent, status) with the number of runs, the first and the last build,
+ * and the start time of the last build.
+ * The full-history analysis reads it instead of joining {@code test_info}, {@code build_state}
+ * and {@code history} (see {@link FetchMode#SUMMARY}), so it scales with the number of distinct changes
+ * rather than the number of runs.
+ * <p>
+ * Enabled by the internal property {@code teamcity.flakyTests.summary.enabled}.
+ * On the server startup the tables are created and filled from {@code test_info}, then the builds finished
+ * since the stored watermark are appended in the background after each build
+ * (a running build holds the watermark back, as in the incremental analysis).
+ * <p>
+ * The summary is filled in chunks of builds, each in its own transaction which advances the watermark,
+ * so the fill doesn't hold the DB for long and continues after a restart. A key keeps one row: the runs on the
+ * changes already in the summary (a change built again, or the builds without changes) are merged into their rows,
+ * the runs on the new changes are inserted by one query.
+ * <p>
+ * The rows whose runs have all been removed by the cleanup are pruned at most once per
+ * {@link #PRUNE_INTERVAL_MILLIS}. The older runs of the rows with some runs left stay counted.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestRunsSummary extends BuildServerAdapter {
+  private static final String ENABLED_PROPERTY = "teamcity.flakyTests.summary.enabled";
+  private static final int FILL_CHUNK_BUILDS = 1000;
+  private static final long PRUNE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private final SQLRunner mySQLRunner;
+  private final DBAccessLimiter myDBAccessLimiter;
+  private final ExecutorService myExecutor;
+  private final AtomicBoolean myUpdateScheduled = new AtomicBoolean();
+  private volatile boolean myReady;
+  private volatile long myLastPruneTime;
+
+  public TestRunsSummary(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                         @NotNull SQLRunner sqlRunner,
+                         @NotNull DBAccessLimiter dbAccessLimiter) {
+    mySQLRunner = sqlRunner;
+    myDBAccessLimiter = dbAccessLimiter;
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @NotNull
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Tests analyser: runs summary");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * Returns whether the summary has been filled and can be read.
+   */
+  public boolean isReady() {
+    return myReady;
+  }
+
+  @Override
+  public void serverStartup() {
+    if (!TeamCityProperties.getBoolean(ENABLED_PROPERTY)) {
+      return;
+    }
+
+    myExecutor.submit(new Runnable() {
+      public void run() {
+        try {
+          initialize();
+        } catch (DBException e) {
+          Loggers.SERVER.warn("Failed to initialize the tests runs summary", e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void buildFinished(@NotNull SRunningBuild build) {
+    if (!myReady || !myUpdateScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    myExecutor.submit(new Runnable() {
+      public void run() {
+        // The builds finished while updating are taken by the next update.
+        myUpdateScheduled.set(false);
+        try {
+          update();
+        } catch (DBException e) {
+          Loggers.SERVER.warn("Failed to update the tests runs summary", e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Creates the tables if needed and fills the summary up to the last finished build.
+   */
+  void initialize() {
+    withDB(new DBAction<Object>() {
+      public Object run(DBFunctions dbf) throws DBException {
+        try {
+          createTables(dbf);
+          if (getWatermark(dbf) < 0) {
+            startFill(dbf);
+          }
+          return null;
+        } catch (SQLException e) {
+          throw new DBException("Failed to create the tests runs summary", e);
+        }
+      }
+    });
+    update();
+    myReady = true;
+  }
+
+  /**
+   * Appends the runs of the builds finished since the watermark, in chunks if there are many of them,
+   * and prunes the summary if it's time.
+   * Called by the analysis before reading the summary.
+   */
+  public void update() {
+    long start = System.currentTimeMillis();
+    int chunks = 0;
+    while (updateStep()) {
+      ++chunks;
+    }
+    if (chunks > 0) {
+      Loggers.SERVER.info("The tests runs summary is filled with " + chunks + " chunks of builds in " +
+                          (System.currentTimeMillis() - start) + " ms");
+    }
+
+    if (System.currentTimeMillis() - myLastPruneTime >= PRUNE_INTERVAL_MILLIS) {
+      prune();
+    }
+  }
+
+  /**
+   * Adds the next chunk of the builds to the summary, or all the remaining builds if there are a few.
+   * Returns whether there may be more to add.
+   */
+  private synchronized boolean updateStep() {
+    return withDB(new DBAction<Boolean>() {
+      public Boolean run(DBFunctions dbf) throws DBException {
+        try {
+          long watermark = getWatermark(dbf);
+          long safeWatermark = getSafeWatermark(dbf);
+          if (watermark < 0 || safeWatermark <= watermark) {
+            return false;
+          }
+          long toBuildId = Math.min(safeWatermark, watermark + FILL_CHUNK_BUILDS);
+          append(dbf, watermark, toBuildId);
+          return toBuildId < safeWatermark;
+        } catch (SQLException e) {
+          throw new DBException("Failed to update the tests runs summary", e);
+        }
+      }
+    });
+  }
+
+  private synchronized void prune() {
+    withDB(new DBAction<Object>() {
+      public Object run(DBFunctions dbf) throws DBException {
+        try {
+          long start = System.currentTimeMillis();
+          Statement statement = dbf.getConnection().createStatement();
+          int rows;
+          try {
+            rows = statement.executeUpdate(PRUNE_SQL);
+          } finally {
+            statement.close();
+          }
+          if (rows > 0) {
+            Loggers.SERVER.info("Pruned " + rows + " rows of the removed builds from the tests runs summary in " +
+                                (System.currentTimeMillis() - start) + " ms");
+          }
+          return null;
+        } catch (SQLException e) {
+          throw new DBException("Failed to prune the tests runs summary", e);
+        }
+      }
+    });
+    myLastPruneTime = System.currentTimeMillis();
+  }
+
+  private static void createTables(@NotNull DBFunctions dbf) throws SQLException {
+    Connection connection = dbf.getConnection();
+    DatabaseMetaData metaData = connection.getMetaData();
+    String bigint = dbf.getDatabaseType() == DatabaseType.ORACLE ? "number(19)" : "bigint";
+    String integer = dbf.getDatabaseType() == DatabaseType.ORACLE ? "number(10)" : "int";
+    if (!DBMetaData.tableExists(metaData, TABLE_NAME)) {
+      Loggers.SERVER.info("Creating the tests runs summary table " + TABLE_NAME);
+      execute(connection, "create table " + TABLE_NAME + " (" +
+                          "test_name_id " + bigint + " not null, " +
+                          "build_type_id varchar(80) not null, " +
+                          "modification_id " + bigint + ", " +
+                          "agent_name varchar(256) not null, " +
+                          "status " + integer + " not null, " +
+                          "runs " + integer + " not null, " +
+                          "first_build_id " + bigint + " not null, " +
+                          "last_build_id " + bigint + " not null, " +
+                          "last_start_time " + bigint + ")");
+      execute(connection, "create index " + TABLE_NAME + "_test on " + TABLE_NAME + " (test_name_id)");
+      execute(connection, "create index " + TABLE_NAME + "_change on " + TABLE_NAME + " (build_type_id, modification_id)");
+    }
+    if (!DBMetaData.tableExists(metaData, WATERMARK_TABLE_NAME)) {
+      execute(connection, "create table " + WATERMARK_TABLE_NAME + " (build_id " + bigint + " not null)");
+    }
+  }
+
+  /**
+   * Sets the watermark before the first build of the history, so the summary is filled from there.
+   */
+  private static void startFill(@NotNull DBFunctions dbf) throws SQLException {
+    long firstBuildId = new GenericQuery<Long>(GET_MIN_BUILD_ID_SQL, new GenericQuery.ReturnSingle<Long>(1L)).execute(dbf);
+    Loggers.SERVER.info("Filling the tests runs summary from build " + firstBuildId);
+    Connection connection = dbf.getConnection();
+    execute(connection, "delete from " + WATERMARK_TABLE_NAME);
+    execute(connection, "insert into " + WATERMARK_TABLE_NAME + " values (" + (firstBuildId - 1) + ")");
+  }
+
+  /**
+   * Adds the runs of the builds in (fromBuildId, toBuildId] to the summary, in one transaction with the watermark.
+   * The runs on the changes already in the summary are read: the rows of their known keys are updated,
+   * the others are inserted. The runs on the new changes are inserted by one query.
+   */
+  private static void append(@NotNull DBFunctions dbf, long fromBuildId, long toBuildId) throws SQLException {
+    List<Row> rows = new GenericQuery<List<Row>>(GET_KNOWN_CHANGES_RUNS_SQL, new GenericQuery.ResultSetProcessor<List<Row>>() {
+      @NotNull
+      public List<Row> process(ResultSet rs) throws SQLException {
+        List<Row> result = new ArrayList<Row>();
+        while (rs.next()) {
+          result.add(new Row(rs));
+        }
+        return result;
+      }
+    }).execute(dbf, fromBuildId, toBuildId);
+
+    Map<String, Set<String>> knownKeys = new HashMap<String, Set<String>>();
+    for (Row row : rows) {
+      if (!knownKeys.containsKey(row.getChangeKey())) {
+        knownKeys.put(row.getChangeKey(), getKnownKeys(dbf, row.myBuildTypeId, row.myModificationId));
+      }
+    }
+
+    Connection connection = dbf.getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      PreparedStatement update = connection.prepareStatement(UPDATE_SQL);
+      PreparedStatement updateNoModification = connection.prepareStatement(UPDATE_NO_MODIFICATION_SQL);
+      PreparedStatement insert = connection.prepareStatement(INSERT_SQL);
+      try {
+        for (Row row : rows) {
+          if (knownKeys.get(row.getChangeKey()).contains(row.getRunKey())) {
+            PreparedStatement statement = row.myModificationId != null ? update : updateNoModification;
+            row.setUpdateParameters(statement);
+            statement.addBatch();
+          } else {
+            row.setInsertParameters(insert);
+            insert.addBatch();
+          }
+        }
+        update.executeBatch();
+        updateNoModification.executeBatch();
+        insert.executeBatch();
+      } finally {
+        update.close();
+        updateNoModification.close();
+        insert.close();
+      }
+
+      // The changes merged above are in the summary now, so they are not inserted twice.
+      PreparedStatement insertNewChanges = connection.prepareStatement(INSERT_NEW_CHANGES_RUNS_SQL);
+      try {
+        insertNewChanges.setLong(1, fromBuildId);
+        insertNewChanges.setLong(2, toBuildId);
+        insertNewChanges.executeUpdate();
+      } finally {
+        insertNewChanges.close();
+      }
+      execute(connection, "update " + WATERMARK_TABLE_NAME + " set build_id = " + toBuildId);
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  @NotNull
+  private static Set<String> getKnownKeys(@NotNull DBFunctions dbf,
+                                          @NotNull String buildTypeId,
+                                          @Nullable Long modificationId) {
+    GenericQuery<Set<String>> query = new GenericQuery<Set<String>>(
+      modificationId != null ? GET_KNOWN_KEYS_SQL : GET_KNOWN_KEYS_NO_MODIFICATION_SQL,
+      new GenericQuery.ResultSetProcessor<Set<String>>() {
+      @NotNull
+      public Set<String> process(ResultSet rs) throws SQLException {
+        Set<String> result = new HashSet<String>();
+        while (rs.next()) {
+          result.add(Row.getRunKey(rs.getLong(1), rs.getString(2), rs.getInt(3)));
+        }
+        return result;
+      }
+    });
+    return modificationId != null ? query.execute(dbf, buildTypeId, modificationId) : query.execute(dbf, buildTypeId);
+  }
+
+  /**
+   * Returns the watermark of the summary, or -1 if it hasn't been filled.
+   */
+  private static long getWatermark(@NotNull DBFunctions dbf) {
+    return new GenericQuery<Long>(GET_WATERMARK_SQL, new GenericQuery.ReturnSingle<Long>(-1L)).execute(dbf);
+  }
+
+  /**
+   * Returns the build id up to which the test runs are complete:
+   * the last finished build, but before the first build which is still running.
+   */
+  static long getSafeWatermark(@NotNull DBFunctions dbf) {
+    long maxBuildId = new GenericQuery<Long>(GET_MAX_FINISHED_BUILD_ID_SQL, new GenericQuery.ReturnSingle<Long>(0L))
+                      .execute(dbf);
+    long minRunningBuildId = new GenericQuery<Long>(GET_MIN_RUNNING_BUILD_ID_SQL, new GenericQuery.ReturnSingle<Long>(0L))
+                             .execute(dbf);
+    return minRunningBuildId > 0 ? Math.min(maxBuildId, minRunningBuildId - 1) : maxBuildId;
+  }
+
+  private static void execute(@NotNull Connection connection, @NotNull String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+
+  private <T> T withDB(@NotNull DBAction<T> action) {
+    myDBAccessLimiter.acquire();
+    try {
+      return ((SQLRunnerEx) mySQLRunner).withDB(action);
+    } finally {
+      myDBAccessLimiter.release();
+    }
+  }
+
+  /**
+   * A row of the new runs query.
+   */
+  private static class Row {
+    private final long myTestId;
+    private final String myBuildTypeId;
+    private final Long myModificationId;
+    private final String myAgentName;
+    private final int myStatus;
+    private final int myRuns;
+    private final long myFirstBuildId;
+    private final long myLastBuildId;
+    private final long myLastStartTime;
+
+    private Row(@NotNull ResultSet rs) throws SQLException {
+      myTestId = rs.getLong(1);
+      myBuildTypeId = rs.getString(2);
+      long modificationId = rs.getLong(3);
+      myModificationId = rs.wasNull() ? null : modificationId;
+      myAgentName = rs.getString(4);
+      myStatus = rs.getInt(5);
+      myRuns = rs.getInt(6);
+      myFirstBuildId = rs.getLong(7);
+      myLastBuildId = rs.getLong(8);
+      myLastStartTime = rs.getLong(9);
+    }
+
+    @NotNull
+    private String getChangeKey() {
+      return myBuildTypeId + ":" + myModificationId;
+    }
+
+    @NotNull
+    private String getRunKey() {
+      return getRunKey(myTestId, myAgentName, myStatus);
+    }
+
+    @NotNull
+    private static String getRunKey(long testId, @Nullable String agentName, int status) {
+      return testId + ":" + status + ":" + agentName;
+    }
+
+    private void setUpdateParameters(@NotNull PreparedStatement statement) throws SQLException {
+      statement.setInt(1, myRuns);
+      statement.setLong(2, myLastBuildId);
+      statement.setLong(3, myLastStartTime);
+      statement.setLong(4, myTestId);
+      statement.setString(5, myBuildTypeId);
+      int index = 6;
+      if (myModificationId != null) {
+        statement.setLong(index++, myModificationId);
+      }
+      statement.setString(index++, myAgentName);
+      statement.setInt(index, myStatus);
+    }
+
+    private void setInsertParameters(@NotNull PreparedStatement statement) throws SQLException {
+      statement.setLong(1, myTestId);
+      statement.setString(2, myBuildTypeId);
+      if (myModificationId != null) {
+        statement.setLong(3, myModificationId);
+      } else {
+        statement.setNull(3, Types.BIGINT);
+      }
+      statement.setString(4, myAgentName);
+      statement.setInt(5, myStatus);
+      statement.setInt(6, myRuns);
+      statement.setLong(7, myFirstBuildId);
+      statement.setLong(8, myLastBuildId);
+      statement.setLong(9, myLastStartTime);
+    }
+  }
+
+  static final String TABLE_NAME = "flaky_test_runs";
+  private static final String WATERMARK_TABLE_NAME = "flaky_test_runs_watermark";
+
+  private static final String RUNS_SELECT =
+    "select ti.test_name_id, bs.build_type_id, bs.modification_id, h.agent_name, ti.status,        \n" +
+    "       count(*), min(ti.build_id), max(ti.build_id), max(h.build_start_time_server)            \n" +
+    "    from test_info ti                                                                         \n" +
+    "    join build_state bs on bs.build_id = ti.build_id                                          \n" +
+    "    join history h on h.build_id = ti.build_id                                                \n";
+
+  private static final String RUNS_GROUP_BY =
+    "    group by ti.test_name_id, bs.build_type_id, bs.modification_id, h.agent_name, ti.status   \n";
+
+  private static final String RUNS_IN_RANGE =
+    "    where ti.build_id > ? and ti.build_id <= ? and ti.status != 0                             \n";
+
+  private static final String CHANGE_IN_SUMMARY =
+    "exists (select 1 from " + TABLE_NAME + " r                                                    \n" +
+    "            where r.build_type_id = bs.build_type_id                                          \n" +
+    "              and (r.modification_id = bs.modification_id                                     \n" +
+    "                   or r.modification_id is null and bs.modification_id is null))              \n";
+
+  private static final String GET_KNOWN_CHANGES_RUNS_SQL =
+    RUNS_SELECT +
+    RUNS_IN_RANGE +
+    "      and " + CHANGE_IN_SUMMARY +
+    RUNS_GROUP_BY;
+
+  private static final String INSERT_NEW_CHANGES_RUNS_SQL =
+    "insert into " + TABLE_NAME + "                                                                \n" +
+    "    (test_name_id, build_type_id, modification_id, agent_name, status,                        \n" +
+    "     runs, first_build_id, last_build_id, last_start_time)                                    \n" +
+    RUNS_SELECT +
+    RUNS_IN_RANGE +
+    "      and not " + CHANGE_IN_SUMMARY +
+    RUNS_GROUP_BY;
+
+  private static final String GET_KNOWN_KEYS_SQL =
+    "select test_name_id, agent_name, status from " + TABLE_NAME + "                               \n" +
+    "    where build_type_id = ? and modification_id = ?                                           \n";
+
+  private static final String GET_KNOWN_KEYS_NO_MODIFICATION_SQL =
+    "select test_name_id, agent_name, status from " + TABLE_NAME + "                               \n" +
+    "    where build_type_id = ? and modification_id is null                                       \n";
+
+  private static final String UPDATE_SQL =
+    "update " + TABLE_NAME + " set runs = runs + ?, last_build_id = ?, last_start_time = ?         \n" +
+    "    where test_name_id = ? and build_type_id = ? and modification_id = ?                      \n" +
+    "      and agent_name = ? and status = ?                                                       \n";
+
+  private static final String UPDATE_NO_MODIFICATION_SQL =
+    "update " + TABLE_NAME + " set runs = runs + ?, last_build_id = ?, last_start_time = ?         \n" +
+    "    where test_name_id = ? and build_type_id = ? and modification_id is null                  \n" +
+    "      and agent_name = ? and status = ?                                                       \n";
+
+  private static final String PRUNE_SQL =
+    "delete from " + TABLE_NAME + "                                                                \n" +
+    "    where last_build_id < (select min(build_id) from history)                                 \n";
+
+  private static final String INSERT_SQL =
+    "insert into " + TABLE_NAME + "                                                                \n" +
+    "    (test_name_id, build_type_id, modification_id, agent_name, status,                        \n" +
+    "     runs, first_build_id, last_build_id, last_start_time)                                    \n" +
+    "    values (?, ?, ?, ?, ?, ?, ?, ?, ?)                                                        \n";
+
+  private static final String GET_WATERMARK_SQL =
+    "select max(build_id) from " + WATERMARK_TABLE_NAME + "                                        \n";
+
+  private static final String GET_MIN_BUILD_ID_SQL =
+    "select min(build_id) from history                                                             \n";
+
+  private static final String GET_MAX_FINISHED_BUILD_ID_SQL =
+    "select max(build_id) from history                                                             \n";
+
+  private static final String GET_MIN_RUNNING_BUILD_ID_SQL =
+    "select min(build_id) from running                                                             \n";
+}
@@ -4,26 +4,32 @@
  */
 package jetbrains.buildServer.serverSide.flaky.analyser;
 
+import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SQLRunner;
 import jetbrains.buildServer.serverSide.STest;
+import jetbrains.buildServer.serverSide.STestManager;
+import jetbrains.buildServer.serverSide.STestRun;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.db.DBAction;
 import jetbrains.buildServer.serverSide.db.DBException;
 import jetbrains.buildServer.serverSide.db.DBFunctions;
 import jetbrains.buildServer.serverSide.db.SQLRunnerEx;
 import jetbrains.buildServer.serverSide.db.queries.GenericQuery;
 import jetbrains.buildServer.serverSide.flaky.data.*;
-import jetbrains.buildServer.serverSide.stat.TestFailureRate;
-import jetbrains.buildServer.serverSide.stat.TestFailuresStatistics;
-import jetbrains.buildServer.util.SimpleObjectPool;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents the tests analyser.
@@ -33,227 +39,1285 @@ import java.util.*;
  * @since 8.0
  */
 public class TestsAnalyser {
-  private static final int BUFFER_SIZE = 1024;
-  private static final int POOL_SIZE = 1024;
   private static final float FAILURE_RATE = 0.01f;
   private static final int HEURISTIC_MIN_FAILURES_NUMBER = 10;
   private static final int MIN_RUNS_NUMBER = 1;
 
   private static final long NO_BUILDS_TO_ANALYSE = -1;
 
-  private final TestFailuresStatistics myFailuresStatistics;
+  // Batched fetch: many tests per query, the batch size adapts to the query time.
+  private static final String MAX_BATCH_SIZE_PROPERTY = "teamcity.flakyTests.batchFetch.maxSize";
+  private static final String BATCH_TARGET_MILLIS_PROPERTY = "teamcity.flakyTests.batchFetch.targetMillis";
+  private static final int MIN_BATCH_SIZE = 1;
+  private static final int INITIAL_BATCH_SIZE = 50;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 900;   // keeps "in (...)" below the Oracle limit of 1000
+  private static final long DEFAULT_BATCH_TARGET_MILLIS = 2000;
+
+  // Parallel analysis: the tests are split into chunks analysed by the workers of the scheduler.
+  private static final int CHUNK_SIZE = 1000;
+  // One-scan analysis: the scan hands the tests over to a worker when either limit is reached.
+  private static final int SCAN_CHUNK_TESTS = 100;
+  private static final int SCAN_CHUNK_ROWS = 10000;
+
+  // Full-history analysis: the processed tests are saved and the partial result is published at intervals.
+  private static final String CHECKPOINT_INTERVAL_PROPERTY = "teamcity.flakyTests.checkpoint.intervalSeconds";
+  private static final int DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 300;
+
+  private final STestManager myTestManager;
   private final SQLRunner mySQLRunner;
 
   private final AlgorithmsHolder myAlgorithmsHolder;
   private final TestAnalysisProgressManager myProgressManager;
   private final TestAnalysisResultHolder myHolder;
+  private final TestHistoryStateHolder myHistoryHolder;
+  private final DBAccessLimiter myDBAccessLimiter;
+  private final AnalysisCheckpointStore myCheckpointStore;
+  private final AnalysisStatisticsMonitor myStatisticsMonitor;
+  private final TestRunsSummary myRunsSummary;
 
-  public TestsAnalyser(@NotNull TestFailuresStatistics failuresStatistics,
+  // Guards the analysis state of a project: a full analysis and updates by finished builds.
+  private final ConcurrentMap<String, Lock> myProjectLocks = new ConcurrentHashMap<String, Lock>();
+
+  public TestsAnalyser(@NotNull STestManager testManager,
                        @NotNull SQLRunner sqlRunner,
                        @NotNull AlgorithmsHolder algorithmsHolder,
                        @NotNull TestAnalysisProgressManager progressManager,
-                       @NotNull TestAnalysisResultHolder holder) {
-    myFailuresStatistics = failuresStatistics;
+                       @NotNull TestAnalysisResultHolder holder,
+                       @NotNull TestHistoryStateHolder historyHolder,
+                       @NotNull DBAccessLimiter dbAccessLimiter,
+                       @NotNull AnalysisCheckpointStore checkpointStore,
+                       @NotNull AnalysisStatisticsMonitor statisticsMonitor,
+                       @NotNull TestRunsSummary runsSummary) {
+    myTestManager = testManager;
     mySQLRunner = sqlRunner;
     myAlgorithmsHolder = algorithmsHolder;
     myProgressManager = progressManager;
     myHolder = holder;
+    myHistoryHolder = historyHolder;
+    myDBAccessLimiter = dbAccessLimiter;
+    myCheckpointStore = checkpointStore;
+    myStatisticsMonitor = statisticsMonitor;
+    myRunsSummary = runsSummary;
   }
 
+  /**
+   * Runs the full analysis of the project and publishes the result.
+   * The caller must hold the lock of the progress (see {@link AnalysisScheduler}), it's released here.
+   * <p>
+   * The full-history analysis is checkpointed: if it's cancelled or interrupted by the server shutdown,
+   * the next analysis with the same settings continues from the last checkpoint.
+   *
+   * @param workersExecutor the pool shared by the analyses to fetch and analyse the tests in parallel,
+   *                        null to do it on the current thread
+   * @param workers the number of the workers of this analysis, see {@link AnalysisWorkers}
+   */
   public void analyseTestsInProject(@NotNull SProject project,
-                                    @NotNull TestAnalysisSettings settings) {
-    TestAnalysisProgress progress = myProgressManager.getProgressFor(project);
-    if (!progress.getLock().compareAndSet(false, true)) {
-      return;
-    }
-
+                                    @NotNull TestAnalysisSettings settings,
+                                    @NotNull TestAnalysisProgress progress,
+                                    @Nullable ExecutorService workersExecutor,
+                                    int workers) {
+    Lock projectLock = getProjectLock(project);
+    projectLock.lock();
     try {
       // Starting...
       progress.start("Starting...");
+      Date startDate = new Date();
       TestAnalysisResult result = new TestAnalysisResult();
-      result.setStartDate(new Date());
+      result.setStartDate(startDate);
 
       // Preparing data...
       progress.setCurrentStep("Preparing data...");
-      SimpleObjectPool<RawData> rawDataPool = getRawDataPool();
       List<TestData> testDataList = new ArrayList<TestData>();
-      List<CheckAlgorithm> algorithms = myAlgorithmsHolder.getAlgorithms(settings);
+      Checkpointer checkpointer = null;
+      AnalysisMetrics metrics = null;
+      boolean completed = false;
 
       try {
-        List<RawData> buffer = new ArrayList<RawData>(BUFFER_SIZE);    // reuse the allocated buffer
         Set<String> buildTypeIds = getBuildTypeIds(project, settings);
 
-        // Collecting failure statistics...
-        List<TestFailureRate> allFailingTests =
-          myFailuresStatistics.getFailingTests(project, FAILURE_RATE);
-        progress.setTotalSize(allFailingTests.size());
-        result.setTotalTests(allFailingTests.size());
-
         // Calculating the start build...
         long buildId = findBuildIdForTest(null, settings.getAnalyseTimePeriod());
         if (buildId == NO_BUILDS_TO_ANALYSE) {
           return;
         }
 
+        // Selecting the failing tests...
+        FetchMode fetchMode = FetchMode.getFetchMode(settings, myRunsSummary.isReady());
+        long failingTestsStart = System.nanoTime();
+        List<TestCandidate> allCandidates = getCandidates(project, fetchMode, buildId, buildTypeIds);
+        long failingTestsNanos = System.nanoTime() - failingTestsStart;
+        progress.setTotalSize(allCandidates.size());
+        result.setTotalTests(allCandidates.size());
+
+        // Resuming from the checkpoint...
+        List<TestCandidate> testsToAnalyse = allCandidates;
+        checkpointer = startCheckpointing(project, settings, fetchMode, buildTypeIds, buildId, startDate);
+        if (checkpointer != null) {
+          AnalysisCheckpoint checkpoint = checkpointer.getCheckpoint();
+          testsToAnalyse = new ArrayList<TestCandidate>();
+          for (TestCandidate candidate : allCandidates) {
+            if (!checkpoint.isProcessed(candidate.getTest().getTestNameId())) {
+              testsToAnalyse.add(candidate);
+            }
+          }
+          testDataList.addAll(checkpoint.getTests());
+          result.setStartDate(checkpoint.getStartDate());
+          progress.setDoneSize(allCandidates.size() - testsToAnalyse.size());
+        }
+
         // Analysis...
         progress.setCurrentStep("Analysing tests failures...");
-        for (TestFailureRate testFailureRate : allFailingTests) {
-          STest test = testFailureRate.getTest();
-          int failureCount = testFailureRate.getFailureCount();
-          int successCount = testFailureRate.getSuccessCount();
-          int totalCount = failureCount + successCount;
-
-          if (settings.isSpeedUpAlwaysFailing() &&
-              failureCount >= HEURISTIC_MIN_FAILURES_NUMBER && successCount == 0) {
-            testDataList.add(new TestData(test));
-          } else if (totalCount > MIN_RUNS_NUMBER) {
-            TestData testData = getTestData(test, buildId, algorithms,
-                                            buildTypeIds, rawDataPool, buffer);
-            if (testData != null) {
-              testDataList.add(testData);
-            }
+        AnalysisWorkers analysisWorkers = createWorkers(settings, buildTypeIds, workersExecutor, workers);
+        AnalysisWorker worker = analysisWorkers.getFirstWorker();
+        metrics = worker.getMetrics();
+        metrics.addFailingTestsTime(failingTestsNanos);
+        try {
+          if (fetchMode == FetchMode.STREAMING || fetchMode == FetchMode.AGGREGATED || fetchMode == FetchMode.SUMMARY) {
+            analyseInOneScan(testsToAnalyse, fetchMode, settings, buildId, analysisWorkers,
+                             progress, checkpointer, testDataList);
+          } else if (fetchMode == FetchMode.INCREMENTAL) {
+            analyseIncrementally(project, testsToAnalyse, settings, buildId, buildTypeIds, analysisWorkers,
+                                 progress, testDataList);
+          } else if (analysisWorkers.isParallel() && testsToAnalyse.size() > CHUNK_SIZE) {
+            analyseInParallel(testsToAnalyse, fetchMode, settings, buildId, analysisWorkers,
+                              progress, checkpointer, testDataList);
+          } else {
+            analyseTests(testsToAnalyse, fetchMode, settings, buildId, worker, progress, checkpointer, testDataList);
           }
-          progress.incDoneSize();
+          analysisWorkers.mergeMetrics();
+        } finally {
+          analysisWorkers.cancel();
         }
+        completed = true;
       } finally {
-        // Finishing...
-        progress.setCurrentStep("Finishing...");
-        result.setFinishDate(new Date());
-        result.setTests(testDataList);
-        result.setSettings(settings);
-        myHolder.putTestAnalysisResult(project, result);
+        if (checkpointer != null && !completed) {
+          // The next analysis continues from here, the last published result is kept.
+          checkpointer.save();
+        } else if (!progress.isCancelled()) {
+          // Finishing... (a cancelled analysis leaves the previous result)
+          progress.setCurrentStep("Finishing...");
+          result.setFinishDate(new Date());
+          result.setTests(testDataList);
+          result.setSettings(settings);
+          if (completed) {
+            AnalysisStatistics statistics = metrics.toStatistics();
+            result.setStatistics(statistics);
+            myStatisticsMonitor.analysisFinished(project.getProjectId(), statistics);
+          }
+          myHolder.putTestAnalysisResult(project, result);
+          if (checkpointer != null) {
+            myCheckpointStore.delete(project.getProjectId());
+          }
+        }
       }
+    } catch (CancellationException e) {
+      Loggers.SERVER.info("Tests analysis in project " + project.getProjectId() + " cancelled");
     } finally {
-      progress.getLock().set(false);
+      projectLock.unlock();
+      progress.finish();
       myProgressManager.clearProgressFor(project);
     }
   }
 
+  /**
+   * Updates the published analysis result of the project with the test runs of the finished builds.
+   * <p>
+   * Only the tests from the stored incremental state are re-analysed (the new failing tests
+   * are picked up by the next analysis), and only their data is published. Does nothing
+   * if the project is being analysed right now: the analysis is going to take the builds into account.
+   */
+  public void analyseFinishedBuilds(@NotNull SProject project, @NotNull Collection<SBuild> builds) {
+    Lock projectLock = getProjectLock(project);
+    if (!projectLock.tryLock()) {
+      return;
+    }
+
+    try {
+      TestAnalysisResultInfo lastResult = myHolder.getResultInfo(project);
+      TestHistoryState state = myHistoryHolder.getState(project);
+      if (lastResult == null || state == null) {
+        return;
+      }
+
+      TestAnalysisSettings settings = lastResult.getSettings();
+      Set<String> buildTypeIds = getBuildTypeIds(project, settings);
+      if (!state.getSettingsKey().equals(getSettingsKey(buildTypeIds))) {
+        return;
+      }
+
+      List<SBuild> newBuilds = new ArrayList<SBuild>();
+      for (SBuild build : builds) {
+        if (build.getBuildId() > state.getWatermark() && buildTypeIds.contains(build.getBuildTypeId())) {
+          newBuilds.add(build);
+        }
+      }
+      if (newBuilds.isEmpty()) {
+        return;
+      }
+
+      // Appending the runs...
+      Map<Long, Long> modificationIds = getModificationIds(newBuilds);
+      Map<Long, STest> affectedTests = new LinkedHashMap<Long, STest>();
+      for (SBuild build : newBuilds) {
+        int buildType = state.intern(build.getBuildTypeId());
+        int agent = state.intern(build.getAgentName());
+        Long modificationId = modificationIds.get(build.getBuildId());
+        long startTime = build.getStartDate().getTime();
+        for (STestRun testRun : build.getFullStatistics().getAllTests()) {
+          int status = testRun.getStatus().getPriority();
+          if (status == Status.UNKNOWN.getPriority()) {
+            continue;
+          }
+
+          STest test = testRun.getTest();
+          TestHistory history = state.getHistory(test.getTestNameId());
+          if (history != null) {
+            history.add(build.getBuildId(), status, buildType,
+                        modificationId != null ? modificationId : 0, agent, startTime);
+            affectedTests.put(test.getTestNameId(), test);
+          }
+        }
+      }
+      if (affectedTests.isEmpty()) {
+        return;
+      }
+
+      // Re-analysing the affected tests...
+      AnalysisWorker worker = createWorker(settings, buildTypeIds, myAlgorithmsHolder.createChangesOracle());
+      RunBuffer buffer = worker.getBuffer();
+      Map<Long, TestData> updated = new HashMap<Long, TestData>();
+      for (STest test : affectedTests.values()) {
+        TestHistory history = state.getOrCreateHistory(test.getTestNameId());
+        TestData testData = null;
+        if (history.size() > 1) {
+          buffer.reset(test.getTestNameId());
+          history.copyTo(state, buffer);
+          buffer.sortByModification();    // already sorted, checked in one pass
+          testData = runAlgorithms(worker, test, state.getFromBuildId(), buffer);
+        }
+        updated.put(test.getTestNameId(), testData);
+      }
+
+      // Publishing...
+      myHolder.updateTests(project, updated);
+      myHistoryHolder.putState(project, state);
+    } finally {
+      projectLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the modifications of the builds as the runs queries read them (build_state.modification_id),
+   * build id -> modification id, 0 if the build has no modification.
+   */
+  @NotNull
+  private Map<Long, Long> getModificationIds(@NotNull List<SBuild> builds) {
+    final Map<Long, Long> modificationIds = new HashMap<Long, Long>();
+    for (int from = 0; from < builds.size(); from += DEFAULT_MAX_BATCH_SIZE) {
+      final List<Long> buildIds = new ArrayList<Long>();
+      for (SBuild build : builds.subList(from, Math.min(from + DEFAULT_MAX_BATCH_SIZE, builds.size()))) {
+        buildIds.add(build.getBuildId());
+      }
+
+      withDB(new DBAction<Object>() {
+        public Object run(DBFunctions dbf) throws DBException {
+          StringBuilder placeholders = new StringBuilder();
+          for (int i = 0; i < buildIds.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+          }
+          String sql = GET_MODIFICATION_IDS_SQL + "(" + placeholders + ")\n";
+          new GenericQuery<Object>(sql, new GenericQuery.ResultSetProcessor<Object>() {
+            @Nullable
+            public Object process(ResultSet rs) throws SQLException {
+              while (rs.next()) {
+                modificationIds.put(rs.getLong(1), rs.getLong(2));
+              }
+              return null;
+            }
+          }).execute(dbf, buildIds.toArray());
+
+          return null;
+        }
+      });
+    }
+    return modificationIds;
+  }
+
+  @NotNull
+  private Lock getProjectLock(@NotNull SProject project) {
+    Lock lock = myProjectLocks.get(project.getProjectId());
+    if (lock == null) {
+      Lock newLock = new ReentrantLock();
+      lock = myProjectLocks.putIfAbsent(project.getProjectId(), newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
   @NotNull
   public TestData getTestData(long testId, @NotNull SProject project,
                               @NotNull TestAnalysisResult lastResult) {
-    List<RawData> buffer = new ArrayList<RawData>(BUFFER_SIZE);
+    return getTestData(Collections.singletonList(testId), project, lastResult).get(testId);
+  }
+
+  /**
+   * Computes the data of several tests in the time window of the last analysis.
+   * The runs are fetched in batches, one query per batch.
+   *
+   * @return the map from test id to its data, contains all the requested tests
+   */
+  @NotNull
+  public Map<Long, TestData> getTestData(@NotNull Collection<Long> testIds, @NotNull SProject project,
+                                         @NotNull TestAnalysisResult lastResult) {
+    Map<Long, TestData> result = new HashMap<Long, TestData>();
     TestAnalysisSettings settings = lastResult.getSettings();
     Set<String> buildTypeIds = getBuildTypeIds(project, settings);
-    SimpleObjectPool<RawData> rawDataPool = getRawDataPool();
+    AnalysisWorker worker = createWorker(settings, buildTypeIds, myAlgorithmsHolder.createChangesOracle());
     long buildId = findBuildIdForTest(lastResult.getStartDate(),
                                       settings.getAnalyseTimePeriod());
     if (buildId == NO_BUILDS_TO_ANALYSE) {
-      return new TestData(testId, project.getProjectId());
+      for (Long testId : testIds) {
+        result.put(testId, new TestData(testId, project.getProjectId()));
+      }
+      return result;
+    }
+
+    int maxBatchSize = TeamCityProperties.getInteger(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE);
+    List<Long> batch = new ArrayList<Long>();
+    Iterator<Long> iterator = new LinkedHashSet<Long>(testIds).iterator();
+    while (iterator.hasNext()) {
+      batch.add(iterator.next());
+      if (batch.size() < maxBatchSize && iterator.hasNext()) {
+        continue;
+      }
+
+      worker.releaseBuffers();
+      collectRawData(batch, buildId, TestRunsQuery.NO_UPPER_BOUND, worker);
+      for (Long testId : batch) {
+        RunBuffer buffer = worker.findBuffer(testId);
+        if (buffer == null) {
+          buffer = worker.getBuffer(testId);    // no runs in the window
+        }
+        result.put(testId, buildTestData(worker, testId, project.getProjectId(), buildId, null, buffer));
+      }
+      batch.clear();
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether any of the analysed build types of the project has builds started after the date.
+   */
+  public boolean hasNewBuilds(@NotNull SProject project, @NotNull TestAnalysisSettings settings, @NotNull Date since) {
+    final Set<String> buildTypeIds = getBuildTypeIds(project, settings);
+    final long timestamp = since.getTime();
+    return withDB(new DBAction<Boolean>() {
+      public Boolean run(DBFunctions dbf) throws DBException {
+        return new GenericQuery<Boolean>(GET_NEW_BUILD_TYPES_SQL, new GenericQuery.ResultSetProcessor<Boolean>() {
+          @NotNull
+          public Boolean process(ResultSet rs) throws SQLException {
+            while (rs.next()) {
+              if (buildTypeIds.contains(rs.getString(1))) {
+                return true;
+              }
+            }
+            return false;
+          }
+        }).execute(dbf, timestamp);
+      }
+    });
+  }
+
+  /**
+   * Measures the response time of a trivial query, in milliseconds.
+   * It doesn't go through the analysis queries limit: the DB itself is measured.
+   */
+  public long measureDBLatency() {
+    long start = System.nanoTime();
+    new GenericQuery<Long>(GET_MIN_RUNNING_BUILD_ID_SQL, new GenericQuery.ReturnSingle<Long>(NO_BUILDS_TO_ANALYSE))
+      .execute(((SQLRunnerEx) mySQLRunner));
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  @NotNull
+  private AnalysisWorker createWorker(@NotNull TestAnalysisSettings settings,
+                                      @NotNull Set<String> buildTypeIds,
+                                      @NotNull BuildChangesOracle changesOracle) {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(
+      MIN_BATCH_SIZE,
+      TeamCityProperties.getInteger(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE),
+      INITIAL_BATCH_SIZE,
+      TeamCityProperties.getLong(BATCH_TARGET_MILLIS_PROPERTY, DEFAULT_BATCH_TARGET_MILLIS));
+    return new AnalysisWorker(myAlgorithmsHolder.getAlgorithms(settings, changesOracle), batchSize, buildTypeIds);
+  }
+
+  @NotNull
+  private AnalysisWorkers createWorkers(@NotNull TestAnalysisSettings settings,
+                                        @NotNull Set<String> buildTypeIds,
+                                        @Nullable ExecutorService executor,
+                                        int workers) {
+    BuildChangesOracle changesOracle = myAlgorithmsHolder.createChangesOracle();
+    List<AnalysisWorker> result = new ArrayList<AnalysisWorker>();
+    result.add(createWorker(settings, buildTypeIds, changesOracle));
+    for (int i = 1; executor != null && i < workers; i++) {
+      result.add(createWorker(settings, buildTypeIds, changesOracle));
+    }
+    return new AnalysisWorkers(result, executor);
+  }
+
+  /**
+   * Analyses the tests on the workers in parallel.
+   * The tests are split into chunks, each chunk is analysed by one worker,
+   * the results of the chunks are merged in the original order.
+   */
+  private void analyseInParallel(@NotNull List<TestCandidate> allCandidates,
+                                 @NotNull final FetchMode fetchMode,
+                                 @NotNull final TestAnalysisSettings settings,
+                                 final long buildId,
+                                 @NotNull AnalysisWorkers workers,
+                                 @NotNull final TestAnalysisProgress progress,
+                                 @Nullable final Checkpointer checkpointer,
+                                 @NotNull List<TestData> testDataList) {
+    progress.setWorkers(workers.size());
+    List<Future<List<TestData>>> chunks = new ArrayList<Future<List<TestData>>>();
+    for (int from = 0; from < allCandidates.size(); from += CHUNK_SIZE) {
+      final List<TestCandidate> chunk = allCandidates.subList(from, Math.min(from + CHUNK_SIZE, allCandidates.size()));
+      chunks.add(workers.submit(new AnalysisWorkers.Task<List<TestData>>() {
+        @NotNull
+        public List<TestData> run(@NotNull AnalysisWorker worker) {
+          List<TestData> chunkResult = new ArrayList<TestData>();
+          analyseTests(chunk, fetchMode, settings, buildId, worker, progress, checkpointer, chunkResult);
+          return chunkResult;
+        }
+      }));
+    }
+
+    for (Future<List<TestData>> chunk : chunks) {
+      testDataList.addAll(AnalysisWorkers.getResult(chunk));
+    }
+  }
+
+  /**
+   * Analyses the tests on the current thread, fetching the data per test or in batches.
+   */
+  private void analyseTests(@NotNull List<TestCandidate> tests,
+                            @NotNull FetchMode fetchMode,
+                            @NotNull TestAnalysisSettings settings,
+                            long buildId,
+                            @NotNull AnalysisWorker worker,
+                            @NotNull TestAnalysisProgress progress,
+                            @Nullable Checkpointer checkpointer,
+                            @NotNull List<TestData> testDataList) {
+    if (fetchMode == FetchMode.BATCHED) {
+      analyseInBatches(tests, settings, buildId, worker, progress, checkpointer, testDataList);
+      return;
+    }
+
+    for (TestCandidate candidate : tests) {
+      progress.checkCancelled();
+      STest test = candidate.getTest();
+      TestData testData = null;
+      if (isAlwaysFailingHeuristic(candidate, settings)) {
+        testData = new TestData(test);
+      } else if (hasEnoughRuns(candidate)) {
+        testData = getTestData(test, buildId, worker, progress);
+      }
+      addTestData(test.getTestNameId(), testData, checkpointer, testDataList);
+      progress.incDoneSize();
+    }
+  }
+
+  private static void addTestData(long testId,
+                                  @Nullable TestData testData,
+                                  @Nullable Checkpointer checkpointer,
+                                  @NotNull List<TestData> testDataList) {
+    if (testData != null) {
+      testDataList.add(testData);
+    }
+    if (checkpointer != null) {
+      checkpointer.processed(testId, testData);
     }
-    collectRawData(testId, buildId, buildTypeIds, rawDataPool, buffer);
-    return buildTestData(testId, project.getProjectId(), buildId, null, buffer);
   }
 
   @Nullable
   private TestData getTestData(@NotNull STest test,
                                long buildId,
-                               @NotNull List<CheckAlgorithm> algorithms,
-                               @NotNull final Set<String> buildTypeIds,
-                               @NotNull final SimpleObjectPool<RawData> rawDataPool,
-                               @NotNull final List<RawData> buffer) {
-    buffer.clear();
-    collectRawData(test.getTestNameId(), buildId, buildTypeIds, rawDataPool, buffer);
-
-    if (buffer.size() <= 1) {
+                               @NotNull AnalysisWorker worker,
+                               @NotNull TestAnalysisProgress progress) {
+    RunBuffer buffer = worker.getBuffer();
+    buffer.reset(test.getTestNameId());
+    long nanos = collectRawData(buildId, worker, buffer);
+    progress.addDbTime(nanos);
+    worker.getMetrics().addQuery(nanos, 1);
+
+    if (buffer.getRunsNumber() <= 1) {
       // Not enough data to analyze.
       return null;
     }
-    return runAlgorithms(algorithms, test, buildId, buffer);
+    buffer.sortByModification();    // sorted by the query, checked in one pass
+    return runAlgorithms(worker, test, buildId, buffer);
   }
 
-  private void collectRawData(final long testId,
-                              final long buildId,
-                              @NotNull final Set<String> buildTypeIds,
-                              @NotNull final SimpleObjectPool<RawData> rawDataPool,
-                              @NotNull final List<RawData> buffer) {
-    ((SQLRunnerEx) mySQLRunner).withDB(new DBAction<Object>() {
+  /**
+   * Analyses the tests reading the whole project history in one sequential scan.
+   * The rows come ordered by test, the scan thread reads them into the buffers of a worker
+   * and hands the complete tests over to it in chunks, so the algorithms run on the workers
+   * while the scan goes on, and only the histories of the chunks being analysed are kept in memory.
+   * The order of the result is the same as in per-test analysis.
+   * <p>
+   * In the aggregated and summary modes the runs with the same status, build type, modification and agent
+   * come grouped, the algorithms give the same result on the groups as on the runs, see {@link RunBuffer}.
+   * <p>
+   * The resumed scan starts after the last test of the checkpoint, unless some of the tests
+   * to analyse are before it (the tests which have started failing since).
+   * The scan position is the last test of the chunks analysed so far in the scan order.
+   */
+  private void analyseInOneScan(@NotNull List<TestCandidate> allCandidates,
+                                @NotNull final FetchMode fetchMode,
+                                @NotNull final TestAnalysisSettings settings,
+                                final long buildId,
+                                @NotNull final AnalysisWorkers workers,
+                                @NotNull final TestAnalysisProgress progress,
+                                @Nullable final Checkpointer checkpointer,
+                                @NotNull List<TestData> testDataList) {
+    final Map<Long, TestCandidate> testsToFetch = new HashMap<Long, TestCandidate>();
+    for (TestCandidate candidate : allCandidates) {
+      if (isAlwaysFailingHeuristic(candidate, settings) || !hasEnoughRuns(candidate)) {
+        progress.incDoneSize();
+      } else {
+        testsToFetch.put(candidate.getTest().getTestNameId(), candidate);
+      }
+    }
+
+    Long scanPosition = checkpointer != null ? checkpointer.getCheckpoint().getScanPosition() : null;
+    if (scanPosition != null) {
+      for (Long testId : testsToFetch.keySet()) {
+        if (testId <= scanPosition) {
+          scanPosition = null;
+          break;
+        }
+      }
+    }
+    final Long afterTestId = scanPosition;
+
+    final boolean grouped = fetchMode != FetchMode.STREAMING;
+    final Map<Long, TestData> analysed = new HashMap<Long, TestData>();
+    final LinkedList<ScanChunk> chunks = new LinkedList<ScanChunk>();
+    if (!testsToFetch.isEmpty()) {
+      // The DB time is the scan time without the hand-overs to the workers.
+      final long[] handOverNanos = {0};
+      final AnalysisWorker scanWorker = workers.getFirstWorker();
+      long scanNanos = withTimedDB(new DBAction<Object>() {
+        public Object run(DBFunctions dbf) throws DBException {
+          TestRunsQuery query;
+          if (fetchMode == FetchMode.SUMMARY) {
+            query = TestRunsQuery.forSummary(scanWorker.getAnalysedBuildTypeIds(), afterTestId);
+          } else if (fetchMode == FetchMode.AGGREGATED) {
+            query = TestRunsQuery.forProjectGroups(scanWorker.getAnalysedBuildTypeIds(),
+                                                   buildId, afterTestId);
+          } else {
+            query = TestRunsQuery.forProject(scanWorker.getAnalysedBuildTypeIds(),
+                                             buildId, TestRunsQuery.NO_UPPER_BOUND, afterTestId);
+          }
+          new GenericQuery<Object>(query.getSql(), new GenericQuery.ResultSetProcessor<Object>() {
+            @Nullable
+            public Object process(ResultSet rs) throws SQLException {
+              ScanChunk chunk = null;
+              RunBuffer buffer = null;
+              long currentTestId = -1;
+
+              while (rs.next()) {
+                long testId = rs.getLong(2);
+                if (testId != currentTestId) {
+                  // The previous test is complete.
+                  progress.checkCancelled();
+                  currentTestId = testId;
+                  TestCandidate candidate = testsToFetch.get(testId);
+                  buffer = null;
+                  if (candidate != null) {
+                    if (chunk == null || chunk.isFull()) {
+                      long handOverStart = System.nanoTime();
+                      if (chunk != null) {
+                        analyseChunk(chunk, buildId, workers, progress, checkpointer, chunks, analysed);
+                      }
+                      chunk = new ScanChunk(workers.take());
+                      handOverNanos[0] += System.nanoTime() - handOverStart;
+                    }
+                    buffer = chunk.add(candidate);
+                  }
+                }
+                if (buffer == null) {
+                  // Not interesting for analysis.
+                  continue;
+                }
+
+                if (grouped ? readGroup(rs, chunk.getWorker(), buffer) : readRun(rs, chunk.getWorker(), buffer)) {
+                  chunk.addRow();
+                }
+              }
+
+              if (chunk != null) {
+                long handOverStart = System.nanoTime();
+                analyseChunk(chunk, buildId, workers, progress, checkpointer, chunks, analysed);
+                handOverNanos[0] += System.nanoTime() - handOverStart;
+              }
+              return null;
+            }
+          }).execute(dbf, query.getParams());
+
+          return null;
+        }
+      });
+      for (ScanChunk chunk : chunks) {
+        completeChunk(chunk, checkpointer, analysed);
+      }
+      chunks.clear();
+
+      // The workers are done, the metrics of the first one can be updated.
+      long dbNanos = scanNanos - handOverNanos[0];
+      progress.addDbTime(dbNanos);
+      scanWorker.getMetrics().addQuery(dbNanos, testsToFetch.size());
+    }
+
+    for (TestCandidate candidate : allCandidates) {
+      STest test = candidate.getTest();
+      if (isAlwaysFailingHeuristic(candidate, settings)) {
+        testDataList.add(new TestData(test));
+      } else {
+        TestData testData = analysed.get(test.getTestNameId());
+        if (testData != null) {
+          testDataList.add(testData);
+        }
+      }
+    }
+
+    // The tests without any rows in the history.
+    progress.setDoneSize(progress.getTotalSize());
+  }
+
+  /**
+   * Hands the chunk read by the scan over to its worker,
+   * and collects the results of the chunks analysed so far in the scan order.
+   */
+  private void analyseChunk(@NotNull final ScanChunk chunk,
+                            final long buildId,
+                            @NotNull AnalysisWorkers workers,
+                            @NotNull final TestAnalysisProgress progress,
+                            @Nullable final Checkpointer checkpointer,
+                            @NotNull LinkedList<ScanChunk> chunks,
+                            @NotNull Map<Long, TestData> analysed) {
+    chunk.setResult(workers.submit(chunk.getWorker(), new AnalysisWorkers.Task<Map<Long, TestData>>() {
+      @NotNull
+      public Map<Long, TestData> run(@NotNull AnalysisWorker worker) {
+        try {
+          Map<Long, TestData> result = new HashMap<Long, TestData>();
+          for (TestCandidate candidate : chunk.getTests()) {
+            progress.checkCancelled();
+            STest test = candidate.getTest();
+            RunBuffer buffer = worker.findBuffer(test.getTestNameId());
+            TestData testData = null;
+            if (buffer != null && buffer.getRunsNumber() > 1) {
+              buffer.sortByModification();
+              testData = runAlgorithms(worker, test, buildId, buffer);
+              if (testData != null) {
+                result.put(test.getTestNameId(), testData);
+              }
+            }
+            if (checkpointer != null) {
+              checkpointer.processed(test.getTestNameId(), testData);
+            }
+            progress.incDoneSize();
+          }
+          return result;
+        } finally {
+          worker.releaseBuffers();
+        }
+      }
+    }));
+    chunks.add(chunk);
+
+    while (!chunks.isEmpty() && chunks.getFirst().getResult().isDone()) {
+      completeChunk(chunks.removeFirst(), checkpointer, analysed);
+    }
+  }
+
+  private static void completeChunk(@NotNull ScanChunk chunk,
+                                    @Nullable Checkpointer checkpointer,
+                                    @NotNull Map<Long, TestData> analysed) {
+    analysed.putAll(AnalysisWorkers.getResult(chunk.getResult()));
+    if (checkpointer != null) {
+      // All the rows of the tests up to here have been read and analysed.
+      checkpointer.getCheckpoint().setScanPosition(chunk.getLastTestId());
+    }
+  }
+
+  /**
+   * Analyses the tests fetching the raw data for many tests in one query.
+   * The order of the result is the same as in per-test analysis.
+   */
+  private void analyseInBatches(@NotNull List<TestCandidate> tests,
+                                @NotNull TestAnalysisSettings settings,
+                                long buildId,
+                                @NotNull AnalysisWorker worker,
+                                @NotNull TestAnalysisProgress progress,
+                                @Nullable Checkpointer checkpointer,
+                                @NotNull List<TestData> testDataList) {
+    List<TestCandidate> batch = new ArrayList<TestCandidate>();
+    List<Long> testIdsToFetch = new ArrayList<Long>();
+
+    for (TestCandidate candidate : tests) {
+      batch.add(candidate);
+      if (!isAlwaysFailingHeuristic(candidate, settings) && hasEnoughRuns(candidate)) {
+        testIdsToFetch.add(candidate.getTest().getTestNameId());
+      }
+
+      if (testIdsToFetch.size() >= worker.getBatchSize().getSize()) {
+        processBatch(batch, testIdsToFetch, settings, buildId,
+                     worker, progress, checkpointer, testDataList);
+      }
+    }
+    processBatch(batch, testIdsToFetch, settings, buildId,
+                 worker, progress, checkpointer, testDataList);
+  }
+
+  private void processBatch(@NotNull List<TestCandidate> batch,
+                            @NotNull List<Long> testIdsToFetch,
+                            @NotNull TestAnalysisSettings settings,
+                            long buildId,
+                            @NotNull AnalysisWorker worker,
+                            @NotNull TestAnalysisProgress progress,
+                            @Nullable Checkpointer checkpointer,
+                            @NotNull List<TestData> testDataList) {
+    progress.checkCancelled();
+    worker.releaseBuffers();
+    if (!testIdsToFetch.isEmpty()) {
+      long nanos = collectRawData(testIdsToFetch, buildId, TestRunsQuery.NO_UPPER_BOUND, worker);
+      worker.getBatchSize().update(testIdsToFetch.size(), TimeUnit.NANOSECONDS.toMillis(nanos));
+      progress.addDbTime(nanos);
+      worker.getMetrics().addQuery(nanos, testIdsToFetch.size());
+    }
+
+    for (TestCandidate candidate : batch) {
+      STest test = candidate.getTest();
+      TestData testData = null;
+      if (isAlwaysFailingHeuristic(candidate, settings)) {
+        testData = new TestData(test);
+      } else if (hasEnoughRuns(candidate)) {
+        RunBuffer data = worker.findBuffer(test.getTestNameId());
+        if (data != null && data.getRunsNumber() > 1) {
+          data.sortByModification();    // sorted by the query, checked in one pass
+          testData = runAlgorithms(worker, test, buildId, data);
+        }
+      }
+      addTestData(test.getTestNameId(), testData, checkpointer, testDataList);
+      progress.incDoneSize();
+    }
+
+    batch.clear();
+    testIdsToFetch.clear();
+  }
+
+  /**
+   * Analyses the tests using the state stored by the previous analysis.
+   * Only the runs in the builds after the stored watermark are fetched from the DB
+   * (the tests which weren't analysed before are fetched completely, in batches).
+   * All the fetches stop at the same safe watermark, which becomes the new one.
+   * The runs which are out of the time window are dropped from the state.
+   * <p>
+   * The new tests are fetched and all the tests are analysed in chunks on the workers in parallel.
+   * The fetched runs are added to the state under its lock, the analysis only reads the state.
+   */
+  private void analyseIncrementally(@NotNull SProject project,
+                                    @NotNull List<TestCandidate> allCandidates,
+                                    @NotNull final TestAnalysisSettings settings,
+                                    final long buildId,
+                                    @NotNull Set<String> buildTypeIds,
+                                    @NotNull AnalysisWorkers workers,
+                                    @NotNull final TestAnalysisProgress progress,
+                                    @NotNull List<TestData> testDataList) {
+    String settingsKey = getSettingsKey(buildTypeIds);
+    TestHistoryState loadedState = myHistoryHolder.getState(project);
+    if (loadedState == null || !loadedState.isCompatible(settingsKey, buildId)) {
+      myHistoryHolder.clearState(project);
+      loadedState = new TestHistoryState(settingsKey, buildId);
+    }
+    final TestHistoryState state = loadedState;
+    state.retainBuilds(buildId);
+    progress.setWorkers(workers.size());
+
+    // The runs are complete up to here: a build finished during the fetches is left for the next analysis.
+    final long toBuildId = getSafeWatermark();
+
+    // Splitting the tests into the known and the new ones...
+    Set<Long> testIds = new HashSet<Long>();
+    List<Long> newTestIds = new ArrayList<Long>();
+    for (TestCandidate candidate : allCandidates) {
+      if (!isAlwaysFailingHeuristic(candidate, settings) && hasEnoughRuns(candidate)) {
+        long testId = candidate.getTest().getTestNameId();
+        testIds.add(testId);
+        if (state.getHistory(testId) == null) {
+          newTestIds.add(testId);
+        }
+      }
+    }
+    state.retainTests(testIds);
+
+    // Fetching the recent runs of the known tests...
+    AnalysisWorker firstWorker = workers.getFirstWorker();
+    long fromBuildId = Math.max(state.getWatermark() + 1, buildId);
+    if (!state.isEmpty() && fromBuildId <= toBuildId) {
+      long nanos = collectNewRuns(state, fromBuildId, toBuildId, firstWorker);
+      progress.addDbTime(nanos);
+      firstWorker.getMetrics().addQuery(nanos, state.getTestsNumber());
+    }
+
+    // Fetching the whole history of the new tests...
+    List<Future<Object>> fetches = new ArrayList<Future<Object>>();
+    for (int from = 0; from < newTestIds.size(); from += CHUNK_SIZE) {
+      final List<Long> chunk = newTestIds.subList(from, Math.min(from + CHUNK_SIZE, newTestIds.size()));
+      fetches.add(workers.submit(new AnalysisWorkers.Task<Object>() {
+        @Nullable
+        public Object run(@NotNull AnalysisWorker worker) {
+          fetchNewTests(chunk, state, buildId, toBuildId, worker, progress);
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> fetch : fetches) {
+      AnalysisWorkers.getResult(fetch);
+    }
+
+    // Analysis... (the histories are taken here: the state loads them lazily)
+    final Map<Long, TestHistory> histories = new HashMap<Long, TestHistory>();
+    for (Long testId : testIds) {
+      TestHistory history = state.getHistory(testId);
+      if (history != null) {
+        histories.put(testId, history);
+      }
+    }
+    List<Future<List<TestData>>> chunks = new ArrayList<Future<List<TestData>>>();
+    for (int from = 0; from < allCandidates.size(); from += CHUNK_SIZE) {
+      final List<TestCandidate> chunk = allCandidates.subList(from, Math.min(from + CHUNK_SIZE, allCandidates.size()));
+      chunks.add(workers.submit(new AnalysisWorkers.Task<List<TestData>>() {
+        @NotNull
+        public List<TestData> run(@NotNull AnalysisWorker worker) {
+          return analyseHistories(chunk, state, histories, settings, buildId, worker, progress);
+        }
+      }));
+    }
+    for (Future<List<TestData>> chunk : chunks) {
+      testDataList.addAll(AnalysisWorkers.getResult(chunk));
+    }
+
+    state.setWatermark(Math.max(state.getWatermark(), toBuildId));
+    myHistoryHolder.putState(project, state);
+  }
+
+  /**
+   * Fetches the whole history of the new tests in batches and adds it to the state.
+   */
+  private void fetchNewTests(@NotNull List<Long> newTestIds,
+                             @NotNull TestHistoryState state,
+                             long buildId,
+                             long toBuildId,
+                             @NotNull AnalysisWorker worker,
+                             @NotNull TestAnalysisProgress progress) {
+    int from = 0;
+    while (from < newTestIds.size()) {
+      progress.checkCancelled();
+      int to = Math.min(from + worker.getBatchSize().getSize(), newTestIds.size());
+      List<Long> batch = newTestIds.subList(from, to);
+      from = to;
+      worker.releaseBuffers();
+      long nanos = collectRawData(batch, buildId, toBuildId, worker);
+      worker.getBatchSize().update(batch.size(), TimeUnit.NANOSECONDS.toMillis(nanos));
+      progress.addDbTime(nanos);
+      worker.getMetrics().addQuery(nanos, batch.size());
+
+      synchronized (state) {
+        for (Long testId : batch) {
+          TestHistory history = state.getOrCreateHistory(testId);
+          RunBuffer data = worker.findBuffer(testId);
+          if (data != null) {
+            for (int i = 0; i < data.size(); i++) {
+              addToHistory(state, history, data, i);
+            }
+          }
+        }
+      }
+    }
+    worker.releaseBuffers();
+  }
+
+  /**
+   * Runs the algorithms on the stored histories of the tests, the state isn't changed.
+   */
+  @NotNull
+  private List<TestData> analyseHistories(@NotNull List<TestCandidate> candidates,
+                                          @NotNull TestHistoryState state,
+                                          @NotNull Map<Long, TestHistory> histories,
+                                          @NotNull TestAnalysisSettings settings,
+                                          long buildId,
+                                          @NotNull AnalysisWorker worker,
+                                          @NotNull TestAnalysisProgress progress) {
+    List<TestData> result = new ArrayList<TestData>();
+    RunBuffer buffer = worker.getBuffer();
+    for (TestCandidate candidate : candidates) {
+      progress.checkCancelled();
+      STest test = candidate.getTest();
+      if (isAlwaysFailingHeuristic(candidate, settings)) {
+        result.add(new TestData(test));
+      } else if (hasEnoughRuns(candidate)) {
+        TestHistory history = histories.get(test.getTestNameId());
+        if (history != null && history.size() > 1) {
+          buffer.reset(test.getTestNameId());
+          history.copyTo(state, buffer);
+          buffer.sortByModification();
+          TestData testData = runAlgorithms(worker, test, buildId, buffer);
+          if (testData != null) {
+            result.add(testData);
+          }
+        }
+      }
+      progress.incDoneSize();
+    }
+    return result;
+  }
+
+  /**
+   * Fetches the runs of the known tests in the builds within the given range.
+   * Returns the time of the query, see {@link #withTimedDB}.
+   */
+  private long collectNewRuns(@NotNull final TestHistoryState state,
+                              final long fromBuildId,
+                              final long toBuildId,
+                              @NotNull final AnalysisWorker worker) {
+    return withTimedDB(new DBAction<Object>() {
       public Object run(DBFunctions dbf) throws DBException {
-        new GenericQuery<Object>(GET_TEST_DATA_SQL, new GenericQuery.ResultSetProcessor<Object>() {
+        TestRunsQuery query = TestRunsQuery.forProject(worker.getAnalysedBuildTypeIds(),
+                                                       fromBuildId, toBuildId, null);
+        new GenericQuery<Object>(query.getSql(), new GenericQuery.ResultSetProcessor<Object>() {
           @Nullable
           public Object process(ResultSet rs) throws SQLException {
+            RunBuffer row = worker.getBuffer();
             while (rs.next()) {
-              long buildId = rs.getLong(1);
               long testId = rs.getLong(2);
-              int status = rs.getInt(3);
-              String buildTypeId = rs.getString(4);
-              long modificationId = rs.getLong(5);
-              String agentName = rs.getString(6);
-              long buildStartTime = rs.getLong(7);
-
-              if (!buildTypeIds.contains(buildTypeId)) {
-                // The test runs in another projects don't matter here.
+              TestHistory history = state.getHistory(testId);
+              if (history == null) {
+                // Either not interesting, or new (fetched separately).
                 continue;
               }
 
-              RawData rawData = rawDataPool.getFromPool();
-              rawData.set(buildId, testId, status, buildTypeId,
-                          modificationId, agentName, buildStartTime);
-              buffer.add(rawData);
+              row.reset(testId);
+              if (readRun(rs, worker, row)) {
+                addToHistory(state, history, row, 0);
+              }
             }
             return null;
           }
-        }).execute(dbf, buildId, buildId, buildId, testId);
+        }).execute(dbf, query.getParams());
 
         return null;
       }
     });
   }
 
+  private static void addToHistory(@NotNull TestHistoryState state,
+                                   @NotNull TestHistory history,
+                                   @NotNull RunBuffer buffer,
+                                   int index) {
+    history.add(buffer.getBuildId(index), buffer.getStatus(index), state.intern(buffer.getBuildTypeId(index)),
+                buffer.getModificationId(index), state.intern(buffer.getAgentName(index)),
+                buffer.getBuildStartTime(index));
+  }
+
+  /**
+   * Returns the build id up to which the test runs are complete:
+   * the builds which are still running may get more test runs later.
+   */
+  private long getSafeWatermark() {
+    return withDB(new DBAction<Long>() {
+      public Long run(DBFunctions dbf) throws DBException {
+        return TestRunsSummary.getSafeWatermark(dbf);
+      }
+    });
+  }
+
+  @NotNull
+  private static String getSettingsKey(@NotNull Set<String> buildTypeIds) {
+    List<String> sorted = new ArrayList<String>(buildTypeIds);
+    Collections.sort(sorted);
+    return sorted.toString();
+  }
+
+  /**
+   * Returns the key of everything the result of a full analysis depends on, except the test history.
+   */
+  @NotNull
+  private static String getCheckpointKey(@NotNull TestAnalysisSettings settings, @NotNull Set<String> buildTypeIds) {
+    return getSettingsKey(buildTypeIds) + ":" + settings.isSpeedUpAlwaysFailing() + ":" +
+           settings.getMinSeriesNumber() + ":" + settings.getAverageSeriesLength();
+  }
+
+  /**
+   * Returns the checkpointer of the full-history analysis, resuming from the stored checkpoint
+   * if it's compatible, or null if the analysis isn't checkpointed.
+   * The stored checkpoint which can't be resumed is dropped.
+   */
   @Nullable
-  private TestData runAlgorithms(@NotNull List<CheckAlgorithm> algorithms,
+  private Checkpointer startCheckpointing(@NotNull SProject project,
+                                          @NotNull TestAnalysisSettings settings,
+                                          @NotNull FetchMode fetchMode,
+                                          @NotNull Set<String> buildTypeIds,
+                                          long buildId,
+                                          @NotNull Date startDate) {
+    AnalysisCheckpoint checkpoint = myCheckpointStore.load(project.getProjectId());
+    if (!settings.isAnalyseFullHistory() || fetchMode == FetchMode.INCREMENTAL) {
+      if (checkpoint != null) {
+        myCheckpointStore.delete(project.getProjectId());
+      }
+      return null;
+    }
+
+    String key = getCheckpointKey(settings, buildTypeIds);
+    if (checkpoint != null && checkpoint.isCompatible(key, buildId)) {
+      Loggers.SERVER.info("Tests analysis in project " + project.getProjectId() + " is resumed, " +
+                          checkpoint.getProcessedSize() + " tests have been processed before");
+    } else {
+      if (checkpoint != null) {
+        myCheckpointStore.delete(project.getProjectId());
+      }
+      checkpoint = new AnalysisCheckpoint(key, buildId, startDate, settings);
+    }
+    long intervalMillis = TimeUnit.SECONDS.toMillis(
+      TeamCityProperties.getInteger(CHECKPOINT_INTERVAL_PROPERTY, DEFAULT_CHECKPOINT_INTERVAL_SECONDS));
+    return new Checkpointer(project, checkpoint, intervalMillis);
+  }
+
+  /**
+   * Selects the tests to analyse in one aggregate query over the analysed runs of the time window
+   * (one query per {@link TestRunsQuery#MAX_BUILD_TYPES_IN_QUERY} build types):
+   * the tests which have failed in not less than {@link #FAILURE_RATE} of their runs, and have enough runs.
+   * The other tests can't be classified, so their runs aren't fetched at all.
+   * In the summary mode the summary is brought up to date and read instead of the history.
+   */
+  @NotNull
+  List<TestCandidate> getCandidates(@NotNull SProject project,
+                                    @NotNull final FetchMode fetchMode,
+                                    final long buildId,
+                                    @NotNull final Set<String> buildTypeIds) {
+    if (fetchMode == FetchMode.SUMMARY) {
+      myRunsSummary.update();
+    }
+
+    // The test id -> the numbers of failures and runs, ordered by test, summed up over the queries.
+    final Map<Long, int[]> counts = new TreeMap<Long, int[]>();
+    final List<TestRunsQuery> queries = fetchMode == FetchMode.SUMMARY ?
+                                        TestRunsQuery.forSummaryCandidates(buildTypeIds) :
+                                        TestRunsQuery.forCandidates(buildTypeIds, buildId);
+    for (final TestRunsQuery query : queries) {
+      withDB(new DBAction<Object>() {
+        public Object run(DBFunctions dbf) throws DBException {
+          new GenericQuery<Object>(query.getSql(), new GenericQuery.ResultSetProcessor<Object>() {
+            @Nullable
+            public Object process(ResultSet rs) throws SQLException {
+              while (rs.next()) {
+                long testId = rs.getLong(1);
+                int[] testCounts = counts.get(testId);
+                if (testCounts == null) {
+                  testCounts = new int[2];
+                  counts.put(testId, testCounts);
+                }
+                testCounts[0] += rs.getInt(2);
+                testCounts[1] += rs.getInt(3);
+              }
+              return null;
+            }
+          }).execute(dbf, query.getParams());
+          return null;
+        }
+      });
+    }
+
+    List<TestCandidate> candidates = new ArrayList<TestCandidate>();
+    for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+      int failures = entry.getValue()[0];
+      int runs = entry.getValue()[1];
+      if (failures > 0 && failures >= FAILURE_RATE * runs && runs > MIN_RUNS_NUMBER) {
+        STest test = myTestManager.createTest(entry.getKey(), project.getProjectId());
+        candidates.add(new TestCandidate(test, failures, runs - failures));
+      }
+    }
+    return candidates;
+  }
+
+  private static boolean isAlwaysFailingHeuristic(@NotNull TestCandidate candidate,
+                                                  @NotNull TestAnalysisSettings settings) {
+    return settings.isSpeedUpAlwaysFailing() &&
+           candidate.getFailureCount() >= HEURISTIC_MIN_FAILURES_NUMBER &&
+           candidate.getSuccessCount() == 0;
+  }
+
+  private static boolean hasEnoughRuns(@NotNull TestCandidate candidate) {
+    return candidate.getFailureCount() + candidate.getSuccessCount() > MIN_RUNS_NUMBER;
+  }
+
+  /**
+   * Fetches the raw data for several tests in one query and puts the data of each test
+   * into a separate buffer of the worker, the runs come in the order of modifications and builds.
+   * The builds after the given last one ({@link TestRunsQuery#NO_UPPER_BOUND} for all) are skipped.
+   * Returns the time of the query, see {@link #withTimedDB}.
+   */
+  private long collectRawData(@NotNull final List<Long> testIds,
+                              final long buildId,
+                              final long toBuildId,
+                              @NotNull final AnalysisWorker worker) {
+    return withTimedDB(new DBAction<Object>() {
+      public Object run(DBFunctions dbf) throws DBException {
+        TestRunsQuery query = TestRunsQuery.forTests(worker.getAnalysedBuildTypeIds(),
+                                                     buildId, toBuildId, testIds);
+        new GenericQuery<Object>(query.getSql(), new GenericQuery.ResultSetProcessor<Object>() {
+          @Nullable
+          public Object process(ResultSet rs) throws SQLException {
+            RunBuffer buffer = null;
+            while (rs.next()) {
+              long testId = rs.getLong(2);
+              if (buffer == null || testId != buffer.getTestId()) {
+                // The rows are ordered by test, so the buffer is switched just once per test.
+                buffer = worker.getBuffer(testId);
+              }
+              readRun(rs, worker, buffer);
+            }
+            return null;
+          }
+        }).execute(dbf, query.getParams());
+
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Fetches the raw data for the test of the buffer, the runs come in the order of modifications and builds.
+   * Returns the time of the query, see {@link #withTimedDB}.
+   */
+  private long collectRawData(final long buildId,
+                              @NotNull final AnalysisWorker worker,
+                              @NotNull final RunBuffer buffer) {
+    return withTimedDB(new DBAction<Object>() {
+      public Object run(DBFunctions dbf) throws DBException {
+        TestRunsQuery query = TestRunsQuery.forTest(worker.getAnalysedBuildTypeIds(),
+                                                    buildId, buffer.getTestId());
+        new GenericQuery<Object>(query.getSql(), new GenericQuery.ResultSetProcessor<Object>() {
+          @Nullable
+          public Object process(ResultSet rs) throws SQLException {
+            while (rs.next()) {
+              readRun(rs, worker, buffer);
+            }
+            return null;
+          }
+        }).execute(dbf, query.getParams());
+
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Reads the current row of the test data query into the buffer.
+   * Returns false if the row belongs to a build type which isn't analysed.
+   */
+  private static boolean readRun(@NotNull ResultSet rs,
+                                 @NotNull AnalysisWorker worker,
+                                 @NotNull RunBuffer buffer) throws SQLException {
+    int buildType = worker.findAnalysedBuildType(rs.getString(4));
+    if (buildType == NameDictionary.NOT_FOUND) {
+      // The test runs in another projects don't matter here
+      // (filtered by the query, unless the project has too many build types).
+      return false;
+    }
+
+    long buildId = rs.getLong(1);
+    int status = rs.getInt(3);
+    long modificationId = rs.getLong(5);
+    int agent = worker.getAgents().intern(rs.getString(6));
+    long buildStartTime = rs.getLong(7);
+    buffer.add(buildId, status, buildType, modificationId, agent, buildStartTime);
+    worker.getMetrics().addRow();
+    return true;
+  }
+
+  /**
+   * Reads the current row of the grouped test data query into the buffer, see {@link #readRun}.
+   */
+  private static boolean readGroup(@NotNull ResultSet rs,
+                                   @NotNull AnalysisWorker worker,
+                                   @NotNull RunBuffer buffer) throws SQLException {
+    int buildType = worker.findAnalysedBuildType(rs.getString(4));
+    if (buildType == NameDictionary.NOT_FOUND) {
+      return false;
+    }
+
+    long firstBuildId = rs.getLong(1);
+    int status = rs.getInt(3);
+    long modificationId = rs.getLong(5);
+    int agent = worker.getAgents().intern(rs.getString(6));
+    long buildStartTime = rs.getLong(7);
+    long lastBuildId = rs.getLong(8);
+    int runs = rs.getInt(9);
+    buffer.addGroup(firstBuildId, lastBuildId, runs, status, buildType, modificationId, agent, buildStartTime);
+    worker.getMetrics().addRow();
+    return true;
+  }
+
+  @Nullable
+  private TestData runAlgorithms(@NotNull AnalysisWorker worker,
                                  @NotNull STest test,
                                  long buildId,
-                                 @NotNull List<RawData> data) {
-    for (CheckAlgorithm algorithm : algorithms) {
-      CheckResult checkResult = algorithm.checkTest(test, data);
-      if (checkResult != null && !checkResult.getType().isOrdinary()) {
-        return buildTestData(test.getTestNameId(), test.getProjectId(), buildId, checkResult, data);
+                                 @NotNull RunBuffer data) {
+    List<CheckAlgorithm> algorithms = worker.getAlgorithms();
+    for (int i = 0; i < algorithms.size(); i++) {
+      long start = System.nanoTime();
+      CheckResult checkResult = algorithms.get(i).checkTest(test, data);
+      boolean classified = checkResult != null && !checkResult.getType().isOrdinary();
+      worker.getMetrics().addAlgorithmTime(i, System.nanoTime() - start, classified);
+      if (classified) {
+        return buildTestData(worker, test.getTestNameId(), test.getProjectId(), buildId, checkResult, data);
       }
     }
     return null;    // we're not sure about this test.
   }
 
   @NotNull
-  private TestData buildTestData(long testId,
+  private TestData buildTestData(@NotNull AnalysisWorker worker,
+                                 long testId,
                                  @NotNull String projectId,
                                  long buildId,
                                  @Nullable CheckResult checkResult,
-                                 @NotNull List<RawData> data) {
-    FailureRate failureRate;
-    Map<String, FailureRate> buildTypeFailureRates = new HashMap<String, FailureRate>();
-    Map<String, FailureRate> agentFailureRates = new HashMap<String, FailureRate>();
-
-    for (RawData rawData : data) {
-      String buildTypeId = rawData.getBuildTypeId();
-      String agentName = rawData.getAgentName();
-      int status = rawData.getStatus();
-      boolean failure = Status.getStatus(status).isFailed();
-
-      failureRate = buildTypeFailureRates.get(buildTypeId);
-      if (failureRate == null) {
-        failureRate = new FailureRate(1, failure ? 1 : 0);
-        buildTypeFailureRates.put(buildTypeId, failureRate);
-      } else {
-        failureRate.incTotalRuns();
-        if (failure) failureRate.incFailures();
-      }
-
-      failureRate = agentFailureRates.get(agentName);
-      if (failureRate == null) {
-        failureRate = new FailureRate(1, failure ? 1 : 0);
-        agentFailureRates.put(agentName, failureRate);
-      } else {
-        failureRate.incTotalRuns();
-        if (failure) failureRate.incFailures();
-      }
+                                 @NotNull RunBuffer data) {
+    long start = System.nanoTime();
+    FailureCounters buildTypeCounters = worker.getBuildTypeCounters();
+    FailureCounters agentCounters = worker.getAgentCounters();
+    for (int i = 0; i < data.size(); i++) {
+      boolean failure = data.isFailed(i);
+      int runs = data.getRunCount(i);
+      buildTypeCounters.add(data.getBuildType(i), failure, runs);
+      agentCounters.add(data.getAgent(i), failure, runs);
     }
 
+    // The names are decoded only here, for the published test data.
+    Map<String, FailureRate> buildTypeFailureRates = buildTypeCounters.decodeAndReset(worker.getBuildTypes());
+    Map<String, FailureRate> agentFailureRates = agentCounters.decodeAndReset(worker.getAgents());
+
     Type type = checkResult != null ? checkResult.getType() : null;
     Reason reason = checkResult != null ? checkResult.getReason() : null;
-    return new TestData(testId, projectId,
-                        buildTypeFailureRates, agentFailureRates,
-                        buildId, type, reason);
+    TestData testData = new TestData(testId, projectId,
+                                     buildTypeFailureRates, agentFailureRates,
+                                     buildId, type, reason);
+    worker.getMetrics().addBuildTestDataTime(System.nanoTime() - start);
+    return testData;
   }
 
   private long findBuildIdForTest(@Nullable Date startDate, long period) {
@@ -265,20 +1329,42 @@ public class TestsAnalyser {
       startDate = new Date();
     }
     long timestamp = startDate.getTime() - period;
-    return new GenericQuery<Long>(GET_FIRST_BUILD_ID_SQL,
-                                  new GenericQuery.ReturnSingle<Long>(NO_BUILDS_TO_ANALYSE))
-           .execute(((SQLRunnerEx) mySQLRunner), timestamp);
+    myDBAccessLimiter.acquire();
+    try {
+      return new GenericQuery<Long>(GET_FIRST_BUILD_ID_SQL,
+                                    new GenericQuery.ReturnSingle<Long>(NO_BUILDS_TO_ANALYSE))
+             .execute(((SQLRunnerEx) mySQLRunner), timestamp);
+    } finally {
+      myDBAccessLimiter.release();
+    }
   }
 
-  @NotNull
-  private static SimpleObjectPool<RawData> getRawDataPool() {
-    return new SimpleObjectPool<RawData>(
-      new SimpleObjectPool.ObjectFactory<RawData>() {
-        @NotNull
-        public RawData create() {
-          return new RawData();
-        }
-      }, POOL_SIZE);
+  /**
+   * Runs the DB action within the server-wide limit of the concurrent analysis queries.
+   */
+  private <T> T withDB(@NotNull DBAction<T> action) {
+    myDBAccessLimiter.acquire();
+    try {
+      return ((SQLRunnerEx) mySQLRunner).withDB(action);
+    } finally {
+      myDBAccessLimiter.release();
+    }
+  }
+
+  /**
+   * Runs the DB action as {@link #withDB} and returns the time of it in nanoseconds.
+   * The wait for the limit isn't counted: the DB time of the analysis, and the batch size adapted to it,
+   * reflect the DB latency rather than the contention of the analysis threads.
+   */
+  private long withTimedDB(@NotNull DBAction<?> action) {
+    myDBAccessLimiter.acquire();
+    try {
+      long start = System.nanoTime();
+      ((SQLRunnerEx) mySQLRunner).withDB(action);
+      return System.nanoTime() - start;
+    } finally {
+      myDBAccessLimiter.release();
+    }
   }
 
   @NotNull
@@ -292,18 +1378,139 @@ public class TestsAnalyser {
     return result;
   }
 
-  private static final String GET_TEST_DATA_SQL =
-    "select ti.build_id, ti.test_name_id, ti.status,                                    \n" +
-    "       bs.build_type_id, bs.modification_id,                                       \n" +
-    "       h.agent_name, h.build_start_time_server                                     \n" +
-    "    from test_info ti                                                              \n" +
-    "    join build_state bs on bs.build_id=ti.build_id                                 \n" +
-    "                       and bs.build_id is not null and bs.build_id >= ?            \n" +
-    "    join history h on h.build_id=ti.build_id                                       \n" +
-    "                       and h.build_id is not null and h.build_id >= ?              \n" +
-    "    where ti.build_id is not null and ti.build_id >= ?                             \n" +
-    "      and ti.test_name_id = ? and ti.status != 0                                   \n" +
-    "    order by bs.modification_id                                                    \n";
+  /**
+   * Records the tests processed by a full analysis in its checkpoint.
+   * At intervals saves the checkpoint and publishes the tests processed since the last time,
+   * so a long analysis shows the tests classified so far.
+   * The last complete result isn't replaced: the processed tests are updated in it
+   * (see {@link TestAnalysisResultHolder#updateTests}), only without a complete result
+   * the partial one (without the finish date) is published as a whole.
+   * Called by the analysis workers concurrently.
+   */
+  private class Checkpointer {
+    private final SProject myProject;
+    private final AnalysisCheckpoint myCheckpoint;
+    private final long myIntervalMillis;
+    private final AtomicLong myLastSaveTime = new AtomicLong(System.currentTimeMillis());
+    // test id -> the data of the test, or null if it isn't classified; guarded by itself.
+    private final Map<Long, TestData> myUnpublishedTests = new HashMap<Long, TestData>();
+
+    private Checkpointer(@NotNull SProject project, @NotNull AnalysisCheckpoint checkpoint, long intervalMillis) {
+      myProject = project;
+      myCheckpoint = checkpoint;
+      myIntervalMillis = intervalMillis;
+    }
+
+    @NotNull
+    public AnalysisCheckpoint getCheckpoint() {
+      return myCheckpoint;
+    }
+
+    public void processed(long testId, @Nullable TestData testData) {
+      myCheckpoint.addProcessed(testId, testData);
+      synchronized (myUnpublishedTests) {
+        myUnpublishedTests.put(testId, testData);
+      }
+
+      long lastSaveTime = myLastSaveTime.get();
+      long now = System.currentTimeMillis();
+      if (now - lastSaveTime >= myIntervalMillis && myLastSaveTime.compareAndSet(lastSaveTime, now)) {
+        // Only one worker gets here.
+        save();
+        publishPartialResult();
+      }
+    }
+
+    public void save() {
+      myCheckpointStore.save(myProject.getProjectId(), myCheckpoint);
+    }
+
+    private void publishPartialResult() {
+      Map<Long, TestData> updates;
+      synchronized (myUnpublishedTests) {
+        updates = new HashMap<Long, TestData>(myUnpublishedTests);
+        myUnpublishedTests.clear();
+      }
+
+      TestAnalysisResultInfo lastResult = myHolder.getResultInfo(myProject);
+      if (lastResult != null && lastResult.getFinishDate() != null) {
+        myHolder.updateTests(myProject, updates);
+        return;
+      }
+
+      TestAnalysisResult result = new TestAnalysisResult();
+      result.setStartDate(myCheckpoint.getStartDate());
+      result.setTotalTests(myCheckpoint.getProcessedSize());
+      result.setSettings(myCheckpoint.getSettings());
+      result.setTests(myCheckpoint.getTests());
+      myHolder.putTestAnalysisResult(myProject, result);
+    }
+  }
+
+  /**
+   * The complete tests read by the scan into the buffers of a worker, analysed by the worker as one task.
+   */
+  private static class ScanChunk {
+    private final AnalysisWorker myWorker;
+    private final List<TestCandidate> myTests = new ArrayList<TestCandidate>();
+    private int myRows;
+    private Future<Map<Long, TestData>> myResult;
+
+    private ScanChunk(@NotNull AnalysisWorker worker) {
+      myWorker = worker;
+    }
+
+    @NotNull
+    public AnalysisWorker getWorker() {
+      return myWorker;
+    }
+
+    @NotNull
+    public List<TestCandidate> getTests() {
+      return myTests;
+    }
+
+    public long getLastTestId() {
+      return myTests.get(myTests.size() - 1).getTest().getTestNameId();
+    }
+
+    /**
+     * Adds the test and returns the buffer for its rows.
+     */
+    @NotNull
+    public RunBuffer add(@NotNull TestCandidate candidate) {
+      myTests.add(candidate);
+      return myWorker.getBuffer(candidate.getTest().getTestNameId());
+    }
+
+    public void addRow() {
+      myRows++;
+    }
+
+    public boolean isFull() {
+      return myTests.size() >= SCAN_CHUNK_TESTS || myRows >= SCAN_CHUNK_ROWS;
+    }
+
+    @NotNull
+    public Future<Map<Long, TestData>> getResult() {
+      return myResult;
+    }
+
+    public void setResult(@NotNull Future<Map<Long, TestData>> result) {
+      myResult = result;
+    }
+  }
+
+  private static final String GET_MIN_RUNNING_BUILD_ID_SQL =
+    "select min(build_id) from running                                                  \n";
+
+  private static final String GET_MODIFICATION_IDS_SQL =
+    "select build_id, modification_id from build_state                                  \n" +
+    "    where build_id in ";
+
+  private static final String GET_NEW_BUILD_TYPES_SQL =
+    "select distinct build_type_id from history                                         \n" +
+    "    where build_start_time_server > ?                                              \n";
 
   private static final String GET_FIRST_BUILD_ID_SQL =
     "select min(build_id) from history                                                  \n" +
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable summary of where a tests analysis has spent its time:
+ * selecting the failing tests, fetching the runs from the DB, running each algorithm
+ * and building the test data.
+ * Saved with the {@link TestAnalysisResult}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisStatistics implements Serializable {
+  private final long myFailingTestsNanos;
+  private final long myDbNanos;
+  private final int myQueries;
+  private final int myTestsFetched;
+  private final long myRowsFetched;
+  private final long myBuildTestDataNanos;
+  private final List<AlgorithmStatistics> myAlgorithms;
+
+  public AnalysisStatistics(long failingTestsNanos,
+                            long dbNanos,
+                            int queries,
+                            int testsFetched,
+                            long rowsFetched,
+                            long buildTestDataNanos,
+                            @NotNull List<AlgorithmStatistics> algorithms) {
+    myFailingTestsNanos = failingTestsNanos;
+    myDbNanos = dbNanos;
+    myQueries = queries;
+    myTestsFetched = testsFetched;
+    myRowsFetched = rowsFetched;
+    myBuildTestDataNanos = buildTestDataNanos;
+    myAlgorithms = Collections.unmodifiableList(new ArrayList<AlgorithmStatistics>(algorithms));
+  }
+
+  /**
+   * Returns the time spent on selecting the failing tests of the project (the candidates for analysis).
+   */
+  public long getFailingTestsMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myFailingTestsNanos);
+  }
+
+  /**
+   * Returns the time spent in the queries fetching the test runs.
+   */
+  public long getDbMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myDbNanos);
+  }
+
+  public int getQueries() {
+    return myQueries;
+  }
+
+  /**
+   * Returns the number of tests whose runs have been fetched from the DB.
+   */
+  public int getTestsFetched() {
+    return myTestsFetched;
+  }
+
+  public long getRowsFetched() {
+    return myRowsFetched;
+  }
+
+  /**
+   * Returns the average DB time per fetched test, in milliseconds.
+   */
+  public double getDbMillisPerTest() {
+    return myTestsFetched > 0 ? myDbNanos / 1e6 / myTestsFetched : 0;
+  }
+
+  public long getBuildTestDataMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myBuildTestDataNanos);
+  }
+
+  @NotNull
+  public List<AlgorithmStatistics> getAlgorithms() {
+    return myAlgorithms;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    result.append("failing tests: ").append(getFailingTestsMillis()).append(" ms, ");
+    result.append("DB: ").append(getDbMillis()).append(" ms (").append(myQueries).append(" queries, ")
+          .append(myTestsFetched).append(" tests, ").append(myRowsFetched).append(" rows), ");
+    for (AlgorithmStatistics algorithm : myAlgorithms) {
+      result.append(algorithm.getName()).append(": ").append(algorithm.getMillis()).append(" ms (")
+            .append(algorithm.getClassified()).append(" classified), ");
+    }
+    result.append("test data: ").append(getBuildTestDataMillis()).append(" ms");
+    return result.toString();
+  }
+
+  /**
+   * The time spent in one algorithm and the number of tests it has classified.
+   */
+  public static class AlgorithmStatistics implements Serializable {
+    private final String myName;
+    private final long myNanos;
+    private final int myClassified;
+
+    public AlgorithmStatistics(@NotNull String name, long nanos, int classified) {
+      myName = name;
+      myNanos = nanos;
+      myClassified = classified;
+    }
+
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+
+    public long getNanos() {
+      return myNanos;
+    }
+
+    public long getMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(myNanos);
+    }
+
+    public int getClassified() {
+      return myClassified;
+    }
+  }
+}
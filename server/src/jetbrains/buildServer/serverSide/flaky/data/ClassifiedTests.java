@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable server-wide snapshot of the analysis results: the analysed projects
+ * and the ids of the tests classified in any of them.
+ * <p>
+ * Lets reject a test which isn't classified anywhere without touching the results.
+ * A new snapshot is created each time a result is published.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class ClassifiedTests {
+  public static final ClassifiedTests EMPTY = new ClassifiedTests(Collections.<String, long[]>emptyMap());
+
+  // projectId -> the ids of the tests classified in the project.
+  private final Map<String, long[]> myProjectTests;
+  private final TestIdSet myAllTests;
+
+  public ClassifiedTests(@NotNull Map<String, long[]> projectTests) {
+    myProjectTests = projectTests;
+
+    int size = 0;
+    for (long[] testIds : projectTests.values()) {
+      size += testIds.length;
+    }
+    myAllTests = new TestIdSet(size);
+    for (long[] testIds : projectTests.values()) {
+      for (long testId : testIds) {
+        myAllTests.add(testId);
+      }
+    }
+  }
+
+  /**
+   * Returns a new snapshot with the tests of the project replaced.
+   */
+  @NotNull
+  public ClassifiedTests withProject(@NotNull String projectId, @NotNull long[] testIds) {
+    Map<String, long[]> projectTests = new HashMap<String, long[]>(myProjectTests);
+    projectTests.put(projectId, testIds);
+    return new ClassifiedTests(projectTests);
+  }
+
+  @NotNull
+  public Set<String> getProjectIds() {
+    return Collections.unmodifiableSet(myProjectTests.keySet());
+  }
+
+  public boolean isAnalysed(@NotNull String projectId) {
+    return myProjectTests.containsKey(projectId);
+  }
+
+  /**
+   * Returns whether the test is classified in any analysed project.
+   */
+  public boolean isClassifiedAnywhere(long testId) {
+    return myAllTests.contains(testId);
+  }
+}
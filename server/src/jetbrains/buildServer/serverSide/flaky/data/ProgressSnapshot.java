@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An immutable snapshot of {@link TestAnalysisProgress}, cheap to serve to many readers.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class ProgressSnapshot {
+  public static final long UNKNOWN = -1;
+
+  private final long myVersion;
+  private final boolean myInProgress;
+  private final String myCurrentStep;
+  private final int myDoneSize;
+  private final int myTotalSize;
+  private final double myTestsPerSecond;
+  private final long myEtaSeconds;
+  private final double myDbTimeShare;
+
+  public ProgressSnapshot(long version,
+                          boolean inProgress,
+                          @Nullable String currentStep,
+                          int doneSize,
+                          int totalSize,
+                          double testsPerSecond,
+                          long etaSeconds,
+                          double dbTimeShare) {
+    myVersion = version;
+    myInProgress = inProgress;
+    myCurrentStep = currentStep;
+    myDoneSize = doneSize;
+    myTotalSize = totalSize;
+    myTestsPerSecond = testsPerSecond;
+    myEtaSeconds = etaSeconds;
+    myDbTimeShare = dbTimeShare;
+  }
+
+  public long getVersion() {
+    return myVersion;
+  }
+
+  public boolean isInProgress() {
+    return myInProgress;
+  }
+
+  @Nullable
+  public String getCurrentStep() {
+    return myCurrentStep;
+  }
+
+  public int getDoneSize() {
+    return myDoneSize;
+  }
+
+  public int getTotalSize() {
+    return myTotalSize;
+  }
+
+  public double getTestsPerSecond() {
+    return myTestsPerSecond;
+  }
+
+  /**
+   * Returns the estimated time to finish, or {@link #UNKNOWN}.
+   */
+  public long getEtaSeconds() {
+    return myEtaSeconds;
+  }
+
+  /**
+   * Returns the share of the analysis time the workers spent on the DB queries, from 0 to 1.
+   */
+  public double getDbTimeShare() {
+    return myDbTimeShare;
+  }
+}
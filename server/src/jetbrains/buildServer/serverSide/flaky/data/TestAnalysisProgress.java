@@ -6,20 +6,39 @@ package jetbrains.buildServer.serverSide.flaky.data;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Holds the progress of test analysis process in one project.
+ * <p>
+ * The progress is updated by the analyser threads and read by the web UI, so all
+ * the fields are safe to be accessed concurrently. A step change and a change of the done percent
+ * bump the version, the readers take an immutable {@link ProgressSnapshot} and can wait for the next version.
  *
  * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
  * @since 8.0
  */
 public class TestAnalysisProgress {
+  // The waiters are woken up on the version changes, the version is re-checked at least this often.
+  private static final long MAX_WAIT_MILLIS = 500;
+
   private final AtomicBoolean myLock = new AtomicBoolean(false);
 
-  private String myCurrentStep;
-  private int myTotalSize;
-  private int myDoneSize;
+  private final AtomicInteger myDoneSize = new AtomicInteger();
+  private final AtomicLong myDbNanos = new AtomicLong();
+  private final AtomicLong myVersion = new AtomicLong();
+  private final Object myMonitor = new Object();
+
+  private volatile String myCurrentStep;
+  private volatile int myTotalSize;
+  private volatile long myStartTime;
+  private volatile long myStepStartTime;
+  private volatile int myStepStartDoneSize;
+  private volatile int myWorkers = 1;
+  private volatile boolean myCancelled;
 
   @NotNull
   public AtomicBoolean getLock() {
@@ -27,9 +46,50 @@ public class TestAnalysisProgress {
   }
 
   public void start(@NotNull String initialStep) {
-    myCurrentStep = initialStep;
+    myStartTime = System.nanoTime();
     myTotalSize = 0;
-    myDoneSize = 0;
+    myDoneSize.set(0);
+    myDbNanos.set(0);
+    myWorkers = 1;
+    setCurrentStep(initialStep);
+  }
+
+  /**
+   * Marks the analysis as finished and wakes up the readers.
+   */
+  public void finish() {
+    myLock.set(false);
+    myCancelled = false;
+    myCurrentStep = null;
+    publish();
+  }
+
+  /**
+   * Requests the cancellation of the analysis, if it's queued or running.
+   * The analyser stops at the next check, see {@link #checkCancelled()}.
+   */
+  public boolean cancel() {
+    if (!myLock.get()) {
+      return false;
+    }
+    myCancelled = true;
+    setCurrentStep("Cancelling...");
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return myCancelled;
+  }
+
+  /**
+   * Stops the analysis thread if the analysis has been cancelled.
+   *
+   * @throws CancellationException if the analysis has been cancelled
+   */
+  public void checkCancelled() throws CancellationException {
+    if (myCancelled) {
+      throw new CancellationException("Tests analysis cancelled");
+    }
   }
 
   public String getCurrentStep() {
@@ -37,7 +97,10 @@ public class TestAnalysisProgress {
   }
 
   public void setCurrentStep(@NotNull String currentStep) {
+    myStepStartTime = System.nanoTime();
+    myStepStartDoneSize = myDoneSize.get();
     myCurrentStep = currentStep;
+    publish();
   }
 
   public int getTotalSize() {
@@ -46,17 +109,90 @@ public class TestAnalysisProgress {
 
   public void setTotalSize(int totalSize) {
     myTotalSize = totalSize;
+    publish();
   }
 
   public int getDoneSize() {
-    return myDoneSize;
+    return myDoneSize.get();
   }
 
   public void incDoneSize() {
-    ++myDoneSize;
+    int doneSize = myDoneSize.incrementAndGet();
+    if (getPercent(doneSize - 1) != getPercent(doneSize)) {
+      publish();
+    }
   }
 
   public void setDoneSize(int doneSize) {
-    myDoneSize = doneSize;
+    int previous = myDoneSize.getAndSet(doneSize);
+    if (getPercent(previous) != getPercent(doneSize)) {
+      publish();
+    }
+  }
+
+  /**
+   * Sets the number of the threads analysing the tests, used to compute the DB time share.
+   */
+  public void setWorkers(int workers) {
+    myWorkers = Math.max(1, workers);
+  }
+
+  /**
+   * Accounts the time of the queries of an analyser thread, without the wait for the DB access limit.
+   */
+  public void addDbTime(long nanos) {
+    myDbNanos.addAndGet(nanos);
+  }
+
+  @NotNull
+  public ProgressSnapshot getSnapshot() {
+    long version = myVersion.get();
+    String step = myCurrentStep;
+    int totalSize = myTotalSize;
+    int doneSize = myDoneSize.get();
+    long now = System.nanoTime();
+
+    // The rate is measured within the current step: the preparation doesn't count.
+    long stepNanos = now - myStepStartTime;
+    int stepDone = doneSize - myStepStartDoneSize;
+    double testsPerSecond = stepNanos > 0 && stepDone > 0 ? stepDone * 1e9 / stepNanos : 0;
+    long etaSeconds = testsPerSecond > 0 && totalSize >= doneSize ?
+                      (long) Math.ceil((totalSize - doneSize) / testsPerSecond) : ProgressSnapshot.UNKNOWN;
+
+    long elapsedNanos = now - myStartTime;
+    double dbTimeShare = elapsedNanos > 0 ? Math.min(1.0, (double) myDbNanos.get() / elapsedNanos / myWorkers) : 0;
+
+    return new ProgressSnapshot(version, myLock.get(), step, doneSize, totalSize,
+                                testsPerSecond, etaSeconds, dbTimeShare);
+  }
+
+  /**
+   * Returns the snapshot as soon as the progress is newer than the given version,
+   * or after the timeout.
+   */
+  @NotNull
+  public ProgressSnapshot awaitSnapshot(long version, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (myMonitor) {
+      long remaining = timeoutMillis;
+      while (myVersion.get() == version && remaining > 0) {
+        myMonitor.wait(Math.min(remaining, MAX_WAIT_MILLIS));
+        remaining = deadline - System.currentTimeMillis();
+      }
+    }
+    return getSnapshot();
+  }
+
+  // The done size changes with every analysed test, the readers are interested only in the whole percents.
+  private int getPercent(int doneSize) {
+    int totalSize = myTotalSize;
+    return totalSize > 0 ? (int) ((long) doneSize * 100 / totalSize) : 0;
+  }
+
+  private void publish() {
+    myVersion.incrementAndGet();
+    synchronized (myMonitor) {
+      myMonitor.notifyAll();
+    }
   }
 }
@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import jetbrains.buildServer.serverSide.SProject;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Controls the progress for each project tab.
@@ -27,14 +28,41 @@ public class TestAnalysisProgressManager {
   public TestAnalysisProgress getProgressFor(@NotNull String projectId) {
     TestAnalysisProgress progress = myProgressMap.get(projectId);
     if (progress == null) {
-      progress = new TestAnalysisProgress();
-      myProgressMap.put(projectId, progress);
+      TestAnalysisProgress newProgress = new TestAnalysisProgress();
+      progress = myProgressMap.putIfAbsent(projectId, newProgress);
+      if (progress == null) {
+        progress = newProgress;
+      }
     }
     return progress;
   }
 
-  public void clearProgressFor(@NotNull String projectId) {
-    myProgressMap.remove(projectId);
+  /**
+   * Returns the progress of the project without creating it, for the readers.
+   */
+  @Nullable
+  public TestAnalysisProgress findProgressFor(@NotNull String projectId) {
+    return myProgressMap.get(projectId);
+  }
+
+  /**
+   * Takes the lock of the project progress for a new analysis,
+   * returns null if the project is being analysed (or waits for the analysis) already.
+   */
+  @Nullable
+  public synchronized TestAnalysisProgress tryLock(@NotNull String projectId) {
+    TestAnalysisProgress progress = getProgressFor(projectId);
+    return progress.getLock().compareAndSet(false, true) ? progress : null;
+  }
+
+  /**
+   * Removes the progress of the project, unless another analysis has taken it already.
+   */
+  public synchronized void clearProgressFor(@NotNull String projectId) {
+    TestAnalysisProgress progress = myProgressMap.get(projectId);
+    if (progress != null && !progress.getLock().get()) {
+      myProgressMap.remove(projectId, progress);
+    }
   }
 
   @NotNull
@@ -7,11 +7,16 @@ package jetbrains.buildServer.serverSide.flaky.data;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A serializable entity holding the last results of test analysis (in a project).
@@ -21,16 +26,28 @@ import java.util.List;
  * @since 8.0
  */
 public class TestAnalysisResult implements Serializable {
+  // The results are persisted in the cache: keeps the data written by the previous versions readable.
+  private static final long serialVersionUID = -8996871833213708565L;
+
+  private static final AtomicLong ourVersions = new AtomicLong();
+
   public static final TestAnalysisResult EMPTY_FLAKY_TESTS = new TestAnalysisResult();
 
   private List<TestData> myFlakyTests = Collections.emptyList();
   private List<TestData> mySuspiciousTests = Collections.emptyList();
   private List<TestData> myAlwaysFailingTests = Collections.emptyList();
 
+  // Built by setTests() and after deserialization.
+  private transient TestIdIndex myIndex = createIndex();
+  // Assigned on creation and after deserialization, see getVersion().
+  private transient long myVersion = ourVersions.incrementAndGet();
+
   private TestAnalysisSettings mySettings = TestAnalysisSettings.DEFAULT_SETTINGS;
   private Date myStartDate = null;
   private Date myFinishDate = null;
   private int myTotalTests = 0;
+  // Null in the older results and in the partial ones.
+  private AnalysisStatistics myStatistics = null;
 
   public TestAnalysisResult() {
   }
@@ -69,24 +86,37 @@ public class TestAnalysisResult implements Serializable {
     return myTotalTests;
   }
 
+  /**
+   * Returns where the analysis has spent its time, or null if unknown.
+   */
+  @Nullable
+  public AnalysisStatistics getStatistics() {
+    return myStatistics;
+  }
+
+  /**
+   * Returns the version of this result instance, unique within the server run.
+   * Every new result, including a copy with updated tests and a result read back from disk,
+   * gets a new version, so the data computed for one result is never mixed with another.
+   */
+  public long getVersion() {
+    return myVersion;
+  }
+
+  /**
+   * Returns the data of the test with the given id, or null if the test isn't classified.
+   */
   @Nullable
   public TestData findTest(long testId) {
-    for (TestData testData : myFlakyTests) {
-      if (testId == testData.getTestId()) {
-        return testData;
-      }
-    }
-    for (TestData testData : mySuspiciousTests) {
-      if (testId == testData.getTestId()) {
-        return testData;
-      }
-    }
-    for (TestData testData : myAlwaysFailingTests) {
-      if (testId == testData.getTestId()) {
-        return testData;
-      }
-    }
-    return null;
+    return myIndex.find(testId);
+  }
+
+  /**
+   * Returns the type of the test with the given id, or null if the test isn't classified.
+   */
+  @Nullable
+  public Type findTestType(long testId) {
+    return myIndex.findType(testId);
   }
 
   public void setTests(@NotNull List<TestData> allTests) {
@@ -105,6 +135,50 @@ public class TestAnalysisResult implements Serializable {
         throw new RuntimeException("Unexpected type: " + type);
       }
     }
+    myIndex = createIndex();
+  }
+
+  /**
+   * Returns a copy of the result with the data of the given tests replaced: a null data removes a test,
+   * the tests which aren't classified yet are added.
+   */
+  @NotNull
+  public TestAnalysisResult withTests(@NotNull Map<Long, TestData> updates) {
+    Map<Long, TestData> remaining = new HashMap<Long, TestData>(updates);
+    List<TestData> allTests = new ArrayList<TestData>();
+    replaceTests(myFlakyTests, remaining, allTests);
+    replaceTests(mySuspiciousTests, remaining, allTests);
+    replaceTests(myAlwaysFailingTests, remaining, allTests);
+    for (TestData testData : remaining.values()) {
+      if (testData != null) {
+        allTests.add(testData);
+      }
+    }
+
+    TestAnalysisResult result = new TestAnalysisResult();
+    result.mySettings = mySettings;
+    result.myStartDate = myStartDate;
+    result.myFinishDate = myFinishDate;
+    result.myTotalTests = myTotalTests;
+    result.myStatistics = myStatistics;
+    result.setTests(allTests);
+    return result;
+  }
+
+  private static void replaceTests(@NotNull List<TestData> tests,
+                                   @NotNull Map<Long, TestData> remaining,
+                                   @NotNull List<TestData> allTests) {
+    for (TestData testData : tests) {
+      long testId = testData.getTestId();
+      if (remaining.containsKey(testId)) {
+        TestData updated = remaining.remove(testId);
+        if (updated != null) {
+          allTests.add(updated);
+        }
+      } else {
+        allTests.add(testData);
+      }
+    }
   }
 
   public void setSettings(@NotNull TestAnalysisSettings settings) {
@@ -122,4 +196,23 @@ public class TestAnalysisResult implements Serializable {
   public void setTotalTests(int totalTests) {
     myTotalTests = totalTests;
   }
+
+  public void setStatistics(@Nullable AnalysisStatistics statistics) {
+    myStatistics = statistics;
+  }
+
+  @NotNull
+  private TestIdIndex createIndex() {
+    TestIdIndex index = new TestIdIndex(myFlakyTests.size() + mySuspiciousTests.size() + myAlwaysFailingTests.size());
+    index.add(myFlakyTests);
+    index.add(mySuspiciousTests);
+    index.add(myAlwaysFailingTests);
+    return index;
+  }
+
+  private void readObject(@NotNull ObjectInputStream input) throws IOException, ClassNotFoundException {
+    input.defaultReadObject();
+    myIndex = createIndex();
+    myVersion = ourVersions.incrementAndGet();
+  }
 }
@@ -9,9 +9,24 @@ import jetbrains.buildServer.util.cache.EhCacheUtil;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Holds the test analysis results for all projects.
+ * <p>
+ * The whole results are kept in the cache, single tests are looked up
+ * in the {@link TestAnalysisResultStore}, without deserializing the whole result.
+ * <p>
+ * The ids of the classified tests are also kept in a {@link ClassifiedTests} snapshot,
+ * which is replaced when they change: the tests not classified in any project
+ * are rejected without looking at the results at all.
+ * <p>
+ * The updates of single tests (by the finished builds) are written to the store only,
+ * the whole result in the cache is merged with them when it's read next time.
  *
  * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
  * @since 8.0
@@ -19,20 +34,166 @@ import org.jetbrains.annotations.NotNull;
 public class TestAnalysisResultHolder {
   // A persistent cache: string (projectId) -> TestAnalysisResult.
   private final Cache myCache;
+  private final TestAnalysisResultStore myStore;
+  private volatile ClassifiedTests myClassifiedTests = ClassifiedTests.EMPTY;
+
+  public TestAnalysisResultHolder(@NotNull EhCacheUtil cacheUtil,
+                                  @NotNull TestAnalysisResultStore store) {
+    this(createCache(cacheUtil), store);
+  }
 
-  public TestAnalysisResultHolder(@NotNull EhCacheUtil cacheUtil) {
-    myCache = cacheUtil.createCache("tests-analysis");
-    myCache.getCacheConfiguration().setEternal(true);
-    myCache.getCacheConfiguration().setMaxElementsInMemory(3);
+  /**
+   * Creates the holder on the given cache (e.g. an in-memory one, outside the server).
+   */
+  TestAnalysisResultHolder(@NotNull Cache cache,
+                           @NotNull TestAnalysisResultStore store) {
+    myStore = store;
+    myCache = cache;
+    loadClassifiedTests();
+  }
+
+  @NotNull
+  private static Cache createCache(@NotNull EhCacheUtil cacheUtil) {
+    Cache cache = cacheUtil.createCache("tests-analysis");
+    cache.getCacheConfiguration().setEternal(true);
+    cache.getCacheConfiguration().setMaxElementsInMemory(3);
+    return cache;
   }
 
   @NotNull
   public TestAnalysisResult getTestAnalysisResult(@NotNull SProject project) {
+    if (myStore.hasUpdates(project.getProjectId())) {
+      return mergeUpdates(project);
+    }
     return getFromCache(project);
   }
 
-  public void putTestAnalysisResult(@NotNull SProject project, @NotNull TestAnalysisResult result) {
+  /**
+   * Returns the settings and the dates of the result of the project, or null if it hasn't been analysed.
+   * Doesn't read the whole result.
+   */
+  @Nullable
+  public TestAnalysisResultInfo getResultInfo(@NotNull SProject project) {
+    return myStore.getResultInfo(project.getProjectId());
+  }
+
+  public synchronized void putTestAnalysisResult(@NotNull SProject project, @NotNull TestAnalysisResult result) {
+    String projectId = project.getProjectId();
     putToCache(project, result);
+    myStore.store(projectId, result);
+    myClassifiedTests = myClassifiedTests.withProject(projectId, myStore.getTestIds(projectId));
+  }
+
+  /**
+   * Replaces the data of the given tests in the result of the project, a null data removes the test.
+   * Only the updates are written, the snapshot of the classified tests is replaced only if they change.
+   */
+  public synchronized void updateTests(@NotNull SProject project, @NotNull Map<Long, TestData> updates) {
+    String projectId = project.getProjectId();
+    Map<Long, TestData> changes = new HashMap<Long, TestData>();
+    boolean classifiedTestsChanged = false;
+    for (Map.Entry<Long, TestData> entry : updates.entrySet()) {
+      boolean wasClassified = myStore.findTestType(projectId, entry.getKey()) != null;
+      boolean isClassified = entry.getValue() != null;
+      if (wasClassified || isClassified) {
+        changes.put(entry.getKey(), entry.getValue());
+        classifiedTestsChanged |= wasClassified != isClassified;
+      }
+    }
+    if (changes.isEmpty()) {
+      return;
+    }
+
+    myStore.update(projectId, changes);
+    if (myStore.isUpdatesLogLarge(projectId)) {
+      mergeUpdates(project);
+    }
+    if (classifiedTestsChanged) {
+      myClassifiedTests = myClassifiedTests.withProject(projectId, myStore.getTestIds(projectId));
+    }
+  }
+
+  /**
+   * Returns whether the project has been analysed.
+   */
+  public boolean hasTestAnalysisResult(@NotNull SProject project) {
+    return myClassifiedTests.isAnalysed(project.getProjectId());
+  }
+
+  /**
+   * Returns the ids of all the analysed projects.
+   */
+  @NotNull
+  public Set<String> getAnalysedProjectIds() {
+    return myClassifiedTests.getProjectIds();
+  }
+
+  /**
+   * Returns the nearest project (the project itself or its ancestor) which has been analysed
+   * and classifies the test, or null if there's no such project.
+   * Most tests are not classified anywhere, for them the answer is found without any lookup
+   * in the results.
+   */
+  @Nullable
+  public SProject findClassifyingProject(@NotNull SProject project, long testId) {
+    ClassifiedTests classifiedTests = myClassifiedTests;
+    if (!classifiedTests.isClassifiedAnywhere(testId)) {
+      return null;
+    }
+
+    SProject current = project;
+    while (current != null && !classifiedTests.isAnalysed(current.getProjectId())) {
+      current = current.getParentProject();
+    }
+    if (current != null && myStore.findTestType(current.getProjectId(), testId) != null) {
+      return current;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the data of the test in the last analysis result of the project,
+   * or null if the test isn't classified there.
+   */
+  @Nullable
+  public TestData findTestData(@NotNull SProject project, long testId) {
+    return myStore.findTest(project.getProjectId(), testId);
+  }
+
+  private synchronized void loadClassifiedTests() {
+    // The results cached before the store was introduced, or stored in an older format.
+    for (Object key : myCache.getKeys()) {
+      String projectId = (String) key;
+      if (!myStore.hasResult(projectId)) {
+        TestAnalysisResult result = getFromCache(projectId);
+        if (result.getStartDate() != null) {
+          myStore.store(projectId, result);
+        }
+      }
+    }
+
+    Map<String, long[]> projectTests = new HashMap<String, long[]>();
+    for (String projectId : myStore.getProjectIds()) {
+      projectTests.put(projectId, myStore.getTestIds(projectId));
+    }
+    myClassifiedTests = new ClassifiedTests(projectTests);
+  }
+
+  /**
+   * Merges the cached result with the updates of single tests, and writes it as a whole.
+   */
+  @NotNull
+  private synchronized TestAnalysisResult mergeUpdates(@NotNull SProject project) {
+    String projectId = project.getProjectId();
+    TestAnalysisResult result = getFromCache(project);
+    if (!myStore.hasUpdates(projectId) || result.getStartDate() == null) {
+      return result;
+    }
+
+    result = result.withTests(myStore.getUpdates(projectId));
+    putToCache(project, result);
+    myStore.store(projectId, result);
+    return result;
   }
 
   private void putToCache(@NotNull SProject project, @NotNull TestAnalysisResult result) {
@@ -42,6 +203,11 @@ public class TestAnalysisResultHolder {
 
   @NotNull
   private TestAnalysisResult getFromCache(@NotNull SProject project) {
+    return getFromCache(project.getProjectId());
+  }
+
+  @NotNull
+  private TestAnalysisResult getFromCache(@NotNull String projectId) {
     // A familiar problem: see AbstractIssueFetcher.
     // EhCache uses 'Thread.currentThread().getContextClassLoader()' to load classes of serialized
     // instances, which is not the same as 'getClass().getClassLoader()'. This causes a problem
@@ -51,7 +217,7 @@ public class TestAnalysisResultHolder {
     Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
 
     try {
-      Element element = myCache.getQuiet(project.getProjectId());
+      Element element = myCache.getQuiet(projectId);
       if (element != null) {
         //noinspection unchecked
         return (TestAnalysisResult) element.getValue();
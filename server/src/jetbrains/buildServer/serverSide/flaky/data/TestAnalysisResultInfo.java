@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Date;
+
+/**
+ * The settings and the dates of the published analysis result of a project,
+ * read by {@link TestAnalysisResultStore} from the header of the result, without the tests.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestAnalysisResultInfo {
+  private final TestAnalysisSettings mySettings;
+  private final Date myStartDate;
+  private final Date myFinishDate;
+
+  TestAnalysisResultInfo(@NotNull TestAnalysisSettings settings, @Nullable Date startDate, @Nullable Date finishDate) {
+    mySettings = settings;
+    myStartDate = startDate;
+    myFinishDate = finishDate;
+  }
+
+  @NotNull
+  public TestAnalysisSettings getSettings() {
+    return mySettings;
+  }
+
+  @Nullable
+  public Date getStartDate() {
+    return myStartDate;
+  }
+
+  @Nullable
+  public Date getFinishDate() {
+    return myFinishDate;
+  }
+}
@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores the test analysis results on disk in a compact binary form, one file per project,
+ * and reads them through memory-mapped buffers.
+ * <p>
+ * A single test is found in O(1) by its id, without reading the whole result:
+ * the file contains an open addressing table (test id -> record offset).
+ * The layout (big-endian):
+ * <pre>
+ *   header:   magic, version, start date, finish date, total tests, tests number, slots number, settings offset
+ *   slots:    [test id (long), record offset (int)] * slots number, offset 0 marks an empty slot
+ *   records:  type (byte), from build id (long), reason (length + serialized bytes),
+ *             build type failure rates, agent failure rates (count + [name, total runs, failures] * count)
+ *   settings: length + serialized bytes
+ * </pre>
+ * So the settings and the dates of a result ({@link #getResultInfo}) are read without the tests.
+ * Each write creates a new file version, so a file is never modified while it is mapped.
+ * <p>
+ * The updates of single tests ({@link #update}) are appended to a log next to the file,
+ * "projectId.version.updates": [test id (long), present (byte), record if present] * n.
+ * The log is read into memory with the file and is looked up first, the next write of the whole result drops it.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestAnalysisResultStore {
+  private static final int MAGIC = 0x464C4B52;    // "FLKR"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 40;
+  private static final int SLOT_SIZE = 12;
+  private static final int NO_RECORD = 0;
+  private static final long NO_DATE = -1;
+  private static final String EXTENSION = ".results";
+  private static final String UPDATES_EXTENSION = ".updates";
+  private static final int MIN_UPDATES_TO_REWRITE = 1000;
+
+  // projectId -> the mapped result, or NO_RESULT if there is no file.
+  private final ConcurrentMap<String, MappedResult> myResults = new ConcurrentHashMap<String, MappedResult>();
+  private final File myDirectory;
+
+  public TestAnalysisResultStore(@NotNull ServerPaths serverPaths) {
+    this(new File(serverPaths.getPluginDataDirectory(), "flaky/results"));
+  }
+
+  TestAnalysisResultStore(@NotNull File directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * Returns whether there is a stored result for the project.
+   */
+  public boolean hasResult(@NotNull String projectId) {
+    return getResult(projectId) != NO_RESULT;
+  }
+
+  /**
+   * Returns the ids of the projects which have a stored result.
+   */
+  @NotNull
+  public Set<String> getProjectIds() {
+    Set<String> projectIds = new HashSet<String>();
+    File[] files = myDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        int versionStart = name.lastIndexOf('.', name.length() - EXTENSION.length() - 1);
+        if (versionStart > 0 && getVersion(name.substring(0, versionStart), file) >= 0) {
+          projectIds.add(name.substring(0, versionStart));
+        }
+      }
+    }
+    return projectIds;
+  }
+
+  /**
+   * Returns the ids of all the tests in the stored result of the project.
+   */
+  @NotNull
+  public long[] getTestIds(@NotNull String projectId) {
+    MappedResult result = getResult(projectId);
+    if (result == NO_RESULT) {
+      return new long[0];
+    }
+
+    ByteBuffer buffer = result.myBuffer;
+    boolean hasUpdates = result.myHasUpdates;
+    long[] testIds = new long[buffer.getInt(28) + (hasUpdates ? result.myUpdatedTests.size() : 0)];
+    int size = 0;
+    for (int slot = 0; slot <= result.myMask; slot++) {
+      int position = HEADER_SIZE + slot * SLOT_SIZE;
+      if (buffer.getInt(position + 8) != NO_RECORD) {
+        long testId = buffer.getLong(position);
+        if (!hasUpdates || !result.isUpdated(testId)) {
+          testIds[size++] = testId;
+        }
+      }
+    }
+    if (hasUpdates) {
+      for (Long testId : result.myUpdatedTests.keySet()) {
+        if (size < testIds.length) {
+          testIds[size++] = testId;
+        }
+      }
+    }
+    return size == testIds.length ? testIds : Arrays.copyOf(testIds, size);
+  }
+
+  /**
+   * Returns the start date of the stored analysis, or null if there is no result.
+   */
+  @Nullable
+  public Date getStartDate(@NotNull String projectId) {
+    MappedResult result = getResult(projectId);
+    return result != NO_RESULT ? toDate(result.myBuffer.getLong(8)) : null;
+  }
+
+  /**
+   * Returns the settings and the dates of the stored analysis, or null if there is no result.
+   */
+  @Nullable
+  public TestAnalysisResultInfo getResultInfo(@NotNull String projectId) {
+    MappedResult result = getResult(projectId);
+    if (result == NO_RESULT) {
+      return null;
+    }
+
+    TestAnalysisResultInfo info = result.myInfo;
+    if (info == null) {
+      ByteBuffer buffer = result.myBuffer.duplicate();
+      buffer.position(buffer.getInt(36));
+      TestAnalysisSettings settings = (TestAnalysisSettings) readObject(buffer);
+      if (settings == null) {
+        return null;
+      }
+      info = new TestAnalysisResultInfo(settings, toDate(buffer.getLong(8)), toDate(buffer.getLong(16)));
+      result.myInfo = info;
+    }
+    return info;
+  }
+
+  /**
+   * Returns the type of the test in the stored result, or null if the test isn't there.
+   * Doesn't allocate.
+   */
+  @Nullable
+  public Type findTestType(@NotNull String projectId, long testId) {
+    MappedResult result = getResult(projectId);
+    if (result.myHasUpdates && result.isUpdated(testId)) {
+      TestData testData = result.myUpdatedTests.get(testId);
+      return testData != null ? testData.getType() : null;
+    }
+
+    int offset = result.findRecord(testId);
+    return offset != NO_RECORD ? TYPES[result.myBuffer.get(offset)] : null;
+  }
+
+  /**
+   * Reads the data of a single test from the stored result, or returns null if the test isn't there.
+   */
+  @Nullable
+  public TestData findTest(@NotNull String projectId, long testId) {
+    MappedResult result = getResult(projectId);
+    if (result.myHasUpdates && result.isUpdated(testId)) {
+      return result.myUpdatedTests.get(testId);
+    }
+
+    int offset = result.findRecord(testId);
+    if (offset == NO_RECORD) {
+      return null;
+    }
+
+    ByteBuffer buffer = result.myBuffer.duplicate();
+    buffer.position(offset);
+    return readRecord(buffer, projectId, testId);
+  }
+
+  /**
+   * Returns whether there are updates of single tests after the last write of the whole result.
+   */
+  public boolean hasUpdates(@NotNull String projectId) {
+    return getResult(projectId).myHasUpdates;
+  }
+
+  /**
+   * Returns the updates of single tests after the last write of the whole result,
+   * test id -> the data of the test, or null if the test has been removed.
+   */
+  @NotNull
+  public Map<Long, TestData> getUpdates(@NotNull String projectId) {
+    MappedResult result = getResult(projectId);
+    Map<Long, TestData> updates = new HashMap<Long, TestData>(result.myUpdatedTests);
+    for (Long testId : result.myRemovedTests) {
+      updates.put(testId, null);
+    }
+    return updates;
+  }
+
+  /**
+   * Returns whether the log of the updates has outgrown the file, so it's time to write the whole result.
+   */
+  public boolean isUpdatesLogLarge(@NotNull String projectId) {
+    MappedResult result = getResult(projectId);
+    return result != NO_RESULT && result.myLoggedUpdates > Math.max(MIN_UPDATES_TO_REWRITE, result.myBuffer.getInt(28));
+  }
+
+  /**
+   * Replaces the data of single tests in the stored result of the project, a null data removes the test.
+   * The updates are appended to the log of the current file, the file itself isn't rewritten.
+   */
+  public synchronized void update(@NotNull String projectId, @NotNull Map<Long, TestData> updates) {
+    MappedResult result = getResult(projectId);
+    if (result == NO_RESULT || updates.isEmpty()) {
+      return;
+    }
+
+    try {
+      appendUpdates(result.myUpdatesFile, updates);
+    } catch (IOException e) {
+      // Still applied in memory: lost on restart only.
+      Loggers.SERVER.warn("Failed to store the tests analysis updates of " + projectId + " in " + result.myUpdatesFile, e);
+    }
+    result.apply(updates);
+    result.myLoggedUpdates += updates.size();
+  }
+
+  /**
+   * Replaces the stored result of the project.
+   */
+  public synchronized void store(@NotNull String projectId, @NotNull TestAnalysisResult result) {
+    File[] oldFiles = listFiles(projectId);
+    long version = System.currentTimeMillis();
+    if (oldFiles.length > 0) {
+      version = Math.max(version, getVersion(projectId, oldFiles[oldFiles.length - 1]) + 1);
+    }
+    File file = new File(myDirectory, projectId + "." + version + EXTENSION);
+    try {
+      FileUtil.createDir(myDirectory);
+      writeFile(file, result);
+      myResults.put(projectId, map(file));
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to store the tests analysis result of " + projectId + " in " + file, e);
+      FileUtil.delete(file);
+      return;
+    }
+
+    for (File oldFile : oldFiles) {
+      // May fail while the old file is still mapped (on Windows), then it's removed next time.
+      FileUtil.delete(oldFile);
+      FileUtil.delete(getUpdatesFile(oldFile));
+    }
+  }
+
+  @NotNull
+  private MappedResult getResult(@NotNull String projectId) {
+    MappedResult result = myResults.get(projectId);
+    if (result == null) {
+      result = load(projectId);
+      MappedResult previous = myResults.putIfAbsent(projectId, result);
+      if (previous != null) {
+        result = previous;
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private MappedResult load(@NotNull String projectId) {
+    File[] files = listFiles(projectId);
+    if (files.length == 0) {
+      return NO_RESULT;
+    }
+
+    File latest = files[files.length - 1];
+    try {
+      MappedResult result = map(latest);
+      readUpdates(result, projectId);
+      return result;
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to read the tests analysis result from " + latest, e);
+      return NO_RESULT;
+    }
+  }
+
+  /**
+   * Returns the files of the project, the latest version last.
+   */
+  @NotNull
+  private File[] listFiles(@NotNull final String projectId) {
+    File[] files = myDirectory.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return getVersion(projectId, file) >= 0;
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File file1, File file2) {
+        long version1 = getVersion(projectId, file1);
+        long version2 = getVersion(projectId, file2);
+        return version1 < version2 ? -1 : (version1 == version2 ? 0 : 1);
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Returns the version from the file name "projectId.version.results", or -1 if the name doesn't match.
+   */
+  private static long getVersion(@NotNull String projectId, @NotNull File file) {
+    String name = file.getName();
+    if (!name.startsWith(projectId + ".") || !name.endsWith(EXTENSION)) {
+      return -1;
+    }
+    String version = name.substring(projectId.length() + 1, name.length() - EXTENSION.length());
+    try {
+      return Long.parseLong(version);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @NotNull
+  private static MappedResult map(@NotNull File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("Unexpected format");
+      }
+      return new MappedResult(buffer, getUpdatesFile(file));
+    } finally {
+      // The mapping stays valid after the file is closed.
+      FileUtil.close(randomAccessFile);
+    }
+  }
+
+  private static void writeFile(@NotNull File file, @NotNull TestAnalysisResult result) throws IOException {
+    List<TestData> tests = new ArrayList<TestData>();
+    tests.addAll(result.getFlakyTests());
+    tests.addAll(result.getSuspiciousTests());
+    tests.addAll(result.getAlwaysFailingTests());
+
+    int slotsNumber = getSlotsNumber(tests.size());
+    int mask = slotsNumber - 1;
+    long[] slotTestIds = new long[slotsNumber];
+    int[] slotOffsets = new int[slotsNumber];
+
+    // Records first, to know the offsets.
+    int recordsStart = HEADER_SIZE + slotsNumber * SLOT_SIZE;
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordsOutput = new DataOutputStream(records);
+    for (TestData testData : tests) {
+      int slot = hash(testData.getTestId()) & mask;
+      while (slotOffsets[slot] != NO_RECORD && slotTestIds[slot] != testData.getTestId()) {
+        slot = (slot + 1) & mask;
+      }
+      slotTestIds[slot] = testData.getTestId();
+      slotOffsets[slot] = recordsStart + recordsOutput.size();
+      writeRecord(recordsOutput, testData);
+    }
+    int settingsOffset = recordsStart + recordsOutput.size();
+    writeObject(recordsOutput, result.getSettings());
+    recordsOutput.flush();
+
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(toLong(result.getStartDate()));
+      output.writeLong(toLong(result.getFinishDate()));
+      output.writeInt(result.getTotalTests());
+      output.writeInt(tests.size());
+      output.writeInt(slotsNumber);
+      output.writeInt(settingsOffset);
+      for (int i = 0; i < slotsNumber; i++) {
+        output.writeLong(slotTestIds[i]);
+        output.writeInt(slotOffsets[i]);
+      }
+      records.writeTo(output);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+
+  @NotNull
+  private static File getUpdatesFile(@NotNull File file) {
+    String name = file.getName();
+    return new File(file.getParentFile(), name.substring(0, name.length() - EXTENSION.length()) + UPDATES_EXTENSION);
+  }
+
+  private static void appendUpdates(@NotNull File file, @NotNull Map<Long, TestData> updates) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream bytesOutput = new DataOutputStream(bytes);
+    for (Map.Entry<Long, TestData> entry : updates.entrySet()) {
+      bytesOutput.writeLong(entry.getKey());
+      TestData testData = entry.getValue();
+      bytesOutput.writeBoolean(testData != null);
+      if (testData != null) {
+        writeRecord(bytesOutput, testData);
+      }
+    }
+    bytesOutput.flush();
+
+    // One write per update, so a crash leaves at most one incomplete entry at the end.
+    OutputStream output = new FileOutputStream(file, true);
+    try {
+      bytes.writeTo(output);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+
+  private static void readUpdates(@NotNull MappedResult result, @NotNull String projectId) throws IOException {
+    if (!result.myUpdatesFile.isFile()) {
+      return;
+    }
+
+    byte[] bytes;
+    RandomAccessFile file = new RandomAccessFile(result.myUpdatesFile, "r");
+    try {
+      bytes = new byte[(int) file.length()];
+      file.readFully(bytes);
+    } finally {
+      FileUtil.close(file);
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    Map<Long, TestData> updates = new HashMap<Long, TestData>();
+    int entries = 0;
+    int complete = 0;
+    try {
+      while (buffer.hasRemaining()) {
+        long testId = buffer.getLong();
+        updates.put(testId, buffer.get() != 0 ? readRecord(buffer, projectId, testId) : null);
+        ++entries;
+        complete = buffer.position();
+      }
+    } catch (BufferUnderflowException e) {
+      // The incomplete last entry is cut off, so the next updates are appended after the complete ones.
+      RandomAccessFile updatesFile = new RandomAccessFile(result.myUpdatesFile, "rw");
+      try {
+        updatesFile.setLength(complete);
+      } finally {
+        FileUtil.close(updatesFile);
+      }
+    }
+    result.apply(updates);
+    result.myLoggedUpdates = entries;
+  }
+
+  private static void writeRecord(@NotNull DataOutputStream output, @NotNull TestData testData) throws IOException {
+    output.writeByte(testData.getType().ordinal());
+    output.writeLong(testData.getFromBuildId());
+
+    writeObject(output, testData.getReason());
+    writeFailureRates(output, testData.getBuildTypeFailureRates());
+    writeFailureRates(output, testData.getAgentFailureRates());
+  }
+
+  private static void writeFailureRates(@NotNull DataOutputStream output,
+                                        @NotNull Map<String, FailureRate> failureRates) throws IOException {
+    output.writeInt(failureRates.size());
+    for (Map.Entry<String, FailureRate> entry : failureRates.entrySet()) {
+      String name = entry.getKey();
+      if (name != null) {
+        output.writeInt(name.length());
+        output.writeChars(name);
+      } else {
+        output.writeInt(-1);
+      }
+      output.writeInt(entry.getValue().getTotalRuns());
+      output.writeInt(entry.getValue().getFailures());
+    }
+  }
+
+  @NotNull
+  private static TestData readRecord(@NotNull ByteBuffer buffer, @NotNull String projectId, long testId) {
+    Type type = TYPES[buffer.get()];
+    long fromBuildId = buffer.getLong();
+    Reason reason = (Reason) readObject(buffer);
+    Map<String, FailureRate> buildTypeFailureRates = readFailureRates(buffer);
+    Map<String, FailureRate> agentFailureRates = readFailureRates(buffer);
+    return new TestData(testId, projectId, buildTypeFailureRates, agentFailureRates, fromBuildId, type, reason);
+  }
+
+  private static void writeObject(@NotNull DataOutputStream output, @Nullable Serializable object) throws IOException {
+    if (object != null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+      objectOutput.writeObject(object);
+      objectOutput.close();
+      output.writeInt(bytes.size());
+      bytes.writeTo(output);
+    } else {
+      output.writeInt(0);
+    }
+  }
+
+  @Nullable
+  private static Object readObject(@NotNull ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length == 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    try {
+      ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+          // The reason and settings classes belong to the plugin.
+          return Class.forName(description.getName(), false, TestAnalysisResultStore.class.getClassLoader());
+        }
+      };
+      return input.readObject();
+    } catch (IOException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static Map<String, FailureRate> readFailureRates(@NotNull ByteBuffer buffer) {
+    int size = buffer.getInt();
+    Map<String, FailureRate> failureRates = new HashMap<String, FailureRate>();
+    for (int i = 0; i < size; i++) {
+      String name = null;
+      int length = buffer.getInt();
+      if (length >= 0) {
+        char[] chars = new char[length];
+        for (int j = 0; j < length; j++) {
+          chars[j] = buffer.getChar();
+        }
+        name = new String(chars);
+      }
+      int totalRuns = buffer.getInt();
+      int failures = buffer.getInt();
+      failureRates.put(name, new FailureRate(totalRuns, failures));
+    }
+    return failureRates;
+  }
+
+  private static int getSlotsNumber(int testsNumber) {
+    // The load factor is at most 0.5.
+    return Math.max(2, Integer.highestOneBit(Math.max(1, testsNumber)) << 2);
+  }
+
+  private static int hash(long testId) {
+    long hash = testId * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private static long toLong(@Nullable Date date) {
+    return date != null ? date.getTime() : NO_DATE;
+  }
+
+  @Nullable
+  private static Date toDate(long time) {
+    return time != NO_DATE ? new Date(time) : null;
+  }
+
+  private static final Type[] TYPES = Type.values();
+  private static final MappedResult NO_RESULT = new MappedResult(null, null);
+
+  private static class MappedResult {
+    private final ByteBuffer myBuffer;
+    private final int myMask;
+    private final File myUpdatesFile;
+
+    // The updates of single tests over the file, written under the lock of the store.
+    private final ConcurrentMap<Long, TestData> myUpdatedTests = new ConcurrentHashMap<Long, TestData>();
+    private final Set<Long> myRemovedTests = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile boolean myHasUpdates;
+    private volatile int myLoggedUpdates;
+    // Read on demand.
+    private volatile TestAnalysisResultInfo myInfo;
+
+    private MappedResult(@Nullable ByteBuffer buffer, @Nullable File updatesFile) {
+      myBuffer = buffer;
+      myMask = buffer != null ? buffer.getInt(32) - 1 : 0;
+      myUpdatesFile = updatesFile;
+    }
+
+    private boolean isUpdated(long testId) {
+      return myUpdatedTests.containsKey(testId) || myRemovedTests.contains(testId);
+    }
+
+    private void apply(@NotNull Map<Long, TestData> updates) {
+      for (Map.Entry<Long, TestData> entry : updates.entrySet()) {
+        Long testId = entry.getKey();
+        TestData testData = entry.getValue();
+        if (testData != null) {
+          myUpdatedTests.put(testId, testData);
+          myRemovedTests.remove(testId);
+        } else {
+          // Added before the removal: the record under it in the file is removed too.
+          myRemovedTests.add(testId);
+          myUpdatedTests.remove(testId);
+        }
+      }
+      myHasUpdates = !myUpdatedTests.isEmpty() || !myRemovedTests.isEmpty();
+    }
+
+    /**
+     * Returns the offset of the test record, or {@link #NO_RECORD}.
+     */
+    private int findRecord(long testId) {
+      if (myBuffer == null) {
+        return NO_RECORD;
+      }
+
+      int slot = hash(testId) & myMask;
+      while (true) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        int offset = myBuffer.getInt(position + 8);
+        if (offset == NO_RECORD || myBuffer.getLong(position) == testId) {
+          return offset;
+        }
+        slot = (slot + 1) & myMask;
+      }
+    }
+  }
+}
@@ -18,6 +18,9 @@ import java.util.Collections;
  * @since 8.0
  */
 public class TestAnalysisSettings implements Serializable {
+  // The settings are persisted with the results: keeps the data written by the previous versions readable.
+  private static final long serialVersionUID = -3530920848346893427L;
+
   public static final int DEFAULT_PERIOD_DAYS = 5;
   public static final TestAnalysisSettings DEFAULT_SETTINGS =
     new TestAnalysisSettings(Collections.<String>emptyList(),
@@ -35,18 +38,33 @@ public class TestAnalysisSettings implements Serializable {
   private final int myMinSeriesNumber;
   private final double myAverageSeriesLength;
 
+  // Added in 8.1: false in the settings of the older results.
+  private final boolean myAnalysePeriodically;
+
   public TestAnalysisSettings(@NotNull Collection<String> excludeBuildTypes,
                               int analyseTimePeriodDays,
                               boolean analyseFullHistory,
                               boolean speedUpAlwaysFailing,
                               int minSeriesNumber,
                               double averageSeriesLength) {
+    this(excludeBuildTypes, analyseTimePeriodDays, analyseFullHistory, speedUpAlwaysFailing,
+         minSeriesNumber, averageSeriesLength, false);
+  }
+
+  public TestAnalysisSettings(@NotNull Collection<String> excludeBuildTypes,
+                              int analyseTimePeriodDays,
+                              boolean analyseFullHistory,
+                              boolean speedUpAlwaysFailing,
+                              int minSeriesNumber,
+                              double averageSeriesLength,
+                              boolean analysePeriodically) {
     myExcludeBuildTypes = excludeBuildTypes;
     myAnalyseTimePeriodDays = analyseTimePeriodDays;
     myAnalyseFullHistory = analyseFullHistory;
     mySpeedUpAlwaysFailing = speedUpAlwaysFailing;
     myMinSeriesNumber = minSeriesNumber;
     myAverageSeriesLength = averageSeriesLength;
+    myAnalysePeriodically = analysePeriodically;
   }
 
   @NotNull
@@ -77,4 +95,12 @@ public class TestAnalysisSettings implements Serializable {
   public double getAverageSeriesLength() {
     return myAverageSeriesLength;
   }
+
+  /**
+   * Returns whether the project is re-analysed in background with these settings,
+   * see {@link jetbrains.buildServer.serverSide.flaky.analyser.PeriodicAnalysis}.
+   */
+  public boolean isAnalysePeriodically() {
+    return myAnalysePeriodically;
+  }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * An open addressing index: test id -> test data and type, filled once for the expected number of tests.
+ * The keys are primitive longs, lookups don't allocate.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestIdIndex {
+  private final long[] myTestIds;
+  private final TestData[] myTests;
+  private final Type[] myTypes;
+  private final int myMask;
+
+  public TestIdIndex(int size) {
+    // The load factor is at most 0.5.
+    int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, size)) << 2);
+    myTestIds = new long[capacity];
+    myTests = new TestData[capacity];
+    myTypes = new Type[capacity];
+    myMask = capacity - 1;
+  }
+
+  public void add(@NotNull List<TestData> tests) {
+    for (TestData testData : tests) {
+      int slot = findSlot(testData.getTestId());
+      if (myTests[slot] == null) {
+        // The first occurrence wins, as in the sequential search.
+        myTestIds[slot] = testData.getTestId();
+        myTests[slot] = testData;
+        myTypes[slot] = testData.getType();
+      }
+    }
+  }
+
+  @Nullable
+  public TestData find(long testId) {
+    return myTests[findSlot(testId)];
+  }
+
+  @Nullable
+  public Type findType(long testId) {
+    return myTypes[findSlot(testId)];
+  }
+
+  private int findSlot(long testId) {
+    int slot = hash(testId) & myMask;
+    while (myTests[slot] != null && myTestIds[slot] != testId) {
+      slot = (slot + 1) & myMask;
+    }
+    return slot;
+  }
+
+  private static int hash(long testId) {
+    long hash = testId * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
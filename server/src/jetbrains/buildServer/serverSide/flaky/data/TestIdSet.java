@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+/**
+ * An open addressing set of test ids, filled once for the expected number of tests.
+ * The keys are primitive longs, lookups don't allocate.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class TestIdSet {
+  private final long[] myTestIds;
+  private final boolean[] myUsed;
+  private final int myMask;
+
+  public TestIdSet(int size) {
+    // The load factor is at most 0.5.
+    int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, size)) << 2);
+    myTestIds = new long[capacity];
+    myUsed = new boolean[capacity];
+    myMask = capacity - 1;
+  }
+
+  public void add(long testId) {
+    int slot = findSlot(testId);
+    myTestIds[slot] = testId;
+    myUsed[slot] = true;
+  }
+
+  public boolean contains(long testId) {
+    return myUsed[findSlot(testId)];
+  }
+
+  private int findSlot(long testId) {
+    int slot = hash(testId) & myMask;
+    while (myUsed[slot] && myTestIds[slot] != testId) {
+      slot = (slot + 1) & myMask;
+    }
+    return slot;
+  }
+
+  private static int hash(long testId) {
+    long hash = testId * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.flaky.data.ProgressSnapshot;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisProgress;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisProgressManager;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the progress of the analysis in a project as a compact JSON snapshot.
+ * <p>
+ * Parameters: {@code projectId} and optional {@code version}: if it's given, the request
+ * is held (long polling) until the progress gets newer than this version, or for
+ * {@link #MAX_WAIT_MILLIS} at most.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class AnalysisProgressController extends BaseController {
+  private static final long MAX_WAIT_MILLIS = 20000;
+
+  private static final ProgressSnapshot NOT_IN_PROGRESS =
+    new ProgressSnapshot(0, false, null, 0, 0, 0, ProgressSnapshot.UNKNOWN, 0);
+
+  private final TestAnalysisProgressManager myProgressManager;
+
+  public AnalysisProgressController(@NotNull SBuildServer server,
+                                    @NotNull WebControllerManager webControllerManager,
+                                    @NotNull TestAnalysisProgressManager progressManager) {
+    super(server);
+    webControllerManager.registerController("/flakyProgress.html", this);
+    myProgressManager = progressManager;
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+    String projectId = request.getParameter("projectId");
+    if (projectId == null) {
+      return simpleView("Incorrect request: not enough parameters");
+    }
+
+    ProgressSnapshot snapshot = NOT_IN_PROGRESS;
+    TestAnalysisProgress progress = myProgressManager.findProgressFor(projectId);
+    if (progress != null) {
+      String version = request.getParameter("version");
+      try {
+        snapshot = version != null ?
+                   progress.awaitSnapshot(Long.parseLong(version), MAX_WAIT_MILLIS) :
+                   progress.getSnapshot();
+      } catch (NumberFormatException e) {
+        return simpleView("Incorrect request: version can't be parsed");
+      }
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getWriter().write(toJson(snapshot));
+    return null;
+  }
+
+  @NotNull
+  static String toJson(@NotNull ProgressSnapshot snapshot) {
+    JsonWriter json = new JsonWriter();
+    json.beginObject();
+    json.name("version").value(snapshot.getVersion());
+    json.name("inProgress").value(snapshot.isInProgress());
+    json.name("step").value(snapshot.getCurrentStep());
+    json.name("done").value(snapshot.getDoneSize());
+    json.name("total").value(snapshot.getTotalSize());
+    json.name("testsPerSecond").value(snapshot.getTestsPerSecond());
+    json.name("etaSeconds").value(snapshot.getEtaSeconds());
+    json.name("dbTimeShare").value(snapshot.getDbTimeShare());
+    json.endObject();
+    return json.toString();
+  }
+}
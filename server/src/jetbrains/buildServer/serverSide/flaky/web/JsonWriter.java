@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A minimal streaming JSON writer for the plugin's ajax responses.
+ * The caller is responsible for the structure, the writer only puts the commas and escapes the strings.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+class JsonWriter {
+  private final StringBuilder myBuilder = new StringBuilder();
+  private boolean myNeedsComma;
+
+  @NotNull
+  public JsonWriter beginObject() {
+    startValue();
+    myBuilder.append('{');
+    myNeedsComma = false;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter endObject() {
+    myBuilder.append('}');
+    myNeedsComma = true;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter beginArray() {
+    startValue();
+    myBuilder.append('[');
+    myNeedsComma = false;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter endArray() {
+    myBuilder.append(']');
+    myNeedsComma = true;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter name(@NotNull String name) {
+    startValue();
+    appendString(name);
+    myBuilder.append(':');
+    myNeedsComma = false;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter value(@Nullable String value) {
+    startValue();
+    if (value == null) {
+      myBuilder.append("null");
+    } else {
+      appendString(value);
+    }
+    myNeedsComma = true;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter value(long value) {
+    startValue();
+    myBuilder.append(value);
+    myNeedsComma = true;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter value(double value) {
+    startValue();
+    myBuilder.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value));
+    myNeedsComma = true;
+    return this;
+  }
+
+  @NotNull
+  public JsonWriter value(boolean value) {
+    startValue();
+    myBuilder.append(value);
+    myNeedsComma = true;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return myBuilder.toString();
+  }
+
+  private void startValue() {
+    if (myNeedsComma) {
+      myBuilder.append(',');
+    }
+  }
+
+  private void appendString(@NotNull String value) {
+    myBuilder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      switch (ch) {
+        case '"':
+          myBuilder.append("\\\"");
+          break;
+        case '\\':
+          myBuilder.append("\\\\");
+          break;
+        case '\n':
+          myBuilder.append("\\n");
+          break;
+        case '\r':
+          myBuilder.append("\\r");
+          break;
+        case '\t':
+          myBuilder.append("\\t");
+          break;
+        default:
+          if (ch < 0x20 || ch == '<' || ch == '>' || ch == '&' || ch == '\u2028' || ch == '\u2029') {
+            myBuilder.append(String.format("\\u%04x", (int) ch));
+          } else {
+            myBuilder.append(ch);
+          }
+      }
+    }
+    myBuilder.append('"');
+  }
+}
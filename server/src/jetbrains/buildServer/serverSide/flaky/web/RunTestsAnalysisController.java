@@ -12,7 +12,7 @@ import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.SProject;
-import jetbrains.buildServer.serverSide.flaky.analyser.TestsAnalyser;
+import jetbrains.buildServer.serverSide.flaky.analyser.AnalysisScheduler;
 import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
@@ -30,16 +30,16 @@ import static jetbrains.buildServer.serverSide.flaky.data.TestAnalysisSettings.D
  */
 public class RunTestsAnalysisController extends BaseController {
   private final ProjectManager myProjectManager;
-  private final TestsAnalyser myAnalyser;
+  private final AnalysisScheduler myScheduler;
 
   public RunTestsAnalysisController(@NotNull SBuildServer server,
                                     @NotNull WebControllerManager webControllerManager,
                                     @NotNull ProjectManager projectManager,
-                                    @NotNull TestsAnalyser analyser) {
+                                    @NotNull AnalysisScheduler scheduler) {
     super(server);
     webControllerManager.registerController("/analyzeTests.html", this);
     myProjectManager = projectManager;
-    myAnalyser = analyser;
+    myScheduler = scheduler;
   }
 
   @Nullable
@@ -51,19 +51,28 @@ public class RunTestsAnalysisController extends BaseController {
       return null;
     }
 
-    final SProject project = myProjectManager.findProjectById(projectId);
+    SProject project = myProjectManager.findProjectById(projectId);
     if (project == null) {
       return null;
     }
 
-    final TestAnalysisSettings settings = getSettingsFromRequest(request);
+    boolean accepted;
+    if ("cancel".equals(request.getParameter("action"))) {
+      accepted = myScheduler.cancel(project);
+    } else {
+      // Rejected if the project is being analysed or waits in the queue already.
+      accepted = myScheduler.schedule(project, getSettingsFromRequest(request));
+    }
 
-    new Thread(new Runnable() {
-      public void run() {
-        myAnalyser.analyseTestsInProject(project, settings);
-      }
-    }, "Tests analyser").start();
+    JsonWriter json = new JsonWriter();
+    json.beginObject();
+    json.name("accepted").value(accepted);
+    json.name("queuePosition").value(myScheduler.getQueuePosition(project));
+    json.endObject();
 
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(json.toString());
     return null;
   }
 
@@ -75,9 +84,11 @@ public class RunTestsAnalysisController extends BaseController {
     boolean speedUpAlwaysFailing = getBoolParam(request, "speedUpAlwaysFailing");
     int minSeriesNumber = getIntParam(request, "minSeriesNumber", DEFAULT_MIN_SERIES_NUMBER);
     double averageSeriesLength = getDoubleParam(request, "averageSeriesLength", DEFAULT_AVERAGE_SERIES_LENGTH);
+    boolean analysePeriodically = getBoolParam(request, "analysePeriodically");
     return new TestAnalysisSettings(excludeBuildTypes, analyseTimePeriodDays,
                                     analyseFullHistory, speedUpAlwaysFailing,
-                                    minSeriesNumber, averageSeriesLength);
+                                    minSeriesNumber, averageSeriesLength,
+                                    analysePeriodically);
   }
 
   @NotNull
@@ -7,9 +7,9 @@ package jetbrains.buildServer.serverSide.flaky.web;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.STest;
 import jetbrains.buildServer.serverSide.TestEx;
-import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResult;
 import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResultHolder;
 import jetbrains.buildServer.serverSide.flaky.data.TestData;
+import jetbrains.buildServer.serverSide.flaky.data.Type;
 import jetbrains.buildServer.web.openapi.PagePlaces;
 import jetbrains.buildServer.web.openapi.PlaceId;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
@@ -41,59 +41,38 @@ public class TestDetailsExtension extends SimplePageExtension {
 
   @Override
   public boolean isAvailable(@NotNull HttpServletRequest request) {
-    return findTest(request) != null;
+    return findClassifyingProject(findTest(request)) != null;
   }
 
   @Override
   public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
     STest test = findTest(request);
-    assert test != null;
-    if (test instanceof TestEx) {
-      TestAnalysisResult results = null;
-      SProject project = ((TestEx) test).getProject();
-      while (project != null) {
-        TestAnalysisResult result = myTestAnalysisResultHolder.getTestAnalysisResult(project);
-        if (result.getStartDate() != null) {
-          results = result;
-          break;
-        }
-        project = project.getParentProject();
-      }
+    SProject project = findClassifyingProject(test);
+    if (test != null && project != null) {
+      TestData currentTestData = myTestAnalysisResultHolder.findTestData(project, test.getTestNameId());
+      Type type = currentTestData != null ? currentTestData.getType() : null;
+      boolean isFlaky = type != null && type.isFlaky();
+      boolean isSuspicious = type != null && type.isSuspicious();
+      boolean isAlwaysFailing = type != null && type.isAlwaysFailing();
 
-      if (results != null) {
-        long testId = test.getTestNameId();
-        TestData currentTestData = null;
-        boolean isFlaky = false;
-        boolean isSuspicious = false;
-        boolean isAlwaysFailing = false;
-
-        for (TestData testData : results.getFlakyTests()) {
-          if (testId == testData.getTestId()) {
-            currentTestData = testData;
-            isFlaky = true;
-          }
-        }
-        for (TestData testData : results.getSuspiciousTests()) {
-          if (testId == testData.getTestId()) {
-            currentTestData = testData;
-            isSuspicious = true;
-          }
-        }
-        for (TestData testData : results.getAlwaysFailingTests()) {
-          if (testId == testData.getTestId()) {
-            currentTestData = testData;
-            isAlwaysFailing = true;
-          }
-        }
+      model.put("project", project);
+      model.put("testData", currentTestData);
+      model.put("isFlaky", isFlaky);
+      model.put("isSuspicious", isSuspicious);
+      model.put("isAlwaysFailing", isAlwaysFailing);
+      model.put("iconUrl", myDescriptor.getPluginResourcesPath("flaky-test.png"));
+    }
+  }
 
-        model.put("project", project);
-        model.put("testData", currentTestData);
-        model.put("isFlaky", isFlaky);
-        model.put("isSuspicious", isSuspicious);
-        model.put("isAlwaysFailing", isAlwaysFailing);
-        model.put("iconUrl", myDescriptor.getPluginResourcesPath("flaky-test.png"));
+  @Nullable
+  private SProject findClassifyingProject(@Nullable STest test) {
+    if (test instanceof TestEx) {
+      SProject project = ((TestEx) test).getProject();
+      if (project != null) {
+        return myTestAnalysisResultHolder.findClassifyingProject(project, test.getTestNameId());
       }
     }
+    return null;
   }
 
   @Nullable
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.flaky.analyser.TestsAnalyser;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResult;
+import jetbrains.buildServer.serverSide.flaky.data.TestData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Provides the complete data of the tests for the details view.
+ * <p>
+ * The tests which were not fully processed by the analysis (e.g. the always failing ones)
+ * are computed from the DB, all the missing tests of a request in one batched fetch.
+ * The computed data is kept in a bounded LRU cache keyed by the version of the result,
+ * so it's shared by all the users until the result of the project changes.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestDetailsProvider {
+  private static final String CACHE_SIZE_PROPERTY = "teamcity.flakyTests.detailsCache.size";
+  private static final int DEFAULT_CACHE_SIZE = 5000;
+
+  private final TestsAnalyser myTestsAnalyser;
+  private final Map<String, TestData> myCache;
+
+  public TestDetailsProvider(@NotNull TestsAnalyser testsAnalyser) {
+    myTestsAnalyser = testsAnalyser;
+
+    final int cacheSize = TeamCityProperties.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+    myCache = new LinkedHashMap<String, TestData>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TestData> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the data of the tests in the given analysis result of the project.
+   *
+   * @return the map from test id to its data, in the order of the requested ids
+   */
+  @NotNull
+  public Map<Long, TestData> getTestData(@NotNull SProject project,
+                                         @NotNull TestAnalysisResult result,
+                                         @NotNull List<Long> testIds) {
+    Map<Long, TestData> testDataMap = new LinkedHashMap<Long, TestData>();
+    List<Long> missing = new ArrayList<Long>();
+    for (Long testId : testIds) {
+      TestData testData = result.findTest(testId);
+      if (testData == null || !testData.wasProcessed()) {
+        testData = getFromCache(project, result, testId);
+      }
+      testDataMap.put(testId, testData);
+      if (testData == null) {
+        missing.add(testId);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      Map<Long, TestData> computed = myTestsAnalyser.getTestData(missing, project, result);
+      for (Map.Entry<Long, TestData> entry : computed.entrySet()) {
+        testDataMap.put(entry.getKey(), entry.getValue());
+        putToCache(project, result, entry.getValue());
+      }
+    }
+    return testDataMap;
+  }
+
+  @Nullable
+  private synchronized TestData getFromCache(@NotNull SProject project, @NotNull TestAnalysisResult result, long testId) {
+    return myCache.get(getKey(project, result, testId));
+  }
+
+  private synchronized void putToCache(@NotNull SProject project, @NotNull TestAnalysisResult result, @NotNull TestData testData) {
+    myCache.put(getKey(project, result, testData.getTestId()), testData);
+  }
+
+  @NotNull
+  private static String getKey(@NotNull SProject project, @NotNull TestAnalysisResult result, long testId) {
+    // Any change of the result (a new analysis, an incremental update) gives a new version,
+    // the entries of the previous one just age out.
+    return project.getProjectId() + ":" + result.getVersion() + ":" + testId;
+  }
+}
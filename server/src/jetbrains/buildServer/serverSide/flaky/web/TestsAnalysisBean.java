@@ -24,6 +24,10 @@ public class TestsAnalysisBean {
   private final SProject myProject;
   private final TestAnalysisResult myTestAnalysisResult;
 
+  // Only the first page of each type is rendered with the tab, the rest is loaded by TestsListController.
+  private final TestsPage myFlakyPage;
+  private final TestsPage mySuspiciousPage;
+  private final TestsPage myAlwaysFailingPage;
   private final Map<Long, TestWebDetails> myDetails;
 
   private final TestAnalysisProgress myProgress;
@@ -40,13 +44,16 @@ public class TestsAnalysisBean {
     myProgress = progress;
     myProject = project;
 
-    if (isInProgress()) {
-      myTestAnalysisResult = TestAnalysisResult.EMPTY_FLAKY_TESTS;
-      myDetails = Collections.emptyMap();
-    } else {
-      myTestAnalysisResult = holder.getTestAnalysisResult(project);
-      myDetails = buildDetails(myTestAnalysisResult, buildServer, projectManager, agentManager);
+    TestAnalysisResult result = holder.getTestAnalysisResult(project);
+    if (isInProgress() && !isPartial(result)) {
+      // The partial result of a running full analysis is shown under its progress.
+      result = TestAnalysisResult.EMPTY_FLAKY_TESTS;
     }
+    myTestAnalysisResult = result;
+    myFlakyPage = createFirstPage(myTestAnalysisResult, Type.FLAKY);
+    mySuspiciousPage = createFirstPage(myTestAnalysisResult, Type.SUSPICIOUS);
+    myAlwaysFailingPage = createFirstPage(myTestAnalysisResult, Type.ALWAYS_FAILING);
+    myDetails = buildDetails(buildServer, projectManager, agentManager, myFlakyPage, mySuspiciousPage);
   }
 
   @NotNull
@@ -63,6 +70,17 @@ public class TestsAnalysisBean {
     return myTestAnalysisResult.getStartDate() != null;
   }
 
+  /**
+   * Returns whether the result is published by a full analysis which is running or has been interrupted.
+   */
+  public boolean isPartialResult() {
+    return isPartial(myTestAnalysisResult);
+  }
+
+  private static boolean isPartial(@NotNull TestAnalysisResult result) {
+    return result.getStartDate() != null && result.getFinishDate() == null;
+  }
+
   public String getTestAnalysisDuration() {
     Date startDate = myTestAnalysisResult.getStartDate();
     Date finishDate = myTestAnalysisResult.getFinishDate();
@@ -124,27 +142,59 @@ public class TestsAnalysisBean {
 
   @NotNull
   public GroupedTestsBean getFlakyTests() {
-    List<STestRun> testRuns = getTestRuns(myTestAnalysisResult.getFlakyTests());
+    List<STestRun> testRuns = getTestRuns(myFlakyPage.getTests());
     return GroupedTestsBean.createForTests(testRuns, null);
   }
 
   @NotNull
   public GroupedTestsBean getSuspiciousTests() {
-    List<STestRun> testRuns = getTestRuns(myTestAnalysisResult.getSuspiciousTests());
+    List<STestRun> testRuns = getTestRuns(mySuspiciousPage.getTests());
     return GroupedTestsBean.createForTests(testRuns, null);
   }
 
   @NotNull
   public GroupedTestsBean getAlwaysFailingTests() {
-    List<STestRun> testRuns = getTestRuns(myTestAnalysisResult.getAlwaysFailingTests());
+    List<STestRun> testRuns = getTestRuns(myAlwaysFailingPage.getTests());
     return GroupedTestsBean.createForTests(testRuns, null);
   }
 
+  @NotNull
+  public TestsPage getFlakyPage() {
+    return myFlakyPage;
+  }
+
+  @NotNull
+  public TestsPage getSuspiciousPage() {
+    return mySuspiciousPage;
+  }
+
+  @NotNull
+  public TestsPage getAlwaysFailingPage() {
+    return myAlwaysFailingPage;
+  }
+
+  public int getPageSize() {
+    return TestsListController.DEFAULT_PAGE_SIZE;
+  }
+
+  /**
+   * Returns the details of the tests on the first pages (the always failing tests have none).
+   */
   @NotNull
   public Map<Long, TestWebDetails> getDetails() {
     return myDetails;
   }
 
+  /**
+   * Returns the build types the tests can be filtered by.
+   */
+  @NotNull
+  public List<SBuildType> getBuildTypes() {
+    List<SBuildType> result = new ArrayList<SBuildType>(myProject.getBuildTypes());
+    Collections.sort(result);
+    return result;
+  }
+
   @NotNull
   private List<STestRun> getTestRuns(@NotNull List<TestData> data) {
     ArrayList<STestRun> result = new ArrayList<STestRun>();
@@ -163,19 +213,20 @@ public class TestsAnalysisBean {
   }
 
   @NotNull
-  private static Map<Long, TestWebDetails> buildDetails(@NotNull TestAnalysisResult testAnalysisResult,
-                                                        @NotNull SBuildServer buildServer,
+  private static TestsPage createFirstPage(@NotNull TestAnalysisResult result, @NotNull Type type) {
+    return TestsPage.create(result, type, null, null, false, 0, TestsListController.DEFAULT_PAGE_SIZE);
+  }
+
+  @NotNull
+  private static Map<Long, TestWebDetails> buildDetails(@NotNull SBuildServer buildServer,
                                                         @NotNull ProjectManager projectManager,
-                                                        @NotNull BuildAgentManager agentManager) {
+                                                        @NotNull BuildAgentManager agentManager,
+                                                        @NotNull TestsPage... pages) {
     HashMap<Long, TestWebDetails> result = new HashMap<Long, TestWebDetails>();
-    for (TestData data : testAnalysisResult.getFlakyTests()) {
-      result.put(data.getTestId(), new TestWebDetails(buildServer, projectManager, agentManager, data));
-    }
-    for (TestData data : testAnalysisResult.getSuspiciousTests()) {
-      result.put(data.getTestId(), new TestWebDetails(buildServer, projectManager, agentManager, data));
-    }
-    for (TestData data : testAnalysisResult.getAlwaysFailingTests()) {
-      result.put(data.getTestId(), new TestWebDetails(buildServer, projectManager, agentManager, data));
+    for (TestsPage page : pages) {
+      for (TestData data : page.getTests()) {
+        result.put(data.getTestId(), new TestWebDetails(buildServer, projectManager, agentManager, data));
+      }
     }
     return result;
   }
@@ -191,6 +242,11 @@ public class TestsAnalysisBean {
     return myProgress;
   }
 
+  @NotNull
+  public ProgressSnapshot getProgressSnapshot() {
+    return myProgress.getSnapshot();
+  }
+
   // Settings
 
   public List<SBuildType> getExcludedBuildTypes() {
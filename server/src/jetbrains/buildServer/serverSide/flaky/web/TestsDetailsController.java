@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import com.intellij.openapi.util.Pair;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.flaky.data.*;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the details of several tests at once as JSON.
+ * <p>
+ * Parameters: {@code projectId} and {@code testIds} (comma-separated).
+ * The response is rendered by {@code BS.Flaky.Details} in analysis.js.
+ * The tests missing in the analysis result are computed by one batched fetch,
+ * see {@link TestDetailsProvider}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestsDetailsController extends BaseController {
+  private static final int MAX_TESTS = 500;
+
+  private final ProjectManager myProjectManager;
+  private final BuildAgentManager myAgentManager;
+  private final TestAnalysisResultHolder myHolder;
+  private final TestDetailsProvider myDetailsProvider;
+
+  public TestsDetailsController(@NotNull SBuildServer server,
+                                @NotNull WebControllerManager webControllerManager,
+                                @NotNull ProjectManager projectManager,
+                                @NotNull BuildAgentManager agentManager,
+                                @NotNull TestAnalysisResultHolder holder,
+                                @NotNull TestDetailsProvider detailsProvider) {
+    super(server);
+    webControllerManager.registerController("/flakyTestsDetails.html", this);
+    myProjectManager = projectManager;
+    myAgentManager = agentManager;
+    myHolder = holder;
+    myDetailsProvider = detailsProvider;
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+    String projectId = request.getParameter("projectId");
+    String testIdsParam = request.getParameter("testIds");
+    if (projectId == null || testIdsParam == null) {
+      return simpleView("Incorrect request: not enough parameters");
+    }
+
+    SProject project = myProjectManager.findProjectById(projectId);
+    if (project == null) {
+      return simpleView("Incorrect request: project not found");
+    }
+
+    List<Long> testIds = new ArrayList<Long>();
+    for (String testId : StringUtil.split(testIdsParam, true, ',')) {
+      try {
+        testIds.add(Long.parseLong(testId));
+      } catch (NumberFormatException e) {
+        return simpleView("Incorrect request: test can't be parsed");
+      }
+    }
+    if (testIds.size() > MAX_TESTS) {
+      return simpleView("Incorrect request: too many tests, at most " + MAX_TESTS + " are allowed");
+    }
+
+    TestAnalysisResult result = myHolder.getTestAnalysisResult(project);
+    Map<Long, TestData> testDataMap = myDetailsProvider.getTestData(project, result, testIds);
+
+    JsonWriter json = new JsonWriter();
+    json.beginArray();
+    for (TestData testData : testDataMap.values()) {
+      if (testData != null) {
+        writeTest(json, testData);
+      }
+    }
+    json.endArray();
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getWriter().write(json.toString());
+    return null;
+  }
+
+  private void writeTest(@NotNull JsonWriter json, @NotNull TestData testData) {
+    TestWebDetails details = new TestWebDetails(myServer, myProjectManager, myAgentManager, testData);
+    Pair<Integer, Integer> stats = details.getStats();
+
+    json.beginObject();
+    json.name("id").value(testData.getTestId());
+    json.name("type").value(testData.getType().name());
+    json.name("runs").value(stats.first);
+    json.name("failures").value(stats.second);
+    json.name("failureRate").value(TestsPage.getFailureRate(testData));
+    json.name("projectExternalId").value(details.getExternalId());
+    writeReason(json, details);
+
+    json.name("buildTypes").beginArray();
+    for (SBuildType buildType : details.getAllBuildTypes()) {
+      FailureRate rate = testData.getBuildTypeFailureRates().get(buildType.getBuildTypeId());
+      json.beginObject();
+      json.name("id").value(buildType.getBuildTypeId());
+      json.name("externalId").value(buildType.getExternalId());
+      json.name("name").value(buildType.getFullName());
+      json.name("runs").value(rate.getTotalRuns());
+      json.name("failures").value(rate.getFailures());
+      json.endObject();
+    }
+    json.endArray();
+
+    json.name("agents").beginArray();
+    for (SBuildAgent agent : details.getAllAgents()) {
+      FailureRate rate = testData.getAgentFailureRates().get(agent.getName());
+      json.beginObject();
+      json.name("id").value(agent.getId());
+      json.name("name").value(agent.getName());
+      json.name("runs").value(rate.getTotalRuns());
+      json.name("failures").value(rate.getFailures());
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+  }
+
+  private static void writeReason(@NotNull JsonWriter json, @NotNull TestWebDetails details) {
+    json.name("reason");
+    if (details.isWithoutChangesReason()) {
+      json.beginObject();
+      json.name("kind").value("buildWithoutChanges");
+      writeBuild(json, "build", details.getBuildWithoutChanges());
+      json.endObject();
+    } else if (details.isBuildsOnSameModificationReason()) {
+      json.beginObject();
+      json.name("kind").value("buildsOnSameModification");
+      writeBuild(json, "failedInBuild", details.getFailedInBuild());
+      writeBuild(json, "successfulInBuild", details.getSuccessfulInBuild());
+      json.endObject();
+    } else if (details.isSuspiciousStatisticsReason()) {
+      Pair<Integer, Integer> statistics = details.getSuspiciousStatistics();
+      json.beginObject();
+      json.name("kind").value("suspiciousStatistics");
+      json.name("seriesTotalLength").value(statistics.first);
+      json.name("seriesNumber").value(statistics.second);
+      json.endObject();
+    } else {
+      json.value((String) null);
+    }
+  }
+
+  private static void writeBuild(@NotNull JsonWriter json, @NotNull String name, @Nullable SBuild build) {
+    json.name(name);
+    if (build == null) {
+      // The build is already removed from the history.
+      json.value((String) null);
+      return;
+    }
+
+    SBuildType buildType = build.getBuildType();
+    json.beginObject();
+    json.name("id").value(build.getBuildId());
+    json.name("number").value(build.getBuildNumber());
+    json.name("buildTypeExternalId").value(buildType != null ? buildType.getExternalId() : null);
+    json.name("buildTypeName").value(build.getFullName());
+    json.endObject();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import com.intellij.openapi.util.Pair;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResult;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResultHolder;
+import jetbrains.buildServer.serverSide.flaky.data.TestData;
+import jetbrains.buildServer.serverSide.flaky.data.Type;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the pages of the classified tests of a project as JSON.
+ * <p>
+ * Parameters: {@code projectId}, {@code type} (flaky, suspicious or always), {@code offset}, {@code limit},
+ * optional {@code buildTypeId} and {@code agent} (the test must have failed there)
+ * and {@code order} (asc or desc by the failure rate, desc by default).
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestsListController extends BaseController {
+  static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int MAX_PAGE_SIZE = 500;
+
+  private final ProjectManager myProjectManager;
+  private final BuildAgentManager myAgentManager;
+  private final STestManager myTestManager;
+  private final TestAnalysisResultHolder myHolder;
+
+  public TestsListController(@NotNull SBuildServer server,
+                             @NotNull WebControllerManager webControllerManager,
+                             @NotNull ProjectManager projectManager,
+                             @NotNull BuildAgentManager agentManager,
+                             @NotNull STestManager testManager,
+                             @NotNull TestAnalysisResultHolder holder) {
+    super(server);
+    webControllerManager.registerController("/flakyTests.html", this);
+    myProjectManager = projectManager;
+    myAgentManager = agentManager;
+    myTestManager = testManager;
+    myHolder = holder;
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+    String projectId = request.getParameter("projectId");
+    Type type = getType(request.getParameter("type"));
+    if (projectId == null || type == null) {
+      return simpleView("Incorrect request: not enough parameters");
+    }
+
+    SProject project = myProjectManager.findProjectById(projectId);
+    if (project == null) {
+      return simpleView("Incorrect request: project not found");
+    }
+
+    TestAnalysisResult result = myHolder.getTestAnalysisResult(project);
+    TestsPage page = TestsPage.create(result, type,
+                                      getStringParam(request, "buildTypeId"),
+                                      getStringParam(request, "agent"),
+                                      "asc".equals(request.getParameter("order")),
+                                      getIntParam(request, "offset", 0),
+                                      Math.min(getIntParam(request, "limit", DEFAULT_PAGE_SIZE), MAX_PAGE_SIZE));
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getWriter().write(toJson(page));
+    return null;
+  }
+
+  @NotNull
+  private String toJson(@NotNull TestsPage page) {
+    JsonWriter json = new JsonWriter();
+    json.beginObject();
+    json.name("total").value(page.getTotal());
+    json.name("offset").value(page.getOffset());
+    json.name("hasMore").value(page.isHasMore());
+    json.name("tests").beginArray();
+    for (TestData testData : page.getTests()) {
+      writeTest(json, testData);
+    }
+    json.endArray();
+    json.endObject();
+    return json.toString();
+  }
+
+  private void writeTest(@NotNull JsonWriter json, @NotNull TestData testData) {
+    TestWebDetails details = new TestWebDetails(myServer, myProjectManager, myAgentManager, testData);
+    //noinspection deprecation
+    STest test = myTestManager.createTest(testData.getTestId(), testData.getProjectId());
+    Pair<Integer, Integer> stats = details.getStats();
+
+    json.beginObject();
+    json.name("id").value(testData.getTestId());
+    json.name("projectExternalId").value(details.getExternalId());
+    json.name("name").value(test.getName().getAsString());
+    json.name("type").value(testData.getType().name());
+    json.name("runs").value(stats.first);
+    json.name("failures").value(stats.second);
+    json.name("failureRate").value(TestsPage.getFailureRate(testData));
+    json.name("onlyInSingleBuildType").value(details.isFailedOnlyInSingleBuildType());
+    json.name("onlyOnSingleAgent").value(details.isFailedOnlyOnSingleAgent());
+    json.name("failedInBuildTypes").beginArray();
+    for (SBuildType buildType : details.getFailedInBuildTypes()) {
+      json.beginObject();
+      json.name("id").value(buildType.getBuildTypeId());
+      json.name("externalId").value(buildType.getExternalId());
+      json.name("name").value(buildType.getFullName());
+      json.endObject();
+    }
+    json.endArray();
+    json.name("failedOnAgents").beginArray();
+    for (SBuildAgent agent : details.getFailedOnAgents()) {
+      json.value(agent.getName());
+    }
+    json.endArray();
+    json.endObject();
+  }
+
+  @Nullable
+  static Type getType(@Nullable String param) {
+    if ("flaky".equals(param)) {
+      return Type.FLAKY;
+    }
+    if ("suspicious".equals(param)) {
+      return Type.SUSPICIOUS;
+    }
+    if ("always".equals(param)) {
+      return Type.ALWAYS_FAILING;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String getStringParam(@NotNull HttpServletRequest request, @NotNull String name) {
+    String param = request.getParameter(name);
+    return param != null && param.length() > 0 ? param : null;
+  }
+
+  private static int getIntParam(@NotNull HttpServletRequest request, @NotNull String name, int defaultValue) {
+    String param = request.getParameter(name);
+    if (param != null) {
+      try {
+        return Integer.parseInt(param);
+      } catch (NumberFormatException e) {
+        // ignore
+      }
+    }
+    return defaultValue;
+  }
+}
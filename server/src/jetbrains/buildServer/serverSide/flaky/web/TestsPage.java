@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.web;
+
+import jetbrains.buildServer.serverSide.flaky.data.FailureRate;
+import jetbrains.buildServer.serverSide.flaky.data.TestAnalysisResult;
+import jetbrains.buildServer.serverSide.flaky.data.TestData;
+import jetbrains.buildServer.serverSide.flaky.data.Type;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single page of the classified tests of one type, optionally filtered
+ * by a build type or an agent the test failed in, sorted by the failure rate.
+ * <p>
+ * Only the page is materialized for the web: the rest of the tests is just counted.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class TestsPage {
+  private final Type myType;
+  private final int myOffset;
+  private final int myTotal;
+  private final List<TestData> myTests;
+
+  private TestsPage(@NotNull Type type, int offset, int total, @NotNull List<TestData> tests) {
+    myType = type;
+    myOffset = offset;
+    myTotal = total;
+    myTests = tests;
+  }
+
+  @NotNull
+  public static TestsPage create(@NotNull TestAnalysisResult result,
+                                 @NotNull Type type,
+                                 @Nullable String buildTypeId,
+                                 @Nullable String agentName,
+                                 boolean ascending,
+                                 int offset,
+                                 int limit) {
+    List<RatedTest> matched = new ArrayList<RatedTest>();
+    for (TestData testData : getTests(result, type)) {
+      if (matches(testData, buildTypeId, agentName)) {
+        matched.add(new RatedTest(testData));
+      }
+    }
+    Collections.sort(matched, ascending ? RatedTest.ASCENDING : Collections.reverseOrder(RatedTest.ASCENDING));
+
+    int from = Math.min(Math.max(offset, 0), matched.size());
+    int to = Math.min(from + Math.max(limit, 0), matched.size());
+    List<TestData> tests = new ArrayList<TestData>(to - from);
+    for (RatedTest ratedTest : matched.subList(from, to)) {
+      tests.add(ratedTest.myTestData);
+    }
+    return new TestsPage(type, from, matched.size(), tests);
+  }
+
+  @NotNull
+  public Type getType() {
+    return myType;
+  }
+
+  public int getOffset() {
+    return myOffset;
+  }
+
+  /**
+   * Returns the number of the tests matching the filter, on all pages.
+   */
+  public int getTotal() {
+    return myTotal;
+  }
+
+  @NotNull
+  public List<TestData> getTests() {
+    return myTests;
+  }
+
+  public boolean isHasMore() {
+    return myOffset + myTests.size() < myTotal;
+  }
+
+  /**
+   * Returns the failure rate of the test across all build types.
+   */
+  public static double getFailureRate(@NotNull TestData testData) {
+    int totalRuns = 0;
+    int failures = 0;
+    for (FailureRate rate : testData.getBuildTypeFailureRates().values()) {
+      totalRuns += rate.getTotalRuns();
+      failures += rate.getFailures();
+    }
+    return totalRuns > 0 ? (1.0 * failures) / totalRuns : 0;
+  }
+
+  @NotNull
+  private static List<TestData> getTests(@NotNull TestAnalysisResult result, @NotNull Type type) {
+    switch (type) {
+      case FLAKY:
+        return result.getFlakyTests();
+      case SUSPICIOUS:
+        return result.getSuspiciousTests();
+      case ALWAYS_FAILING:
+        return result.getAlwaysFailingTests();
+      default:
+        return Collections.emptyList();
+    }
+  }
+
+  private static boolean matches(@NotNull TestData testData, @Nullable String buildTypeId, @Nullable String agentName) {
+    if (buildTypeId != null) {
+      FailureRate rate = testData.getBuildTypeFailureRates().get(buildTypeId);
+      if (rate == null || !rate.hasFailures()) {
+        return false;
+      }
+    }
+    if (agentName != null) {
+      FailureRate rate = testData.getAgentFailureRates().get(agentName);
+      if (rate == null || !rate.hasFailures()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class RatedTest {
+    private static final Comparator<RatedTest> ASCENDING = new Comparator<RatedTest>() {
+      public int compare(RatedTest test1, RatedTest test2) {
+        int result = Double.compare(test1.myRate, test2.myRate);
+        return result != 0 ? result : compareIds(test1.myTestData.getTestId(), test2.myTestData.getTestId());
+      }
+    };
+
+    private final TestData myTestData;
+    private final double myRate;
+
+    private RatedTest(@NotNull TestData testData) {
+      myTestData = testData;
+      myRate = getFailureRate(testData);
+    }
+
+    private static int compareIds(long id1, long id2) {
+      return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky;
+
+import jetbrains.buildServer.serverSide.db.DBAction;
+import jetbrains.buildServer.serverSide.db.DBFunctions;
+import jetbrains.buildServer.serverSide.db.DatabaseType;
+import jetbrains.buildServer.serverSide.db.SQLRunnerEx;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An embedded in-memory HSQLDB with the columns of {@code test_info}, {@code build_state}, {@code history}
+ * and {@code running} read by the analyser, and the {@link SQLRunnerEx} over it.
+ * Each thread gets its own connection, as from a pool.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class EmbeddedDatabase {
+  private static final AtomicInteger ourDatabases = new AtomicInteger();
+
+  private final String myUrl;
+  private final ThreadLocal<Connection> myConnections = new ThreadLocal<Connection>();
+  private final List<Connection> myAllConnections = Collections.synchronizedList(new ArrayList<Connection>());
+  private final SQLRunnerEx mySQLRunner;
+
+  /**
+   * Creates the tables in a new database, the name is made unique.
+   */
+  public EmbeddedDatabase(@NotNull String name) throws SQLException {
+    myUrl = "jdbc:hsqldb:mem:" + name + ourDatabases.incrementAndGet();
+    mySQLRunner = createSQLRunner();
+    execute("create memory table history (build_id bigint not null primary key, " +
+            "build_type_id varchar(80) not null, agent_name varchar(80) not null, " +
+            "build_start_time_server bigint not null)");
+    execute("create memory table build_state (id bigint not null primary key, build_id bigint, " +
+            "build_type_id varchar(80) not null, modification_id bigint)");
+    execute("create memory table test_info (build_id bigint not null, test_id int not null, " +
+            "test_name_id bigint not null, status int not null, primary key (build_id, test_id))");
+    execute("create memory table running (build_id bigint not null primary key)");
+  }
+
+  @NotNull
+  public SQLRunnerEx getSQLRunner() {
+    return mySQLRunner;
+  }
+
+  /**
+   * Returns the connection of the current thread.
+   */
+  @NotNull
+  public Connection getConnection() throws SQLException {
+    Connection connection = myConnections.get();
+    if (connection == null) {
+      try {
+        Class.forName("org.hsqldb.jdbcDriver");
+      } catch (ClassNotFoundException e) {
+        throw new SQLException("HSQLDB driver not found: " + e.getMessage());
+      }
+      connection = DriverManager.getConnection(myUrl, "sa", "");
+      myConnections.set(connection);
+      myAllConnections.add(connection);
+    }
+    return connection;
+  }
+
+  public void execute(@NotNull String sql) throws SQLException {
+    Statement statement = getConnection().createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Drops the database and closes the connections of all the threads.
+   */
+  public void close() throws SQLException {
+    execute("shutdown");
+    for (Connection connection : myAllConnections) {
+      connection.close();
+    }
+  }
+
+  @NotNull
+  private SQLRunnerEx createSQLRunner() {
+    final DBFunctions dbFunctions = Stubs.create(DBFunctions.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+        if (method.getName().equals("getConnection")) {
+          return getConnection();
+        }
+        if (method.getName().equals("getDatabaseType")) {
+          return DatabaseType.HSQLDB;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+    return Stubs.create(SQLRunnerEx.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("withDB")) {
+          return ((DBAction<?>) args[0]).run(dbFunctions);
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky;
+
+import jetbrains.buildServer.serverSide.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates the stubs of the server API for the tests and the benchmarks, which run outside the server.
+ * A stub answers the methods of its handler, the others throw {@link UnsupportedOperationException}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class Stubs {
+  private Stubs() {
+  }
+
+  /**
+   * Creates a stub of the interface, with no methods if the handler is null.
+   */
+  @SuppressWarnings("unchecked")
+  @NotNull
+  public static <T> T create(@NotNull Class<T> clazz, @Nullable InvocationHandler handler) {
+    if (handler == null) {
+      handler = new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          throw new UnsupportedOperationException(method.getName());
+        }
+      };
+    }
+    return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, handler);
+  }
+
+  /**
+   * Creates the server which finds any build, every 7th build has no changes.
+   */
+  @NotNull
+  public static SBuildServer createBuildServer() {
+    return create(SBuildServer.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("findBuildInstanceById")) {
+          final long buildId = (Long) args[0];
+          return create(SBuild.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if (method.getName().equals("getChanges")) {
+                return buildId % 7 == 0 ? Collections.emptyList() : Collections.singletonList(null);
+              }
+              throw new UnsupportedOperationException(method.getName());
+            }
+          });
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @NotNull
+  public static SProject createProject(@NotNull final String projectId, @NotNull List<String> buildTypeIds) {
+    final List<SBuildType> buildTypes = new ArrayList<SBuildType>();
+    for (final String buildTypeId : buildTypeIds) {
+      buildTypes.add(create(SBuildType.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.getName().equals("getBuildTypeId")) {
+            return buildTypeId;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      }));
+    }
+    return create(SProject.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getProjectId")) {
+          return projectId;
+        }
+        if (method.getName().equals("getBuildTypes")) {
+          return buildTypes;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  /**
+   * Creates the test manager which creates the tests of the given project.
+   */
+  @NotNull
+  public static STestManager createTestManager(@NotNull final String projectId) {
+    return create(STestManager.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("createTest")) {
+          return createTest((Long) args[0], projectId);
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @NotNull
+  public static STest createTest(final long testId, @NotNull final String projectId) {
+    return create(STest.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getTestNameId")) {
+          return testId;
+        }
+        if (method.getName().equals("getProjectId")) {
+          return projectId;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.flaky.EmbeddedDatabase;
+import jetbrains.buildServer.serverSide.flaky.data.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.*;
+
+/**
+ * Interrupts the full-history analysis on an embedded in-memory HSQLDB and resumes it from the checkpoint.
+ * <p>
+ * Each of the 300 tests runs in every build of one of the 3 build types, 5 of 6 tests fail in different ways,
+ * so the scan hands the tests over to the workers in several chunks.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class AnalysisCheckpointTest {
+  private static final String FETCH_MODE_PROPERTY = "teamcity.flakyTests.fetchMode";
+  private static final int TESTS = 300;
+  private static final int BUILDS = 60;
+  private static final int BUILD_TYPES = 3;
+  private static final int INTERRUPT_AT = 150;
+
+  private EmbeddedDatabase myDatabase;
+  private EmbeddedAnalyser myAnalyser;
+  private EmbeddedAnalyser myReferenceAnalyser;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDatabase = new EmbeddedDatabase("flakyTestsCheckpoint");
+    addHistory();
+    myAnalyser = new EmbeddedAnalyser(myDatabase, getBuildTypeIds());
+    myReferenceAnalyser = new EmbeddedAnalyser(myDatabase, getBuildTypeIds());
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    System.clearProperty(FETCH_MODE_PROPERTY);
+    myAnalyser.close();
+    myReferenceAnalyser.close();
+    myDatabase.close();
+  }
+
+  public void testResumeBatched() throws Exception {
+    assertResumed("batched", null);
+  }
+
+  public void testResumeStreaming() throws Exception {
+    assertResumed("streaming", null);
+  }
+
+  public void testResumeStreamingOnWorkers() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertResumed("streaming", executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testInterruptedAnalysisKeepsLastResult() throws Exception {
+    System.setProperty(FETCH_MODE_PROPERTY, "batched");
+    TestAnalysisResult last = myAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS);
+    assertNotNull(last.getFinishDate());
+
+    myAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS, new InterruptingProgress(INTERRUPT_AT), null, 1);
+    assertNotNull(myAnalyser.getCheckpointStore().load(EmbeddedAnalyser.PROJECT_ID));
+    TestAnalysisResult result = myAnalyser.getResultHolder().getTestAnalysisResult(myAnalyser.getProject());
+    assertEquals(result.getStartDate(), last.getStartDate());
+    assertEquals(describe(result), describe(last));
+  }
+
+  public void testCheckpointOfOtherSettingsDiscarded() throws Exception {
+    TestAnalysisSettings settings = new TestAnalysisSettings(Collections.<String>emptyList(),
+                                                             TestAnalysisSettings.DEFAULT_PERIOD_DAYS,
+                                                             true, false,
+                                                             StatisticAnalysisAlgorithm.DEFAULT_MIN_SERIES_NUMBER + 1,
+                                                             StatisticAnalysisAlgorithm.DEFAULT_AVERAGE_SERIES_LENGTH);
+    assertDiscarded(settings);
+  }
+
+  public void testCheckpointOfOtherBuildTypesDiscarded() throws Exception {
+    TestAnalysisSettings settings = new TestAnalysisSettings(Collections.singletonList("bt2"),
+                                                             TestAnalysisSettings.DEFAULT_PERIOD_DAYS,
+                                                             true, false,
+                                                             StatisticAnalysisAlgorithm.DEFAULT_MIN_SERIES_NUMBER,
+                                                             StatisticAnalysisAlgorithm.DEFAULT_AVERAGE_SERIES_LENGTH);
+    assertDiscarded(settings);
+  }
+
+  private void assertResumed(@NotNull String fetchMode, @Nullable ExecutorService executor) throws Exception {
+    System.setProperty(FETCH_MODE_PROPERTY, fetchMode);
+    int workers = executor != null ? 4 : 1;
+    TestAnalysisResult reference = myReferenceAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS,
+                                                               myReferenceAnalyser.lockProgress(), executor, workers);
+
+    // Interrupted: the checkpoint is saved, nothing is published.
+    myAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS, new InterruptingProgress(INTERRUPT_AT), executor, workers);
+    AnalysisCheckpoint checkpoint = myAnalyser.getCheckpointStore().load(EmbeddedAnalyser.PROJECT_ID);
+    assertNotNull(checkpoint);
+    assertTrue(checkpoint.getProcessedSize() >= INTERRUPT_AT && checkpoint.getProcessedSize() < reference.getTotalTests(),
+               "Processed " + checkpoint.getProcessedSize() + " of " + reference.getTotalTests());
+    if (!fetchMode.equals("batched") && executor == null) {
+      assertNotNull(checkpoint.getScanPosition(), "The first chunk of the scan is complete");
+    }
+    assertNull(myAnalyser.getResultHolder().getResultInfo(myAnalyser.getProject()));
+
+    // Resumed: the processed tests are taken from the checkpoint.
+    Thread.sleep(10);
+    TestAnalysisResult result = myAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS,
+                                                   myAnalyser.lockProgress(), executor, workers);
+    assertEquals(describe(result), describe(reference));
+    assertEquals(result.getTotalTests(), reference.getTotalTests());
+    assertEquals(result.getStartDate(), checkpoint.getStartDate(), "The start of the interrupted analysis");
+    assertNotNull(result.getFinishDate());
+    assertNotNull(result.getStatistics());
+    assertNotNull(reference.getStatistics());
+    assertTrue(result.getStatistics().getTestsFetched() < reference.getStatistics().getTestsFetched(),
+               "The processed tests aren't fetched again");
+    assertNull(myAnalyser.getCheckpointStore().load(EmbeddedAnalyser.PROJECT_ID));
+  }
+
+  private void assertDiscarded(@NotNull TestAnalysisSettings settings) throws Exception {
+    System.setProperty(FETCH_MODE_PROPERTY, "batched");
+    TestAnalysisResult reference = myReferenceAnalyser.analyse(settings);
+
+    myAnalyser.analyse(TestAnalysisSettings.DEFAULT_SETTINGS, new InterruptingProgress(INTERRUPT_AT), null, 1);
+    AnalysisCheckpoint checkpoint = myAnalyser.getCheckpointStore().load(EmbeddedAnalyser.PROJECT_ID);
+    assertNotNull(checkpoint);
+
+    Thread.sleep(10);
+    TestAnalysisResult result = myAnalyser.analyse(settings);
+    assertEquals(describe(result), describe(reference));
+    assertEquals(result.getTotalTests(), reference.getTotalTests());
+    assertTrue(result.getStartDate().after(checkpoint.getStartDate()), "A new analysis");
+    assertNotNull(result.getStatistics());
+    assertNotNull(reference.getStatistics());
+    assertEquals(result.getStatistics().getTestsFetched(), reference.getStatistics().getTestsFetched(),
+                 "All the tests are fetched");
+    assertNull(myAnalyser.getCheckpointStore().load(EmbeddedAnalyser.PROJECT_ID));
+  }
+
+  private void addHistory() throws SQLException {
+    Connection connection = myDatabase.getConnection();
+    connection.setAutoCommit(false);
+    PreparedStatement history = connection.prepareStatement("insert into history values (?, ?, ?, ?)");
+    PreparedStatement buildState = connection.prepareStatement("insert into build_state values (?, ?, ?, ?)");
+    PreparedStatement testInfo = connection.prepareStatement("insert into test_info values (?, ?, ?, ?)");
+    try {
+      long modificationId = 0;
+      for (int build = 1; build <= BUILDS; build++) {
+        // Every 3rd build is a re-run on the same change.
+        if (build % 3 != 0) {
+          ++modificationId;
+        }
+        int buildType = build % BUILD_TYPES;
+        int agent = build / BUILD_TYPES % 2;
+        history.setLong(1, build);
+        history.setString(2, "bt" + buildType);
+        history.setString(3, "agent" + agent);
+        history.setLong(4, build * 1000L);
+        history.addBatch();
+        buildState.setLong(1, build);
+        buildState.setLong(2, build);
+        buildState.setString(3, "bt" + buildType);
+        buildState.setLong(4, modificationId);
+        buildState.addBatch();
+
+        for (int test = buildType; test < TESTS; test += BUILD_TYPES) {
+          boolean failure;
+          switch (test % 6) {
+            case 1:  failure = (build * 31 + test) % 5 == 0; break;    // flaky
+            case 2:  failure = true; break;                            // always failing
+            case 3:  failure = agent == 0; break;                      // failing on one agent
+            case 4:  failure = build >= 20 && build < 35; break;       // broken by a change
+            case 5:  failure = (build + test) % 7 == 0; break;         // rarely flaky
+            default: failure = false;
+          }
+          testInfo.setLong(1, build);
+          testInfo.setInt(2, test);
+          testInfo.setLong(3, test);
+          testInfo.setInt(4, failure ? Status.FAILURE.getPriority() : Status.NORMAL.getPriority());
+          testInfo.addBatch();
+        }
+      }
+      history.executeBatch();
+      buildState.executeBatch();
+      testInfo.executeBatch();
+      connection.commit();
+    } finally {
+      connection.setAutoCommit(true);
+      history.close();
+      buildState.close();
+      testInfo.close();
+    }
+  }
+
+  /**
+   * Describes the classified tests, the resumed analysis takes some of them from the checkpoint
+   * in another order. The serialized form compares the reasons and the failure rates as well.
+   */
+  @NotNull
+  private static List<String> describe(@NotNull TestAnalysisResult result) throws IOException {
+    List<TestData> tests = new ArrayList<TestData>();
+    tests.addAll(result.getFlakyTests());
+    tests.addAll(result.getSuspiciousTests());
+    tests.addAll(result.getAlwaysFailingTests());
+    List<String> descriptions = new ArrayList<String>();
+    for (TestData test : tests) {
+      Reason reason = test.getReason();
+      descriptions.add(test.getTestId() + " " + test.getType() +
+                       " " + (reason != null ? reason.getClass().getSimpleName() : null) +
+                       " from " + test.getFromBuildId() +
+                       ", build types " + new TreeSet<String>(test.getBuildTypeFailureRates().keySet()) +
+                       ", agents " + new TreeSet<String>(test.getAgentFailureRates().keySet()) +
+                       ", data " + Arrays.hashCode(serialize(test)));
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+  @NotNull
+  private static byte[] serialize(@NotNull TestData test) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    try {
+      out.writeObject(test);
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  @NotNull
+  private static List<String> getBuildTypeIds() {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < BUILD_TYPES; i++) {
+      result.add("bt" + i);
+    }
+    return result;
+  }
+
+  /**
+   * Cancels the analysis when the given number of tests is done, as the user or the server shutdown does.
+   */
+  private static class InterruptingProgress extends TestAnalysisProgress {
+    private final int myInterruptAt;
+
+    private InterruptingProgress(int interruptAt) {
+      myInterruptAt = interruptAt;
+      getLock().set(true);
+    }
+
+    @Override
+    public void incDoneSize() {
+      super.incDoneSize();
+      if (getDoneSize() == myInterruptAt) {
+        cancel();
+      }
+    }
+  }
+}
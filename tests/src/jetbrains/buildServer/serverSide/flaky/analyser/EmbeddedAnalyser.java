@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.flaky.EmbeddedDatabase;
+import jetbrains.buildServer.serverSide.flaky.Stubs;
+import jetbrains.buildServer.serverSide.flaky.data.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link TestsAnalyser} of the tests and the benchmarks over an {@link EmbeddedDatabase},
+ * with the results, the states and the checkpoints stored in a temporary directory.
+ * The analysed project has the given build types, its tests are created by {@link Stubs#createTestManager}.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class EmbeddedAnalyser {
+  public static final String PROJECT_ID = "project1";
+
+  private static final AtomicInteger ourCaches = new AtomicInteger();
+
+  // The MBean is registered once per JVM.
+  private static final AnalysisStatisticsMonitor ourStatisticsMonitor =
+    new AnalysisStatisticsMonitor(EventDispatcher.create(BuildServerListener.class));
+
+  private final File myDirectory;
+  private final List<String> myCacheNames = new ArrayList<String>();
+  private final TestRunsSummary myRunsSummary;
+  private final TestAnalysisProgressManager myProgressManager = new TestAnalysisProgressManager();
+  private final TestAnalysisResultHolder myResultHolder;
+  private final AnalysisCheckpointStore myCheckpointStore;
+  private final TestsAnalyser myAnalyser;
+  private final SProject myProject;
+
+  public EmbeddedAnalyser(@NotNull EmbeddedDatabase database, @NotNull List<String> buildTypeIds) throws IOException {
+    myDirectory = FileUtil.createTempDirectory("flaky-analyser", "");
+    DBAccessLimiter dbAccessLimiter = new DBAccessLimiter();
+    myRunsSummary = new TestRunsSummary(EventDispatcher.create(BuildServerListener.class),
+                                        database.getSQLRunner(), dbAccessLimiter);
+    myResultHolder = ResultHolders.create(createCache("tests-analysis"), new File(myDirectory, "results"));
+    myCheckpointStore = new AnalysisCheckpointStore(new File(myDirectory, "checkpoints"));
+    myAnalyser = new TestsAnalyser(Stubs.createTestManager(PROJECT_ID),
+                                   database.getSQLRunner(),
+                                   new AlgorithmsHolder(Stubs.createBuildServer()),
+                                   myProgressManager,
+                                   myResultHolder,
+                                   new TestHistoryStateHolder(createCache("tests-analysis-history")),
+                                   dbAccessLimiter,
+                                   myCheckpointStore,
+                                   ourStatisticsMonitor,
+                                   myRunsSummary);
+    myProject = Stubs.createProject(PROJECT_ID, buildTypeIds);
+  }
+
+  @NotNull
+  public TestsAnalyser getAnalyser() {
+    return myAnalyser;
+  }
+
+  @NotNull
+  public SProject getProject() {
+    return myProject;
+  }
+
+  @NotNull
+  public TestRunsSummary getRunsSummary() {
+    return myRunsSummary;
+  }
+
+  @NotNull
+  public TestAnalysisResultHolder getResultHolder() {
+    return myResultHolder;
+  }
+
+  @NotNull
+  public AnalysisCheckpointStore getCheckpointStore() {
+    return myCheckpointStore;
+  }
+
+  /**
+   * Locks the progress of the project for a new analysis, see {@link #analyse(TestAnalysisSettings, TestAnalysisProgress)}.
+   */
+  @NotNull
+  public TestAnalysisProgress lockProgress() {
+    TestAnalysisProgress progress = myProgressManager.tryLock(PROJECT_ID);
+    if (progress == null) {
+      throw new IllegalStateException("The project is being analysed");
+    }
+    return progress;
+  }
+
+  /**
+   * Analyses the project on the current thread and returns the published result.
+   */
+  @NotNull
+  public TestAnalysisResult analyse(@NotNull TestAnalysisSettings settings) {
+    return analyse(settings, lockProgress());
+  }
+
+  @NotNull
+  public TestAnalysisResult analyse(@NotNull TestAnalysisSettings settings, @NotNull TestAnalysisProgress progress) {
+    return analyse(settings, progress, null, 1);
+  }
+
+  /**
+   * Analyses the project with the given workers and returns the published result.
+   */
+  @NotNull
+  public TestAnalysisResult analyse(@NotNull TestAnalysisSettings settings,
+                                    @NotNull TestAnalysisProgress progress,
+                                    @Nullable ExecutorService workersExecutor,
+                                    int workers) {
+    myAnalyser.analyseTestsInProject(myProject, settings, progress, workersExecutor, workers);
+    return myResultHolder.getTestAnalysisResult(myProject);
+  }
+
+  /**
+   * Stops the summary and deletes the stored data, the database is left open.
+   */
+  public void close() {
+    myRunsSummary.serverShutdown();
+    for (String cacheName : myCacheNames) {
+      CacheManager.create().removeCache(cacheName);
+    }
+    FileUtil.delete(myDirectory);
+  }
+
+  @NotNull
+  private Cache createCache(@NotNull String name) {
+    Cache cache = new Cache(name + "-" + ourCaches.incrementAndGet(), 10, false, true, 0, 0);
+    CacheManager.create().addCache(cache);
+    myCacheNames.add(cache.getName());
+    return cache;
+  }
+}
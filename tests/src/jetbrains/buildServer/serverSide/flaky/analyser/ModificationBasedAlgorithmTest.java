@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.STest;
+import jetbrains.buildServer.serverSide.flaky.Stubs;
+import jetbrains.buildServer.serverSide.flaky.data.Reason;
+import jetbrains.buildServer.serverSide.flaky.data.Type;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares {@link ModificationBasedAlgorithm} with the original quadratic implementation
+ * on a synthetic corpus of test histories.
+ * <p>
+ * The results must be the same, except for the tests in which the original hash
+ * of (build type, modification) collides.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class ModificationBasedAlgorithmTest {
+  private static final int TESTS = 5000;
+  private static final int MAX_RUNS = 3000;
+
+  public void testSameAsOriginalImplementation() {
+    SBuildServer buildServer = Stubs.createBuildServer();
+    STest test = Stubs.create(STest.class, null);
+    ModificationBasedAlgorithm algorithm = new ModificationBasedAlgorithm(new BuildChangesOracle(buildServer));
+    LegacyAlgorithm legacyAlgorithm = new LegacyAlgorithm(buildServer);
+    RunBuffer runs = new RunBuffer(new NameDictionary(), new NameDictionary());
+    Random random = new Random(2013);
+
+    int flaky = 0;
+    List<String> mismatches = new ArrayList<String>();
+    for (int i = 0; i < TESTS; i++) {
+      generate(i, random, runs);
+      CheckResult result = algorithm.checkTest(test, runs);
+      CheckResult legacyResult = legacyAlgorithm.checkTest(test, runs);
+
+      if (result != null) {
+        ++flaky;
+      }
+      if (!isSame(result, legacyResult) && !hasHashCollision(runs)) {
+        mismatches.add("test #" + i + ": " + describe(result) + " vs " + describe(legacyResult));
+      }
+    }
+
+    assertEquals(mismatches, Collections.<String>emptyList());
+    assertTrue(flaky > 0, "The corpus must have flaky tests");
+  }
+
+  private static void generate(int seed, @NotNull Random random, @NotNull RunBuffer runs) {
+    int size = 2 + random.nextInt(random.nextInt(10) == 0 ? MAX_RUNS : 100);
+    int buildTypes = 1 + random.nextInt(30);
+    int flakiness = random.nextBoolean() ? 0 : 1 + random.nextInt(1000);   // per mille, 0 for stable tests
+    boolean broken = false;
+
+    runs.reset(seed);
+    long modificationId = random.nextInt(100000);
+    long buildId = seed * 10000L;
+    for (int i = 0; i < size; i++) {
+      if (random.nextInt(3) == 0) {
+        modificationId += 1 + random.nextInt(20);
+        if (random.nextInt(20) == 0) {
+          broken = !broken;
+        }
+      }
+      buildId += 1 + random.nextInt(5);
+      boolean failure = broken || random.nextInt(1000) < flakiness;
+      int status = failure ? Status.FAILURE.getPriority() : Status.NORMAL.getPriority();
+      runs.add(buildId, status, "bt" + random.nextInt(buildTypes), modificationId,
+               "agent" + random.nextInt(50), buildId * 1000);
+    }
+  }
+
+  private static boolean isSame(@Nullable CheckResult result1, @Nullable CheckResult result2) {
+    return describe(result1).equals(describe(result2));
+  }
+
+  @NotNull
+  private static String describe(@Nullable CheckResult result) {
+    if (result == null) {
+      return "null";
+    }
+    Reason reason = result.getReason();
+    if (reason instanceof BuildsOnSameModificationReason) {
+      BuildsOnSameModificationReason sameModification = (BuildsOnSameModificationReason) reason;
+      return result.getType() + ": failed in " + sameModification.getFailedInBuildId() +
+             ", successful in " + sameModification.getSuccessfulInBuild();
+    }
+    if (reason instanceof BuildWithoutChangesReason) {
+      return result.getType() + ": without changes " + ((BuildWithoutChangesReason) reason).getBuildId();
+    }
+    return String.valueOf(result.getType());
+  }
+
+  private static boolean hasHashCollision(@NotNull RunBuffer runs) {
+    Map<Long, String> keys = new HashMap<Long, String>();
+    for (int i = 0; i < runs.size(); i++) {
+      String key = runs.getBuildTypeId(i) + ":" + runs.getModificationId(i);
+      String previous = keys.put(LegacyAlgorithm.getHash(runs, i), key);
+      if (previous != null && !previous.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The original implementation of {@link ModificationBasedAlgorithm}.
+   */
+  private static class LegacyAlgorithm implements CheckAlgorithm {
+    private final SBuildServer myBuildServer;
+    private final Map<Long, Integer> myStatusMap = new HashMap<Long, Integer>();
+
+    public LegacyAlgorithm(@NotNull SBuildServer buildServer) {
+      myBuildServer = buildServer;
+    }
+
+    @Nullable
+    public CheckResult checkTest(@NotNull STest test, @NotNull RunBuffer runs) {
+      CheckResult checkResult = tryToFindInOneBuildType(runs);
+      if (checkResult == null) {
+        checkResult = tryToFindInSeveralBuildTypes(runs);
+      }
+      return checkResult;
+    }
+
+    @Nullable
+    private CheckResult tryToFindInSeveralBuildTypes(@NotNull RunBuffer runs) {
+      myStatusMap.clear();
+      for (int i = 0; i < runs.size(); i++) {
+        long modificationId = runs.getModificationId(i);
+        int currentStatus = runs.getStatus(i);
+        Integer status = myStatusMap.get(modificationId);
+        if (status != null && status != currentStatus) {
+          int matched = findRunWith(modificationId, status, -1, runs);
+          if (matched >= 0) {
+            return new CheckResult(Type.FLAKY, new BuildsOnSameModificationReason(status, runs.getBuildId(matched),
+                                                                                  currentStatus, runs.getBuildId(i)));
+          }
+        }
+        if (status == null) {
+          myStatusMap.put(modificationId, currentStatus);
+        }
+      }
+      return null;
+    }
+
+    @Nullable
+    private CheckResult tryToFindInOneBuildType(@NotNull RunBuffer runs) {
+      myStatusMap.clear();
+      for (int i = 0; i < runs.size(); i++) {
+        long hash = getHash(runs, i);
+        int currentStatus = runs.getStatus(i);
+        Integer status = myStatusMap.get(hash);
+        if (status != null && status != currentStatus) {
+          Reason reason = null;
+          long buildId = getMaxBuildInListWithHash(runs, hash);
+          if (Status.getStatus(currentStatus).isFailed() && isBuildWithoutChanges(buildId)) {
+            reason = new BuildWithoutChangesReason(buildId);
+          } else {
+            int matched = findRunWith(runs.getModificationId(i), status, runs.getBuildType(i), runs);
+            if (matched >= 0) {
+              reason = new BuildsOnSameModificationReason(status, runs.getBuildId(matched),
+                                                          currentStatus, runs.getBuildId(i));
+            }
+          }
+          if (reason != null) {
+            return new CheckResult(Type.FLAKY, reason);
+          }
+        }
+        if (status == null) {
+          myStatusMap.put(hash, currentStatus);
+        }
+      }
+      return null;
+    }
+
+    static long getHash(@NotNull RunBuffer runs, int index) {
+      return runs.getBuildTypeId(index).hashCode() * 17L + runs.getModificationId(index) * 7L;
+    }
+
+    private static long getMaxBuildInListWithHash(@NotNull RunBuffer runs, long hash) {
+      long maxBuildId = 0;
+      for (int i = 0; i < runs.size(); i++) {
+        long buildId = runs.getBuildId(i);
+        if (buildId > maxBuildId && hash == getHash(runs, i)) {
+          maxBuildId = buildId;
+        }
+      }
+      return maxBuildId;
+    }
+
+    private boolean isBuildWithoutChanges(long buildId) {
+      SBuild build = myBuildServer.findBuildInstanceById(buildId);
+      return build != null && build.getChanges(null, false).isEmpty();
+    }
+
+    private static int findRunWith(long modificationId, int status, int buildType, @NotNull RunBuffer runs) {
+      for (int i = 0; i < runs.size(); i++) {
+        if (runs.getModificationId(i) == modificationId &&
+            runs.getStatus(i) == status &&
+            (buildType == -1 || runs.getBuildType(i) == buildType)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class RunBufferTest {
+  private static final int FAILURE = Status.FAILURE.getPriority();
+  private static final int NORMAL = Status.NORMAL.getPriority();
+
+  private RunBuffer myBuffer;
+
+  @BeforeMethod
+  public void setUp() {
+    myBuffer = new RunBuffer(new NameDictionary(), new NameDictionary());
+    myBuffer.reset(1);
+  }
+
+  public void testRunsAndGroups() {
+    myBuffer.add(10, FAILURE, "bt1", 100, "agent1", 10000);
+    myBuffer.addGroup(11, 15, 3, NORMAL, myBuffer.getBuildTypeDictionary().intern("bt2"), 101,
+                      myBuffer.getAgentDictionary().intern("agent2"), 15000);
+
+    assertEquals(myBuffer.size(), 2);
+    assertEquals(myBuffer.getRunsNumber(), 4);
+
+    assertEquals(myBuffer.getBuildId(0), 10);
+    assertEquals(myBuffer.getLastBuildId(0), 10);
+    assertEquals(myBuffer.getRunCount(0), 1);
+    assertTrue(myBuffer.isFailed(0));
+    assertEquals(myBuffer.getBuildTypeId(0), "bt1");
+    assertEquals(myBuffer.getAgentName(0), "agent1");
+
+    assertEquals(myBuffer.getBuildId(1), 11);
+    assertEquals(myBuffer.getLastBuildId(1), 15);
+    assertEquals(myBuffer.getRunCount(1), 3);
+    assertFalse(myBuffer.isFailed(1));
+    assertEquals(myBuffer.getBuildTypeId(1), "bt2");
+    assertEquals(myBuffer.getAgentName(1), "agent2");
+    assertEquals(myBuffer.getBuildStartTime(1), 15000);
+  }
+
+  public void testReset() {
+    myBuffer.add(10, FAILURE, "bt1", 100, "agent1", 10000);
+    myBuffer.reset(2);
+    assertEquals(myBuffer.getTestId(), 2);
+    assertEquals(myBuffer.size(), 0);
+    assertEquals(myBuffer.getRunsNumber(), 0);
+
+    // The dictionaries are shared by the tests.
+    myBuffer.add(11, NORMAL, "bt1", 100, "agent1", 11000);
+    assertEquals(myBuffer.getBuildType(0), 0);
+  }
+
+  public void testSortByModificationIsStable() {
+    long[] modificationIds = {3, 1, 2, 1, 3, 2};
+    for (int i = 0; i < modificationIds.length; i++) {
+      myBuffer.add(i + 1, i % 2 == 0 ? FAILURE : NORMAL, "bt" + i, modificationIds[i], "agent" + i, (i + 1) * 1000);
+    }
+
+    myBuffer.sortByModification();
+    assertEquals(getBuildIds(), Arrays.asList(2L, 4L, 3L, 6L, 1L, 5L));
+    for (int i = 0; i < myBuffer.size(); i++) {
+      // All the columns are moved with the build id.
+      int original = (int) myBuffer.getBuildId(i) - 1;
+      assertEquals(myBuffer.getModificationId(i), modificationIds[original]);
+      assertEquals(myBuffer.getBuildTypeId(i), "bt" + original);
+      assertEquals(myBuffer.getAgentName(i), "agent" + original);
+      assertEquals(myBuffer.getStatus(i), original % 2 == 0 ? FAILURE : NORMAL);
+      assertEquals(myBuffer.getBuildStartTime(i), (original + 1) * 1000);
+    }
+  }
+
+  public void testSortOfSortedRuns() {
+    for (int i = 0; i < 5; i++) {
+      myBuffer.add(i + 1, NORMAL, "bt1", 100 + i / 2, "agent1", 0);
+    }
+    myBuffer.sortByModification();
+    assertEquals(getBuildIds(), Arrays.asList(1L, 2L, 3L, 4L, 5L));
+  }
+
+  public void testSortMatchesStableSort() {
+    Random random = new Random(2013);
+    for (int round = 0; round < 20; round++) {
+      // Beyond the initial capacity in the later rounds.
+      int size = 1 + random.nextInt(100 + round * 200);
+      myBuffer.reset(round);
+      List<long[]> expected = new ArrayList<long[]>();
+      for (int i = 0; i < size; i++) {
+        long modificationId = random.nextInt(size / 4 + 1);
+        int runs = 1 + random.nextInt(3);
+        int buildType = random.nextInt(5);
+        int agent = random.nextInt(5);
+        myBuffer.addGroup(i, i + runs - 1, runs, NORMAL, buildType, modificationId, agent, i * 10L);
+        expected.add(new long[]{i, i + runs - 1, runs, buildType, modificationId, agent, i * 10L});
+      }
+
+      Collections.sort(expected, new Comparator<long[]>() {
+        public int compare(long[] run1, long[] run2) {
+          return run1[4] < run2[4] ? -1 : run1[4] == run2[4] ? 0 : 1;
+        }
+      });
+      myBuffer.sortByModification();
+
+      assertEquals(myBuffer.size(), size);
+      for (int i = 0; i < size; i++) {
+        long[] run = expected.get(i);
+        assertEquals(myBuffer.getBuildId(i), run[0]);
+        assertEquals(myBuffer.getLastBuildId(i), run[1]);
+        assertEquals(myBuffer.getRunCount(i), run[2]);
+        assertEquals(myBuffer.getBuildType(i), run[3]);
+        assertEquals(myBuffer.getModificationId(i), run[4]);
+        assertEquals(myBuffer.getAgent(i), run[5]);
+        assertEquals(myBuffer.getBuildStartTime(i), run[6]);
+      }
+    }
+  }
+
+  @NotNull
+  private List<Long> getBuildIds() {
+    List<Long> buildIds = new ArrayList<Long>();
+    for (int i = 0; i < myBuffer.size(); i++) {
+      buildIds.add(myBuffer.getBuildId(i));
+    }
+    return buildIds;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class RunKeyIndexTest {
+  public void testFirstRunAndMaxBuild() {
+    RunKeyIndex index = new RunKeyIndex();
+    index.reset(4);
+    index.add(1, 100, 0, 15);
+    index.add(1, 100, 1, 12);
+    index.add(1, 100, 2, 20);
+    index.add(2, 100, 3, 11);
+
+    assertEquals(index.getFirstRun(1, 100), 0);
+    assertEquals(index.getMaxBuildId(1, 100), 20);
+    assertEquals(index.getFirstRun(2, 100), 3);
+    assertEquals(index.getMaxBuildId(2, 100), 11);
+  }
+
+  public void testExactKeys() {
+    RunKeyIndex index = new RunKeyIndex();
+    index.reset(1000);
+    // Many keys differing in one component only: no key may be mixed with another.
+    for (int i = 0; i < 500; i++) {
+      index.add(i % 3, i / 3, i, 1000 + i);
+    }
+    for (int i = 0; i < 500; i++) {
+      assertEquals(index.getFirstRun(i % 3, i / 3), i);
+      assertEquals(index.getMaxBuildId(i % 3, i / 3), 1000 + i);
+    }
+  }
+
+  public void testReset() {
+    RunKeyIndex index = new RunKeyIndex();
+    index.reset(2);
+    index.add(1, 100, 0, 10);
+
+    index.reset(5000);
+    for (int i = 0; i < 5000; i++) {
+      index.add(7, i, i, i);
+    }
+    index.add(1, 100, 5000, 20);
+    assertEquals(index.getFirstRun(1, 100), 5000, "The runs of the previous test are cleared");
+    assertEquals(index.getMaxBuildId(1, 100), 20);
+    assertEquals(index.getFirstRun(7, 4999), 4999);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.flaky.EmbeddedDatabase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Selects the tests to analyse on an embedded in-memory HSQLDB, with one query and with one query
+ * per {@link TestRunsQuery#MAX_BUILD_TYPES_IN_QUERY} build types.
+ * <p>
+ * Builds 1..100 are in bt950, builds 101..110 are in bt0, build 111 is in a build type which isn't analysed.
+ * With all the 1000 build types bt0 and bt950 are in different queries.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestCandidatesTest {
+  private static final int NORMAL = Status.NORMAL.getPriority();
+  private static final int FAILURE = Status.FAILURE.getPriority();
+
+  private static final String[] EXPECTED = {"1: 1 failures, 9 successes", "2: 1 failures, 99 successes"};
+
+  private EmbeddedDatabase myDatabase;
+  private EmbeddedAnalyser myAnalyser;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDatabase = new EmbeddedDatabase("flakyTestsCandidates");
+    myAnalyser = new EmbeddedAnalyser(myDatabase, Collections.<String>emptyList());
+    addHistory();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myAnalyser.close();
+    myDatabase.close();
+  }
+
+  public void testOneQuery() throws Exception {
+    Set<String> buildTypeIds = new LinkedHashSet<String>(Arrays.asList("bt0", "bt950"));
+    assertEquals(TestRunsQuery.forCandidates(buildTypeIds, 1).size(), 1);
+    assertCandidates(FetchMode.STREAMING, buildTypeIds, EXPECTED);
+  }
+
+  public void testQueryPerBuildTypesChunk() throws Exception {
+    Set<String> buildTypeIds = getManyBuildTypeIds();
+    assertEquals(TestRunsQuery.forCandidates(buildTypeIds, 1).size(), 2);
+    assertCandidates(FetchMode.STREAMING, buildTypeIds, EXPECTED);
+  }
+
+  public void testSummaryOneQuery() throws Exception {
+    myAnalyser.getRunsSummary().initialize();
+    assertCandidates(FetchMode.SUMMARY, new LinkedHashSet<String>(Arrays.asList("bt0", "bt950")), EXPECTED);
+  }
+
+  public void testSummaryQueryPerBuildTypesChunk() throws Exception {
+    myAnalyser.getRunsSummary().initialize();
+    Set<String> buildTypeIds = getManyBuildTypeIds();
+    assertEquals(TestRunsQuery.forSummaryCandidates(buildTypeIds).size(), 2);
+    assertCandidates(FetchMode.SUMMARY, buildTypeIds, EXPECTED);
+  }
+
+  private void addHistory() throws SQLException {
+    for (int buildId = 1; buildId <= 111; buildId++) {
+      addBuild(buildId, buildId <= 100 ? "bt950" : buildId <= 110 ? "bt0" : "other");
+    }
+
+    // Flaky in bt0 only.
+    addRun(101, 1, FAILURE);
+    addRuns(102, 110, 1, NORMAL);
+
+    // Failed once in bt0, passed 99 times in bt950: 1% of the runs.
+    addRun(101, 2, FAILURE);
+    addRuns(1, 99, 2, NORMAL);
+
+    // Failed once in bt0, passed 109 times in both: below 1% of the runs.
+    addRun(101, 3, FAILURE);
+    addRuns(1, 100, 3, NORMAL);
+    addRuns(102, 110, 3, NORMAL);
+
+    // Never failed.
+    addRuns(1, 110, 4, NORMAL);
+
+    // Failed in its only run.
+    addRun(101, 5, FAILURE);
+
+    // Failed only in the build type which isn't analysed.
+    addRun(111, 6, FAILURE);
+    addRuns(101, 105, 6, NORMAL);
+  }
+
+  private void addBuild(long buildId, @NotNull String buildTypeId) throws SQLException {
+    myDatabase.execute("insert into history values (" + buildId + ", '" + buildTypeId + "', 'agent1', " + buildId * 1000 + ")");
+    myDatabase.execute("insert into build_state values (" + buildId + ", " + buildId + ", '" + buildTypeId + "', " + buildId + ")");
+  }
+
+  private void addRuns(long fromBuildId, long toBuildId, long testId, int status) throws SQLException {
+    for (long buildId = fromBuildId; buildId <= toBuildId; buildId++) {
+      addRun(buildId, testId, status);
+    }
+  }
+
+  private void addRun(long buildId, long testId, int status) throws SQLException {
+    myDatabase.execute("insert into test_info values (" + buildId + ", " + testId + ", " + testId + ", " + status + ")");
+  }
+
+  private void assertCandidates(@NotNull FetchMode fetchMode,
+                                @NotNull Set<String> buildTypeIds,
+                                @NotNull String... expected) {
+    List<String> candidates = new ArrayList<String>();
+    for (TestCandidate candidate : myAnalyser.getAnalyser().getCandidates(myAnalyser.getProject(), fetchMode, 1, buildTypeIds)) {
+      candidates.add(candidate.getTest().getTestNameId() + ": " + candidate.getFailureCount() + " failures, " +
+                     candidate.getSuccessCount() + " successes");
+    }
+    assertEquals(candidates, Arrays.asList(expected));
+  }
+
+  /**
+   * Returns bt0..bt999 in this order: the first query has bt0..bt899, the second one bt900..bt999.
+   */
+  @NotNull
+  private static Set<String> getManyBuildTypeIds() {
+    Set<String> result = new LinkedHashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      result.add("bt" + i);
+    }
+    return result;
+  }
+}
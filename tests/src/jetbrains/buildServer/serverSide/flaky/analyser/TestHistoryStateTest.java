@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestHistoryStateTest {
+  private static final String SETTINGS_KEY = "bt1:bt2";
+
+  public void testNewStateStartsBeforeTimeWindow() {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    assertEquals(state.getWatermark(), 99);
+    assertEquals(state.getFromBuildId(), 100);
+    assertTrue(state.isEmpty());
+  }
+
+  public void testCompatibility() {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    assertTrue(state.isCompatible(SETTINGS_KEY, 100));
+    assertTrue(state.isCompatible(SETTINGS_KEY, 150));
+    assertFalse(state.isCompatible(SETTINGS_KEY, 50), "The state doesn't cover the window");
+    assertFalse(state.isCompatible("bt1", 100), "Other build types");
+  }
+
+  public void testRetainBuildsDropsRunsAfterWatermark() {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    addRuns(state, 1, 100, 110);
+    state.setWatermark(105);
+
+    state.retainBuilds(102);
+    assertEquals(state.getFromBuildId(), 102);
+    assertEquals(getBuildIds(state, 1), Arrays.asList(102L, 103L, 104L, 105L));
+  }
+
+  public void testWatermarkAdvancesOnlyForward() {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    state.setWatermark(120);
+    state.setWatermark(Math.max(state.getWatermark(), 110));
+    assertEquals(state.getWatermark(), 120);
+  }
+
+  public void testRetainTests() {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    addRuns(state, 1, 100, 102);
+    addRuns(state, 2, 100, 102);
+
+    state.retainTests(Arrays.asList(2L));
+    assertNull(state.getHistory(1));
+    assertNotNull(state.getHistory(2));
+    assertEquals(state.getRemovedTestIds(), new HashSet<Long>(Arrays.asList(1L)));
+  }
+
+  public void testSerializationKeepsWatermark() throws Exception {
+    TestHistoryState state = new TestHistoryState(SETTINGS_KEY, 100);
+    addRuns(state, 1, 100, 110);
+    state.setWatermark(110);
+
+    TestHistoryState copy = serialize(state);
+    assertEquals(copy.getWatermark(), 110);
+    assertEquals(copy.getFromBuildId(), 100);
+    assertEquals(copy.getTestIds(), state.getTestIds());
+    assertFalse(copy.isChanged());
+
+    copy.setWatermark(110);
+    assertFalse(copy.isChanged(), "The same watermark isn't a change");
+    copy.setWatermark(115);
+    assertTrue(copy.isChanged());
+  }
+
+  private static void addRuns(@NotNull TestHistoryState state, long testId, long fromBuildId, long toBuildId) {
+    TestHistory history = state.getOrCreateHistory(testId);
+    int buildType = state.intern("bt1");
+    int agent = state.intern("agent1");
+    for (long buildId = fromBuildId; buildId <= toBuildId; buildId++) {
+      history.add(buildId, 1, buildType, buildId, agent, buildId * 1000);
+    }
+  }
+
+  @NotNull
+  private static List<Long> getBuildIds(@NotNull TestHistoryState state, long testId) {
+    TestHistory history = state.getHistory(testId);
+    assertNotNull(history);
+
+    RunBuffer buffer = new RunBuffer(new NameDictionary(), new NameDictionary());
+    buffer.reset(testId);
+    history.copyTo(state, buffer);
+    List<Long> buildIds = new ArrayList<Long>();
+    for (int i = 0; i < buffer.size(); i++) {
+      buildIds.add(buffer.getBuildId(i));
+    }
+    return buildIds;
+  }
+
+  @NotNull
+  private static TestHistoryState serialize(@NotNull TestHistoryState state) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(state);
+    output.close();
+
+    ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    try {
+      return (TestHistoryState) input.readObject();
+    } finally {
+      input.close();
+    }
+  }
+}
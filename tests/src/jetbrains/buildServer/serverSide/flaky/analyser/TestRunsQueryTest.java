@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestRunsQueryTest {
+  private static final List<String> BUILD_TYPES = Arrays.asList("bt1", "bt2");
+
+  public void testRunsOfTest() {
+    TestRunsQuery query = TestRunsQuery.forTest(BUILD_TYPES, 100, 7);
+    String sql = query.getSql();
+    assertRangeOnAllTables(sql, false);
+    assertTrue(sql.contains("ti.test_name_id = ?"));
+    assertTrue(sql.contains("bs.build_type_id in (?, ?)"));
+    assertTrue(sql.contains("order by ti.test_name_id, bs.modification_id, ti.build_id"));
+    assertTrue(query.isFilteredByBuildType());
+    assertParams(query, 100L, 100L, 100L, 7L, "bt1", "bt2");
+  }
+
+  public void testRunsOfTests() {
+    TestRunsQuery query = TestRunsQuery.forTests(BUILD_TYPES, 100, 200, Arrays.asList(7L, 8L, 9L));
+    String sql = query.getSql();
+    assertRangeOnAllTables(sql, true);
+    assertTrue(sql.contains("ti.test_name_id in (?, ?, ?)"));
+    assertTrue(sql.contains("order by ti.test_name_id, bs.modification_id, ti.build_id"));
+    assertParams(query, 100L, 200L, 100L, 200L, 100L, 200L, 7L, 8L, 9L, "bt1", "bt2");
+  }
+
+  public void testRunsOfProject() {
+    TestRunsQuery query = TestRunsQuery.forProject(BUILD_TYPES, 100, 200, null);
+    assertRangeOnAllTables(query.getSql(), true);
+    assertFalse(query.getSql().contains("test_name_id >"));
+    // The order of the covering index, the runs of each test are sorted in Java.
+    assertTrue(query.getSql().contains("order by ti.test_name_id, ti.build_id\n"));
+    assertParams(query, 100L, 200L, 100L, 200L, 100L, 200L, "bt1", "bt2");
+
+    query = TestRunsQuery.forProject(BUILD_TYPES, 100, TestRunsQuery.NO_UPPER_BOUND, 7L);
+    assertRangeOnAllTables(query.getSql(), false);
+    assertTrue(query.getSql().contains("ti.test_name_id > ?"));
+    assertParams(query, 100L, 100L, 100L, 7L, "bt1", "bt2");
+  }
+
+  public void testGroups() {
+    TestRunsQuery query = TestRunsQuery.forProjectGroups(BUILD_TYPES, 100, 7L);
+    assertRangeOnAllTables(query.getSql(), false);
+    assertTrue(query.getSql().contains("group by ti.test_name_id, bs.build_type_id, bs.modification_id, h.agent_name, ti.status"));
+    assertTrue(query.getSql().contains("order by 2, 5, 1"));
+    assertParams(query, 100L, 100L, 100L, 7L, "bt1", "bt2");
+  }
+
+  public void testSummary() {
+    TestRunsQuery query = TestRunsQuery.forSummary(BUILD_TYPES, null);
+    assertTrue(query.getSql().contains("from " + TestRunsSummary.TABLE_NAME + " s"));
+    assertTrue(query.getSql().contains("s.build_type_id in (?, ?)"));
+    assertParams(query, "bt1", "bt2");
+
+    query = TestRunsQuery.forSummary(BUILD_TYPES, 7L);
+    assertParams(query, 7L, "bt1", "bt2");
+  }
+
+  public void testTooManyBuildTypesFilteredInJava() {
+    List<String> buildTypeIds = createBuildTypes(TestRunsQuery.MAX_BUILD_TYPES_IN_QUERY + 1);
+    TestRunsQuery query = TestRunsQuery.forProject(buildTypeIds, 100, 200, null);
+    assertFalse(query.isFilteredByBuildType());
+    assertFalse(query.getSql().contains("build_type_id in"));
+    assertParams(query, 100L, 200L, 100L, 200L, 100L, 200L);
+  }
+
+  public void testCandidates() {
+    List<TestRunsQuery> queries = TestRunsQuery.forCandidates(BUILD_TYPES, 100);
+    assertEquals(queries.size(), 1);
+    TestRunsQuery query = queries.get(0);
+    assertRangeOnAllTables(query.getSql(), false);
+    // With one query, the tests which can't be classified are dropped by the DB.
+    assertTrue(query.getSql().contains("having "));
+    assertTrue(query.getSql().contains("order by 1"));
+    assertParams(query, 100L, 100L, 100L, "bt1", "bt2");
+  }
+
+  public void testCandidatesOfManyBuildTypes() {
+    int max = TestRunsQuery.MAX_BUILD_TYPES_IN_QUERY;
+    List<String> buildTypeIds = createBuildTypes(2 * max + 1);
+    List<TestRunsQuery> queries = TestRunsQuery.forCandidates(buildTypeIds, 100);
+    assertEquals(queries.size(), 3);
+
+    List<Object> allBuildTypes = new ArrayList<Object>();
+    for (TestRunsQuery query : queries) {
+      // The numbers of a test are summed up over the queries, so none of the tests is dropped.
+      assertFalse(query.getSql().contains("having"));
+      assertTrue(query.isFilteredByBuildType());
+      List<Object> params = Arrays.asList(query.getParams());
+      assertEquals(params.subList(0, 3), Arrays.<Object>asList(100L, 100L, 100L));
+      assertEquals(countPlaceholders(query.getSql()), params.size());
+      allBuildTypes.addAll(params.subList(3, params.size()));
+    }
+    assertEquals(allBuildTypes, new ArrayList<Object>(buildTypeIds));
+
+    assertEquals(TestRunsQuery.forSummaryCandidates(buildTypeIds).size(), 3);
+    assertTrue(TestRunsQuery.forSummaryCandidates(BUILD_TYPES).get(0).getSql().contains("having "));
+  }
+
+  private static void assertRangeOnAllTables(@NotNull String sql, boolean hasUpperBound) {
+    for (String alias : Arrays.asList("ti", "bs", "h")) {
+      assertTrue(sql.contains(alias + ".build_id >= ?"), "No range on " + alias + ":\n" + sql);
+      assertEquals(sql.contains(alias + ".build_id <= ?"), hasUpperBound, "Upper bound on " + alias + ":\n" + sql);
+    }
+  }
+
+  private static void assertParams(@NotNull TestRunsQuery query, @NotNull Object... expected) {
+    assertEquals(Arrays.asList(query.getParams()), Arrays.asList(expected));
+    assertEquals(countPlaceholders(query.getSql()), expected.length, query.getSql());
+  }
+
+  private static int countPlaceholders(@NotNull String sql) {
+    int count = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      if (sql.charAt(i) == '?') {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @NotNull
+  private static List<String> createBuildTypes(int number) {
+    List<String> buildTypeIds = new ArrayList<String>();
+    for (int i = 0; i < number; i++) {
+      buildTypeIds.add("bt" + i);
+    }
+    return Collections.unmodifiableList(buildTypeIds);
+  }
+}
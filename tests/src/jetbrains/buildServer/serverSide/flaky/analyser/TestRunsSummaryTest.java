@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.analyser;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.flaky.EmbeddedDatabase;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Fills and appends the summary on an embedded in-memory HSQLDB.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestRunsSummaryTest {
+  private static final int NORMAL = Status.NORMAL.getPriority();
+  private static final int FAILURE = Status.FAILURE.getPriority();
+
+  private EmbeddedDatabase myDatabase;
+  private TestRunsSummary mySummary;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDatabase = new EmbeddedDatabase("flakyTestsSummary");
+    mySummary = new TestRunsSummary(EventDispatcher.create(BuildServerListener.class),
+                                    myDatabase.getSQLRunner(), new DBAccessLimiter());
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    mySummary.serverShutdown();
+    myDatabase.close();
+  }
+
+  public void testFill() throws Exception {
+    addBuild(1, "bt1", 100L, "agent1", new long[]{7, 8}, NORMAL);
+    addBuild(2, "bt1", 100L, "agent1", new long[]{7}, FAILURE);
+    addBuild(3, "bt2", 101L, "agent2", new long[]{7, 8}, NORMAL);
+
+    mySummary.initialize();
+    assertSummary("7 bt1 100 agent1 1: 1 runs, builds 1..1",
+                  "7 bt1 100 agent1 3: 1 runs, builds 2..2",
+                  "7 bt2 101 agent2 1: 1 runs, builds 3..3",
+                  "8 bt1 100 agent1 1: 1 runs, builds 1..1",
+                  "8 bt2 101 agent2 1: 1 runs, builds 3..3");
+  }
+
+  public void testAppend() throws Exception {
+    addBuild(1, "bt1", 100L, "agent1", new long[]{7}, NORMAL);
+    mySummary.initialize();
+
+    // The same key, a new status, a new change.
+    addBuild(2, "bt1", 100L, "agent1", new long[]{7}, NORMAL);
+    addBuild(3, "bt1", 100L, "agent1", new long[]{7}, FAILURE);
+    addBuild(4, "bt1", 102L, "agent1", new long[]{7}, NORMAL);
+    mySummary.update();
+    assertSummary("7 bt1 100 agent1 1: 2 runs, builds 1..2",
+                  "7 bt1 100 agent1 3: 1 runs, builds 3..3",
+                  "7 bt1 102 agent1 1: 1 runs, builds 4..4");
+    assertEquals(countRows(), 3, "The known keys are updated, not inserted");
+
+    // Nothing new.
+    mySummary.update();
+    assertEquals(countRows(), 3);
+  }
+
+  public void testAppendWithoutModification() throws Exception {
+    addBuild(1, "bt1", null, "agent1", new long[]{7}, FAILURE);
+    mySummary.initialize();
+
+    addBuild(2, "bt1", null, "agent1", new long[]{7}, FAILURE);
+    mySummary.update();
+    assertSummary("7 bt1 null agent1 3: 2 runs, builds 1..2");
+    assertEquals(countRows(), 1);
+  }
+
+  public void testRunningBuildHoldsWatermark() throws Exception {
+    addBuild(1, "bt1", 100L, "agent1", new long[]{7}, NORMAL);
+    mySummary.initialize();
+
+    // Build 2 is running, build 3 has finished: the runs of 3 wait for 2.
+    myDatabase.execute("insert into running values (2)");
+    addBuild(3, "bt2", 100L, "agent1", new long[]{7}, NORMAL);
+    mySummary.update();
+    assertSummary("7 bt1 100 agent1 1: 1 runs, builds 1..1");
+
+    myDatabase.execute("delete from running");
+    addBuild(2, "bt1", 100L, "agent1", new long[]{7}, NORMAL);
+    mySummary.update();
+    assertSummary("7 bt1 100 agent1 1: 2 runs, builds 1..2",
+                  "7 bt2 100 agent1 1: 1 runs, builds 3..3");
+  }
+
+  public void testLargeBacklogInChunks() throws Exception {
+    addLargeBacklog();
+    mySummary.initialize();
+    assertSummary("7 bt1 100 agent1 1: 900 runs, builds 1..999",
+                  "7 bt1 100 agent1 3: 99 runs, builds 10..990",
+                  "7 bt1 101 agent1 1: 900 runs, builds 1001..1999",
+                  "7 bt1 101 agent1 3: 100 runs, builds 1000..1990",
+                  "7 bt1 102 agent1 1: 450 runs, builds 2001..2499",
+                  "7 bt1 102 agent1 3: 51 runs, builds 2000..2500");
+  }
+
+  public void testAppendOntoKeySplitAcrossChunks() throws Exception {
+    // The failures on modification 101 are in builds 1000..1990, on both sides of a chunk boundary.
+    addLargeBacklog();
+    mySummary.initialize();
+
+    addBuild(2501, "bt1", 101L, "agent1", new long[]{7}, FAILURE);
+    mySummary.update();
+    assertSummary("7 bt1 100 agent1 1: 900 runs, builds 1..999",
+                  "7 bt1 100 agent1 3: 99 runs, builds 10..990",
+                  "7 bt1 101 agent1 1: 900 runs, builds 1001..1999",
+                  "7 bt1 101 agent1 3: 101 runs, builds 1000..2501",
+                  "7 bt1 102 agent1 1: 450 runs, builds 2001..2499",
+                  "7 bt1 102 agent1 3: 51 runs, builds 2000..2500");
+  }
+
+  public void testAppendWithoutModificationAcrossChunks() throws Exception {
+    for (int buildId = 1; buildId <= 1500; buildId++) {
+      addBuild(buildId, "bt1", null, "agent1", new long[]{7}, NORMAL);
+    }
+    mySummary.initialize();
+    assertSummary("7 bt1 null agent1 1: 1500 runs, builds 1..1500");
+
+    addBuild(1501, "bt1", null, "agent1", new long[]{7}, NORMAL);
+    mySummary.update();
+    assertSummary("7 bt1 null agent1 1: 1501 runs, builds 1..1501");
+  }
+
+  private void addLargeBacklog() throws SQLException {
+    for (int buildId = 1; buildId <= 2500; buildId++) {
+      addBuild(buildId, "bt1", 100L + buildId / 1000, "agent1", new long[]{7}, buildId % 10 == 0 ? FAILURE : NORMAL);
+    }
+  }
+
+  private void addBuild(long buildId, @NotNull String buildTypeId, @Nullable Long modificationId,
+                        @NotNull String agentName, @NotNull long[] testIds, int status) throws SQLException {
+    myDatabase.execute("insert into history values (" + buildId + ", '" + buildTypeId + "', '" + agentName + "', " + buildId * 1000 + ")");
+    myDatabase.execute("insert into build_state values (" + buildId + ", " + buildId + ", '" + buildTypeId + "', " + modificationId + ")");
+    for (int i = 0; i < testIds.length; i++) {
+      myDatabase.execute("insert into test_info values (" + buildId + ", " + i + ", " + testIds[i] + ", " + status + ")");
+    }
+  }
+
+  private void assertSummary(@NotNull String... expected) throws SQLException {
+    // Not grouped: a key must have one row.
+    Statement statement = myDatabase.getConnection().createStatement();
+    List<String> rows = new ArrayList<String>();
+    try {
+      ResultSet rs = statement.executeQuery(
+        "select test_name_id, build_type_id, modification_id, agent_name, status, " +
+        "       runs, first_build_id, last_build_id from " + TestRunsSummary.TABLE_NAME +
+        "    order by 1, 2, 3, 4, 5");
+      while (rs.next()) {
+        rows.add(rs.getLong(1) + " " + rs.getString(2) + " " + rs.getObject(3) + " " + rs.getString(4) + " " +
+                 rs.getInt(5) + ": " + rs.getInt(6) + " runs, builds " + rs.getLong(7) + ".." + rs.getLong(8));
+      }
+    } finally {
+      statement.close();
+    }
+    assertEquals(rows, Arrays.asList(expected));
+  }
+
+  private int countRows() throws SQLException {
+    Statement statement = myDatabase.getConnection().createStatement();
+    try {
+      ResultSet rs = statement.executeQuery("select count(*) from " + TestRunsSummary.TABLE_NAME);
+      rs.next();
+      return rs.getInt(1);
+    } finally {
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import net.sf.ehcache.Cache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Creates the result holders of the tests and the benchmarks, which run outside the server.
+ *
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+public class ResultHolders {
+  private ResultHolders() {
+  }
+
+  /**
+   * Creates the holder on the given cache, storing the results in the given directory.
+   */
+  @NotNull
+  public static TestAnalysisResultHolder create(@NotNull Cache cache, @NotNull File directory) {
+    return new TestAnalysisResultHolder(cache, new TestAnalysisResultStore(directory));
+  }
+}
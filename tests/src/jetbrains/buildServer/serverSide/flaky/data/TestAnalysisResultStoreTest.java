@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import jetbrains.buildServer.serverSide.flaky.analyser.BuildWithoutChangesReason;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestAnalysisResultStoreTest {
+  private static final String PROJECT_ID = "project1";
+
+  private File myDirectory;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myDirectory = FileUtil.createTempDirectory("flaky-results", "");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myDirectory);
+  }
+
+  public void testRoundTrip() {
+    TestAnalysisResult result = createResult(createTest(1, Type.FLAKY, new BuildWithoutChangesReason(100)),
+                                             createTest(2, Type.SUSPICIOUS, null),
+                                             createTest(3, Type.ALWAYS_FAILING, null));
+    new TestAnalysisResultStore(myDirectory).store(PROJECT_ID, result);
+
+    // Read back from the disk.
+    TestAnalysisResultStore store = new TestAnalysisResultStore(myDirectory);
+    assertTrue(store.hasResult(PROJECT_ID));
+    assertEquals(store.getProjectIds(), Collections.singleton(PROJECT_ID));
+    assertEquals(getSortedTestIds(store), Arrays.asList(1L, 2L, 3L));
+
+    for (TestData expected : Arrays.asList(result.getFlakyTests().get(0),
+                                           result.getSuspiciousTests().get(0),
+                                           result.getAlwaysFailingTests().get(0))) {
+      assertEquals(store.findTestType(PROJECT_ID, expected.getTestId()), expected.getType());
+      assertSameTest(store.findTest(PROJECT_ID, expected.getTestId()), expected);
+    }
+    assertNull(store.findTest(PROJECT_ID, 4));
+    assertNull(store.findTestType(PROJECT_ID, 4));
+
+    TestAnalysisResultInfo info = store.getResultInfo(PROJECT_ID);
+    assertNotNull(info);
+    assertEquals(info.getStartDate(), result.getStartDate());
+    assertEquals(info.getFinishDate(), result.getFinishDate());
+    assertEquals(info.getSettings().getAnalyseTimePeriodDays(), 7);
+    assertEquals(info.getSettings().getExcludeBuildTypes(), Arrays.asList("bt3"));
+  }
+
+  public void testNoResult() {
+    TestAnalysisResultStore store = new TestAnalysisResultStore(myDirectory);
+    assertFalse(store.hasResult(PROJECT_ID));
+    assertEquals(store.getTestIds(PROJECT_ID).length, 0);
+    assertNull(store.findTest(PROJECT_ID, 1));
+    assertNull(store.getResultInfo(PROJECT_ID));
+  }
+
+  public void testUpdates() {
+    new TestAnalysisResultStore(myDirectory).store(PROJECT_ID, createResult(createTest(1, Type.FLAKY, null),
+                                                                            createTest(2, Type.FLAKY, null)));
+
+    TestAnalysisResultStore store = new TestAnalysisResultStore(myDirectory);
+    Map<Long, TestData> updates = new HashMap<Long, TestData>();
+    updates.put(1L, createTest(1, Type.SUSPICIOUS, null));
+    updates.put(2L, null);
+    updates.put(3L, createTest(3, Type.FLAKY, null));
+    store.update(PROJECT_ID, updates);
+    assertUpdated(store);
+
+    // The log of the updates is read back with the file.
+    store = new TestAnalysisResultStore(myDirectory);
+    assertUpdated(store);
+    assertTrue(store.hasUpdates(PROJECT_ID));
+    assertEquals(store.getUpdates(PROJECT_ID).keySet(), new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+    assertNull(store.getUpdates(PROJECT_ID).get(2L));
+
+    // The next write of the whole result drops the log.
+    store.store(PROJECT_ID, createResult(createTest(5, Type.FLAKY, null)));
+    store = new TestAnalysisResultStore(myDirectory);
+    assertFalse(store.hasUpdates(PROJECT_ID));
+    assertEquals(getSortedTestIds(store), Arrays.asList(5L));
+  }
+
+  private static void assertUpdated(@NotNull TestAnalysisResultStore store) {
+    assertEquals(store.findTestType(PROJECT_ID, 1), Type.SUSPICIOUS);
+    assertNull(store.findTest(PROJECT_ID, 2));
+    assertNull(store.findTestType(PROJECT_ID, 2));
+    assertEquals(store.findTestType(PROJECT_ID, 3), Type.FLAKY);
+    assertEquals(getSortedTestIds(store), Arrays.asList(1L, 3L));
+  }
+
+  private static void assertSameTest(@Nullable TestData actual, @NotNull TestData expected) {
+    assertNotNull(actual);
+    assertEquals(actual.getTestId(), expected.getTestId());
+    assertEquals(actual.getProjectId(), expected.getProjectId());
+    assertEquals(actual.getType(), expected.getType());
+    assertEquals(actual.getFromBuildId(), expected.getFromBuildId());
+    assertEquals(describe(actual.getBuildTypeFailureRates()), describe(expected.getBuildTypeFailureRates()));
+    assertEquals(describe(actual.getAgentFailureRates()), describe(expected.getAgentFailureRates()));
+    if (expected.getReason() instanceof BuildWithoutChangesReason) {
+      assertTrue(actual.getReason() instanceof BuildWithoutChangesReason);
+      assertEquals(((BuildWithoutChangesReason) actual.getReason()).getBuildId(),
+                   ((BuildWithoutChangesReason) expected.getReason()).getBuildId());
+    } else {
+      assertNull(actual.getReason());
+    }
+  }
+
+  @NotNull
+  private static Map<String, String> describe(@NotNull Map<String, FailureRate> failureRates) {
+    Map<String, String> result = new TreeMap<String, String>();
+    for (Map.Entry<String, FailureRate> entry : failureRates.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getFailures() + "/" + entry.getValue().getTotalRuns());
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<Long> getSortedTestIds(@NotNull TestAnalysisResultStore store) {
+    List<Long> testIds = new ArrayList<Long>();
+    for (long testId : store.getTestIds(PROJECT_ID)) {
+      testIds.add(testId);
+    }
+    Collections.sort(testIds);
+    return testIds;
+  }
+
+  @NotNull
+  private static TestAnalysisResult createResult(@NotNull TestData... tests) {
+    TestAnalysisResult result = new TestAnalysisResult();
+    result.setTests(Arrays.asList(tests));
+    result.setSettings(new TestAnalysisSettings(Arrays.asList("bt3"), 7, false, true, 3, 2.5));
+    result.setStartDate(new Date(1000000));
+    result.setFinishDate(new Date(2000000));
+    result.setTotalTests(10);
+    return result;
+  }
+
+  @NotNull
+  private static TestData createTest(long testId, @NotNull Type type, @Nullable Reason reason) {
+    Map<String, FailureRate> buildTypeFailureRates = new HashMap<String, FailureRate>();
+    buildTypeFailureRates.put("bt1", new FailureRate(10, (int) testId));
+    buildTypeFailureRates.put("bt2", new FailureRate(5, 0));
+    Map<String, FailureRate> agentFailureRates = new HashMap<String, FailureRate>();
+    agentFailureRates.put("agent1", new FailureRate(15, (int) testId));
+    return new TestData(testId, PROJECT_ID, buildTypeFailureRates, agentFailureRates, 50 + testId, type, reason);
+  }
+}
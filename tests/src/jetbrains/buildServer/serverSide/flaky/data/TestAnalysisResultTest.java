@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2000-2013 by JetBrains s.r.o. All Rights Reserved.
+ * Use is subject to license terms.
+ */
+package jetbrains.buildServer.serverSide.flaky.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
+ * @since 8.1
+ */
+@Test
+public class TestAnalysisResultTest {
+  private static final String PROJECT_ID = "project1";
+
+  public void testFindTest() {
+    Random random = new Random(2013);
+    Map<Long, TestData> tests = new HashMap<Long, TestData>();
+    while (tests.size() < 1000) {
+      // Any ids, the negative ones as well.
+      long testId = random.nextLong();
+      Type type = Type.values()[1 + random.nextInt(3)];
+      tests.put(testId, createTest(testId, type));
+    }
+
+    TestAnalysisResult result = new TestAnalysisResult();
+    result.setTests(new ArrayList<TestData>(tests.values()));
+    for (TestData testData : tests.values()) {
+      assertSame(result.findTest(testData.getTestId()), testData);
+      assertEquals(result.findTestType(testData.getTestId()), testData.getType());
+    }
+    assertNull(result.findTest(0));
+    assertNull(result.findTestType(0));
+  }
+
+  public void testEmptyResult() {
+    assertNull(TestAnalysisResult.EMPTY_FLAKY_TESTS.findTest(1));
+    assertNull(new TestAnalysisResult().findTestType(1));
+  }
+
+  public void testFirstOccurrenceWins() {
+    TestData flaky = createTest(1, Type.FLAKY);
+    TestData suspicious = createTest(1, Type.SUSPICIOUS);
+    TestIdIndex index = new TestIdIndex(2);
+    index.add(Arrays.asList(flaky, suspicious));
+    assertSame(index.find(1), flaky);
+    assertEquals(index.findType(1), Type.FLAKY);
+  }
+
+  public void testWithTests() {
+    TestAnalysisResult result = new TestAnalysisResult();
+    result.setTests(Arrays.asList(createTest(1, Type.FLAKY), createTest(2, Type.FLAKY), createTest(3, Type.SUSPICIOUS)));
+    result.setStartDate(new Date(1000));
+
+    Map<Long, TestData> updates = new HashMap<Long, TestData>();
+    TestData updated = createTest(1, Type.ALWAYS_FAILING);
+    TestData added = createTest(4, Type.FLAKY);
+    updates.put(1L, updated);
+    updates.put(2L, null);
+    updates.put(4L, added);
+    TestAnalysisResult copy = result.withTests(updates);
+
+    assertSame(copy.findTest(1), updated);
+    assertNull(copy.findTest(2));
+    assertEquals(copy.findTestType(3), Type.SUSPICIOUS);
+    assertSame(copy.findTest(4), added);
+    assertEquals(copy.getFlakyTests().size(), 1);
+    assertEquals(copy.getAlwaysFailingTests().size(), 1);
+    assertEquals(copy.getStartDate(), result.getStartDate());
+    assertTrue(copy.getVersion() != result.getVersion());
+
+    // The original result isn't changed.
+    assertEquals(result.findTestType(1), Type.FLAKY);
+    assertNotNull(result.findTest(2));
+  }
+
+  public void testIndexAfterDeserialization() throws Exception {
+    TestAnalysisResult result = new TestAnalysisResult();
+    result.setTests(Arrays.asList(createTest(1, Type.FLAKY), createTest(2, Type.ALWAYS_FAILING)));
+
+    TestAnalysisResult copy = serialize(result);
+    assertEquals(copy.findTestType(1), Type.FLAKY);
+    assertEquals(copy.findTestType(2), Type.ALWAYS_FAILING);
+    assertNull(copy.findTest(3));
+    assertTrue(copy.getVersion() != result.getVersion());
+  }
+
+  @NotNull
+  private static TestData createTest(long testId, @NotNull Type type) {
+    return new TestData(testId, PROJECT_ID,
+                        Collections.<String, FailureRate>emptyMap(),
+                        Collections.<String, FailureRate>emptyMap(),
+                        -1, type, null);
+  }
+
+  @NotNull
+  private static TestAnalysisResult serialize(@NotNull TestAnalysisResult result) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(result);
+    output.close();
+
+    ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    try {
+      return (TestAnalysisResult) input.readObject();
+    } finally {
+      input.close();
+    }
+  }
+}